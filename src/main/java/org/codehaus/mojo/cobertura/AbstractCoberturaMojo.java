@@ -20,16 +20,20 @@ package org.codehaus.mojo.cobertura;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 
 import org.codehaus.plexus.util.FileUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.mojo.cobertura.configuration.ConfigCheck;
 import org.codehaus.mojo.cobertura.configuration.ConfigInstrumentation;
+import org.codehaus.mojo.cobertura.data.CoverageShards;
 import org.codehaus.mojo.cobertura.tasks.AbstractTask;
+import org.codehaus.mojo.cobertura.tasks.MergeTask;
 import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
 import org.apache.maven.artifact.resolver.ArtifactResolutionException;
 import org.apache.maven.artifact.resolver.ArtifactResolver;
@@ -113,6 +117,52 @@ public abstract class AbstractCoberturaMojo
      */
     private String maxmem = "64m";
 
+    /**
+     * Run the Cobertura tasks in a forked JVM. When set to <code>false</code>, the tasks run inside the Maven JVM
+     * using a class loader that is cached for the whole build, so that JVM startup and class loading only happen once.
+     * 
+     * @parameter expression="${cobertura.fork}" default-value="true"
+     * @since 2.4
+     */
+    private boolean fork = true;
+
+    /**
+     * Send the Cobertura tasks to a long-lived worker JVM instead of forking a JVM per task. The worker is shared
+     * by all modules and builds using the same plugin classpath and is started on demand.
+     * 
+     * @parameter expression="${cobertura.worker}" default-value="false"
+     * @since 2.4
+     */
+    private boolean useWorker;
+
+    /**
+     * Number of seconds a worker JVM started by this build stays alive without receiving tasks.
+     * 
+     * @parameter expression="${cobertura.workerIdleTimeout}" default-value="600"
+     * @since 2.4
+     */
+    private int workerIdleTimeout = 600;
+
+    /**
+     * Directory holding the port files and logs of the worker JVMs.
+     * 
+     * @parameter expression="${cobertura.workerDirectory}" default-value="${user.home}/.m2/cobertura/workers"
+     * @since 2.4
+     */
+    private File workerDirectory;
+
+    /**
+     * How Cobertura data files are merged: <code>fork</code> runs the Cobertura merge in a separate JVM, one file
+     * after the other, while <code>parallel</code> loads the files concurrently inside the Maven JVM and merges them
+     * pairwise, writing the result once. <code>streaming</code> also merges inside the Maven JVM, but reads one class
+     * at a time and merges package by package, so that the inputs never have to fit in memory together. A data file
+     * in the compact format is also written package by package.
+     * 
+     * @parameter expression="${cobertura.mergeMode}" default-value="fork"
+     * @since 2.4
+     */
+    protected String mergeMode = MergeTask.MODE_FORK;
+
     /**
      * <p>
      * The Datafile Location.
@@ -178,5 +228,38 @@ public abstract class AbstractCoberturaMojo
         task.setPluginClasspathList(pluginClasspathList);
         task.setMaxmem(maxmem);
         task.setQuiet(quiet);
+        task.setFork(fork);
+        task.setUseWorker(useWorker);
+        task.setWorkerIdleTimeout(workerIdleTimeout);
+        task.setWorkerDirectory(workerDirectory);
+    }
+
+    /**
+     * @return the uninstrumented classes, even once the <code>instrument</code> goal replaced the output directory.
+     */
+    protected File getClassesDirectory() {
+        String originalOutputDirectory = System.getProperty("original.project.build.outputDirectory");
+        if (originalOutputDirectory != null && originalOutputDirectory.length() > 0) {
+            return new File(originalOutputDirectory);
+        }
+        return new File(project.getBuild().getOutputDirectory());
+    }
+
+    /**
+     * Fold the shards written by the test JVMs into a data file, before it is read.
+     * 
+     * @param file the data file.
+     * @throws MojoExecutionException if the shards cannot be folded.
+     */
+    protected void foldShards(File file) throws MojoExecutionException {
+        try {
+            int folded = CoverageShards.fold(file);
+            if (folded > 0) {
+                getLog().info("Folded " + folded + " coverage shards into " + file);
+            }
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to fold the coverage shards of " + file, e);
+        }
     }
 }
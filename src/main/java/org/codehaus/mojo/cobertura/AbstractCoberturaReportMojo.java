@@ -0,0 +1,360 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.reporting.AbstractMavenReport;
+import org.apache.maven.reporting.MavenReportException;
+import org.codehaus.doxia.sink.Sink;
+import org.codehaus.doxia.site.renderer.SiteRenderer;
+import org.codehaus.mojo.cobertura.data.CoverageShards;
+import org.codehaus.mojo.cobertura.tasks.ReportGenerator;
+import org.codehaus.mojo.cobertura.tasks.ReportTask;
+
+/**
+ * Generates a Cobertura Report, with or without running the tests in a forked lifecycle.
+ * 
+ * @author <a href="will.gwaltney@sas.com">Will Gwaltney</a>
+ * @author <a href="mailto:joakim@erdfelt.com">Joakim Erdfelt</a>
+ */
+public abstract class AbstractCoberturaReportMojo
+    extends AbstractMavenReport {
+    /**
+     * The format of the report. (supports 'html' or 'xml'. defaults to 'html')
+     * 
+     * @parameter expression="${cobertura.report.format}"
+     * @deprecated
+     */
+    private String format;
+
+    /**
+     * The format of the report. (can be 'html' and/or 'xml'. defaults to 'html')
+     * 
+     * @parameter
+     */
+    private String[] formats = new String[] { "html" };
+
+    /**
+     * The encoding for the java source code files.
+     * 
+     * @parameter expression="${project.build.sourceEncoding}" default-value="UTF-8".
+     * @since 2.4
+     */
+    private String encoding;
+
+    /**
+     * Maximum memory to pass to JVM of Cobertura processes.
+     * 
+     * @parameter expression="${cobertura.maxmem}"
+     */
+    private String maxmem = "64m";
+
+    /**
+     * Run the Cobertura report task in a forked JVM. When set to <code>false</code>, the task runs inside the Maven
+     * JVM using a class loader that is cached for the whole build.
+     * 
+     * @parameter expression="${cobertura.fork}" default-value="true"
+     * @since 2.4
+     */
+    private boolean fork = true;
+
+    /**
+     * Send the Cobertura report task to a long-lived worker JVM instead of forking a JVM for it.
+     * 
+     * @parameter expression="${cobertura.worker}" default-value="false"
+     * @since 2.4
+     */
+    private boolean useWorker;
+
+    /**
+     * Number of seconds a worker JVM started by this build stays alive without receiving tasks.
+     * 
+     * @parameter expression="${cobertura.workerIdleTimeout}" default-value="600"
+     * @since 2.4
+     */
+    private int workerIdleTimeout = 600;
+
+    /**
+     * Generate all report formats inside the Maven JVM from one load of the data file and one scan of the source
+     * directories, instead of running a Cobertura report task per format.
+     * 
+     * @parameter expression="${cobertura.report.singlePass}" default-value="false"
+     * @since 2.4
+     */
+    private boolean singlePass;
+
+    /**
+     * Number of threads rendering the HTML report. With more than one thread, the source files are split into shards of
+     * similar size whose pages are rendered concurrently. Implies <code>singlePass</code>.
+     * 
+     * @parameter expression="${cobertura.report.threads}" default-value="1"
+     * @since 2.4
+     */
+    private int threads = 1;
+
+    /**
+     * Render only the HTML source pages whose coverage or source changed since the last report, as recorded by a
+     * fingerprint of every page kept in the report directory. The index, package and summary pages are always
+     * rewritten. Implies <code>singlePass</code>.
+     * 
+     * @parameter expression="${cobertura.report.incremental}" default-value="false"
+     * @since 2.4
+     */
+    private boolean incremental;
+
+    /**
+     * <p>
+     * The Datafile Location.
+     * </p>
+     * 
+     * @parameter expression="${cobertura.datafile}" default-value="${project.build.directory}/cobertura/cobertura.ser"
+     * @required
+     * @readonly
+     */
+    protected File dataFile;
+
+    /**
+     * <i>Maven Internal</i>: List of artifacts for the plugin.
+     * 
+     * @parameter expression="${plugin.artifacts}"
+     * @required
+     * @readonly
+     */
+    protected List pluginClasspathList;
+
+    /**
+     * The output directory for the report.
+     * 
+     * @parameter default-value="${project.reporting.outputDirectory}/cobertura"
+     * @required
+     */
+    private File outputDirectory;
+
+    /**
+     * Only output cobertura errors, avoid info messages.
+     * 
+     * @parameter expression="${quiet}" default-value="false"
+     * @since 2.1
+     */
+    private boolean quiet;
+
+    /**
+     * <i>Maven Internal</i>: The Doxia Site Renderer.
+     * 
+     * @component
+     */
+    private SiteRenderer siteRenderer;
+
+    /**
+     * <i>Maven Internal</i>: Project to interact with.
+     * 
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * @see org.apache.maven.reporting.MavenReport#getName(java.util.Locale)
+     */
+    public String getName(Locale locale) {
+        return getBundle(locale).getString("report.cobertura.name");
+    }
+
+    /**
+     * @see org.apache.maven.reporting.MavenReport#getDescription(java.util.Locale)
+     */
+    public String getDescription(Locale locale) {
+        return getBundle(locale).getString("report.cobertura.description");
+    }
+
+    /**
+     * @see org.apache.maven.reporting.AbstractMavenReport#getOutputDirectory()
+     */
+    protected String getOutputDirectory() {
+        return outputDirectory.getAbsolutePath();
+    }
+
+    /**
+     * @see org.apache.maven.reporting.AbstractMavenReport#getProject()
+     */
+    protected MavenProject getProject() {
+        return project;
+    }
+
+    /**
+     * @see org.apache.maven.reporting.AbstractMavenReport#getSiteRenderer()
+     */
+    protected SiteRenderer getSiteRenderer() {
+        return siteRenderer;
+    }
+
+    /**
+     * @see org.apache.maven.reporting.MavenReport#generate(org.codehaus.doxia.sink.Sink, java.util.Locale)
+     */
+    public void generate(Sink sink, Locale locale)
+        throws MavenReportException {
+        executeReport(locale);
+    }
+
+    private void executeReportTask(ReportTask task, String format)
+        throws MavenReportException {
+        task.setOutputFormat(format);
+
+        // execute task
+        try {
+            task.execute();
+        }
+        catch (MojoExecutionException e) {
+            // throw new MavenReportException("Error in Cobertura Report generation: " + e.getMessage(), e);
+            // better don't break the build if report is not generated, also due to the sporadic MCOBERTURA-56
+            getLog().error("Error in Cobertura Report generation: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @see org.apache.maven.reporting.AbstractMavenReport#executeReport(java.util.Locale)
+     */
+    protected void executeReport(Locale locale)
+        throws MavenReportException {
+        if (!canGenerateReport()) {
+            return;
+        }
+
+        if (format != null) {
+            formats = new String[] { format };
+        }
+
+        try {
+            int folded = CoverageShards.fold(dataFile);
+            if (folded > 0) {
+                getLog().info("Folded " + folded + " coverage shards into " + dataFile);
+            }
+        }
+        catch (IOException e) {
+            // the report is still generated, without the hits of the shards
+            getLog().error("Unable to fold the coverage shards of " + dataFile + ": " + e.getMessage(), e);
+        }
+
+        if (singlePass || threads > 1 || incremental) {
+            ReportGenerator generator = new ReportGenerator(dataFile, getLog());
+            generator.setSourceDirectories(getCompileSourceRoots());
+            generator.setEncoding(encoding);
+            generator.setThreads(threads);
+            generator.setIncremental(incremental);
+            try {
+                generator.generate(outputDirectory, Arrays.asList(formats));
+                if (!quiet) {
+                    getLog().info("Cobertura Report generation was successful.");
+                }
+            }
+            catch (MojoExecutionException e) {
+                // better don't break the build if report is not generated, also due to the sporadic MCOBERTURA-56
+                getLog().error("Error in Cobertura Report generation: " + e.getMessage(), e);
+            }
+            return;
+        }
+
+        ReportTask task = new ReportTask();
+
+        // task defaults
+        task.setLog(getLog());
+        task.setPluginClasspathList(pluginClasspathList);
+        task.setQuiet(quiet);
+
+        // task specifics
+        task.setMaxmem(maxmem);
+        task.setFork(fork);
+        task.setUseWorker(useWorker);
+        task.setWorkerIdleTimeout(workerIdleTimeout);
+        task.setDataFile(dataFile);
+        task.setOutputDirectory(outputDirectory);
+        task.setCompileSourceRoots(getCompileSourceRoots());
+        task.setSourceEncoding(encoding);
+
+        for (int i = 0; i < formats.length; i++) {
+            executeReportTask(task, formats[i]);
+        }
+    }
+
+    /**
+     * @see org.apache.maven.reporting.MavenReport#getOutputName()
+     */
+    public String getOutputName() {
+        return "cobertura/index";
+    }
+
+    public boolean isExternalReport() {
+        return true;
+    }
+
+    public boolean canGenerateReport() {
+        /*
+         * Don't have to check for source directories or java code or the like for report generation. Checks for source
+         * directories or java project classpath existence should only occur in the Instrument Mojo.
+         */
+        if (dataFile == null || !dataFile.exists()) {
+            getLog().info(
+                           "Not executing cobertura:report as the cobertura data file (" + dataFile
+                               + ") could not be found");
+            return false;
+        }
+        else {
+            return true;
+        }
+    }
+
+    private List getCompileSourceRoots() {
+        // Only goals that fork a lifecycle have an execution project; report-only reads the current one.
+        MavenProject executionProject = project.getExecutionProject();
+        return (executionProject != null ? executionProject : project).getCompileSourceRoots();
+    }
+
+    /**
+     * @see org.apache.maven.reporting.AbstractMavenReport#setReportOutputDirectory(java.io.File)
+     */
+    public void setReportOutputDirectory(File reportOutputDirectory) {
+        if ((reportOutputDirectory != null) && (!reportOutputDirectory.getAbsolutePath().endsWith("cobertura"))) {
+            this.outputDirectory = new File(reportOutputDirectory, "cobertura");
+        }
+        else {
+            this.outputDirectory = reportOutputDirectory;
+        }
+    }
+
+    /**
+     * Gets the resource bundle for the report text.
+     * 
+     * @param locale The locale for the report, must not be <code>null</code>.
+     * @return The resource bundle for the requested locale.
+     */
+    private ResourceBundle getBundle(Locale locale) {
+        return ResourceBundle.getBundle("cobertura-report", locale, getClass().getClassLoader());
+    }
+
+}
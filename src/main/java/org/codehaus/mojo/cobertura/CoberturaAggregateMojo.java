@@ -0,0 +1,224 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.mojo.cobertura.tasks.CheckTask;
+import org.codehaus.mojo.cobertura.tasks.ParallelMerger;
+import org.codehaus.mojo.cobertura.tasks.ReportGenerator;
+import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+
+/**
+ * Merge the data files of all the modules of the reactor, then report on and check the merged coverage once, inside
+ * the Maven JVM.
+ * <p>
+ * The goal is an aggregator: it runs once, from the root of the reactor, after the modules were built, as in
+ * <code>mvn verify cobertura:aggregate</code>. It collects the data files of every module of the reactor, whatever
+ * the packaging of the modules and the order they were built in: the <code>dataFile</code> a module configures for
+ * this plugin, or else the first of <code>moduleDataFiles</code> found in its build directory. The data files are loaded and merged in parallel,
+ * and the merged data is reported on and checked without being loaded again.
+ * </p>
+ *
+ * @goal aggregate
+ * @aggregator
+ * @since 2.4
+ */
+public class CoberturaAggregateMojo
+    extends AbstractCoberturaMojo
+{
+    /**
+     * The projects of the reactor.
+     *
+     * @parameter expression="${reactorProjects}"
+     * @required
+     * @readonly
+     */
+    private List reactorProjects;
+
+    /**
+     * Comma separated data files of the modules that configure no <code>dataFile</code> for this plugin, relative to
+     * their build directory. The first one that exists is aggregated.
+     *
+     * @parameter expression="${cobertura.aggregate.moduleDataFiles}"
+     *            default-value="cobertura/cobertura.ser,cobertura/cobertura.cdat"
+     */
+    private String moduleDataFiles = "cobertura/cobertura.ser,cobertura/cobertura.cdat";
+
+    /**
+     * The encoding of the source files.
+     *
+     * @parameter expression="${project.build.sourceEncoding}" default-value="UTF-8"
+     */
+    private String encoding;
+
+    /**
+     * The merged data file.
+     *
+     * @parameter expression="${cobertura.aggregate.dataFile}"
+     *            default-value="${project.build.directory}/cobertura/cobertura-aggregate.ser"
+     */
+    private File aggregateDataFile;
+
+    /**
+     * The directory receiving the aggregated report.
+     *
+     * @parameter expression="${cobertura.aggregate.outputDirectory}"
+     *            default-value="${project.reporting.outputDirectory}/cobertura-aggregate"
+     */
+    private File outputDirectory;
+
+    /**
+     * The formats of the aggregated report, <code>html</code>, <code>xml</code> and/or <code>summaryXml</code>.
+     *
+     * @parameter
+     */
+    private String[] formats = new String[] { "html" };
+
+    /**
+     * Number of threads loading and merging the data files and rendering the HTML report.
+     *
+     * @parameter expression="${cobertura.aggregate.threads}"
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        List<File> dataFiles = new ArrayList<File>();
+        List<String> sourceDirectories = new ArrayList<String>();
+        List projects = ( reactorProjects != null ) ? reactorProjects : Arrays.asList( new Object[] { project } );
+        for ( Iterator it = projects.iterator(); it.hasNext(); )
+        {
+            MavenProject reactorProject = (MavenProject) it.next();
+            File file = getModuleDataFile( reactorProject );
+            if ( file != null )
+            {
+                foldShards( file );
+                dataFiles.add( file );
+                for ( Iterator roots = reactorProject.getCompileSourceRoots().iterator(); roots.hasNext(); )
+                {
+                    String root = (String) roots.next();
+                    if ( !sourceDirectories.contains( root ) )
+                    {
+                        sourceDirectories.add( root );
+                    }
+                }
+            }
+        }
+
+        if ( dataFiles.isEmpty() )
+        {
+            getLog().info( "No Cobertura data file in the reactor, skipping the aggregation." );
+            return;
+        }
+
+        getLog().info( "Aggregating " + dataFiles.size() + " Cobertura data files of " + projects.size()
+            + " projects." );
+
+        ProjectData projectData = new ParallelMerger( threads, getLog() ).merge( dataFiles );
+        if ( projectData == null )
+        {
+            throw new MojoExecutionException( "None of the Cobertura data files of the reactor could be read." );
+        }
+        aggregateDataFile.getParentFile().mkdirs();
+        CoverageDataFileHandler.saveCoverageData( projectData, aggregateDataFile );
+
+        ReportGenerator generator = new ReportGenerator( null, getLog() );
+        generator.setEncoding( encoding );
+        generator.setSourceDirectories( sourceDirectories );
+        generator.setThreads( threads );
+        generator.generate( projectData, outputDirectory, Arrays.asList( formats ) );
+        getLog().info( "Aggregated Cobertura report written to " + outputDirectory );
+
+        if ( check != null )
+        {
+            CheckTask task = new CheckTask();
+            setTaskDefaults( task );
+            task.setConfig( check );
+            task.setNativeCheck( true );
+            task.check( projectData );
+        }
+    }
+
+    /**
+     * @param reactorProject a project of the reactor.
+     * @return the data file the project configures for this plugin, or the first of the module data files that exists
+     *         in its build directory, <code>null</code> if there is none.
+     */
+    private File getModuleDataFile( MavenProject reactorProject )
+    {
+        String configured = null;
+        List plugins = reactorProject.getBuildPlugins();
+        for ( Iterator it = ( plugins != null ? plugins : Collections.EMPTY_LIST ).iterator(); it.hasNext(); )
+        {
+            Plugin plugin = (Plugin) it.next();
+            if ( !"cobertura-maven-plugin".equals( plugin.getArtifactId() ) )
+            {
+                continue;
+            }
+            configured = getDataFile( plugin.getConfiguration(), configured );
+            for ( Iterator executions = plugin.getExecutions().iterator(); executions.hasNext(); )
+            {
+                configured = getDataFile( ( (PluginExecution) executions.next() ).getConfiguration(), configured );
+            }
+        }
+        if ( configured != null )
+        {
+            File file = new File( configured );
+            if ( !file.isAbsolute() )
+            {
+                file = new File( reactorProject.getBasedir(), configured );
+            }
+            return file.exists() ? file : null;
+        }
+
+        String[] candidates = StringUtils.split( moduleDataFiles, "," );
+        for ( int i = 0; i < candidates.length; i++ )
+        {
+            File file = new File( reactorProject.getBuild().getDirectory(), candidates[i].trim() );
+            if ( file.exists() )
+            {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static String getDataFile( Object configuration, String defaultValue )
+    {
+        Xpp3Dom dataFile = configuration instanceof Xpp3Dom ? ( (Xpp3Dom) configuration ).getChild( "dataFile" ) : null;
+        return dataFile != null && StringUtils.isNotEmpty( dataFile.getValue() ) ? dataFile.getValue().trim()
+                        : defaultValue;
+    }
+}
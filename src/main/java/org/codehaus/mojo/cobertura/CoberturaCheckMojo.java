@@ -19,10 +19,6 @@ package org.codehaus.mojo.cobertura;
  * under the License.
  */
 
-import org.apache.maven.artifact.handler.ArtifactHandler;
-import org.apache.maven.plugin.MojoExecutionException;
-import org.codehaus.mojo.cobertura.tasks.CheckTask;
-
 /**
  * Check the Last Instrumentation Results.
  * 
@@ -32,38 +28,6 @@ import org.codehaus.mojo.cobertura.tasks.CheckTask;
  * @phase verify
  */
 public class CoberturaCheckMojo
-    extends AbstractCoberturaMojo
+    extends AbstractCoberturaCheckMojo
 {
-
-    public void execute()
-        throws MojoExecutionException
-    {
-        if ( check == null )
-        {
-            throw new MojoExecutionException( "The Check configuration is missing." );
-        }
-
-        ArtifactHandler artifactHandler = project.getArtifact().getArtifactHandler();
-        if ( !"java".equals( artifactHandler.getLanguage() ) )
-        {
-            getLog().info(
-                "Not executing cobertura:instrument as the project is not a Java classpath-capable package" );
-        }
-        else
-        {
-            if ( !dataFile.exists() )
-            {
-                getLog().info( "Cannot perform check, instrumentation not performed - skipping." );
-            }
-            else
-            {
-                CheckTask task = new CheckTask();
-                setTaskDefaults( task );
-                task.setConfig( check );
-                task.setDataFile( dataFile.getAbsolutePath() );
-
-                task.execute();
-            }
-        }
-    }
 }
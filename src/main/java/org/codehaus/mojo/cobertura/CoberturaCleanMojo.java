@@ -21,6 +21,8 @@ package org.codehaus.mojo.cobertura;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.mojo.cobertura.data.CoverageShards;
+import org.codehaus.mojo.cobertura.data.TestCoverageMaps;
 
 /**
  * Clean up rogue files that cobertura maven plugin is tracking.
@@ -39,5 +41,7 @@ public class CoberturaCleanMojo
         {
             dataFile.delete();
         }
+        CoverageShards.delete( dataFile );
+        TestCoverageMaps.file( dataFile ).delete();
     }
 }
@@ -0,0 +1,147 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.tasks.TestSelector;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.ReaderFactory;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * Remember the classes the coverage maps of the tests were recorded against, once the tests passed.
+ * <p>
+ * Only does its work when <code>perTestCoverage</code> is set, which <code>instrument-tests</code> must share. It runs
+ * in the <code>test</code> phase, after Surefire, and the forked lifecycle of the <code>cobertura</code> goal binds it
+ * there too. Reaching the phase does not mean the tests passed, since the forked lifecycle and
+ * <code>maven.test.failure.ignore</code> ignore the failures, so the outcome is read from the Surefire reports: the
+ * maps are only remembered when there are reports written since <code>instrument-tests</code> ran and none of them
+ * has a failure or an error. Otherwise the next <code>select-tests</code> still compares the classes with those the
+ * last passing tests ran against. Nothing is remembered when the tests are skipped with <code>skipTests</code> or
+ * <code>maven.test.skip</code>.
+ * </p>
+ * 
+ * @goal commit-test-maps
+ * @phase test
+ * @since 2.4
+ */
+public class CoberturaCommitTestMapsMojo extends AbstractCoberturaMojo {
+    /**
+     * Record which lines and branches every test method hits, in a file next to the data file.
+     *
+     * @parameter expression="${cobertura.perTestCoverage}" default-value="false"
+     */
+    private boolean perTestCoverage;
+
+    /**
+     * The directory of the XML reports of Surefire.
+     *
+     * @parameter expression="${cobertura.reportsDirectory}" default-value="${project.build.directory}/surefire-reports"
+     */
+    private File reportsDirectory;
+
+    public void execute() throws MojoExecutionException {
+        if (!perTestCoverage) {
+            return;
+        }
+        // set on the command line, unlike the skipTests property of select-tests, which did run the affected tests
+        if (Boolean.getBoolean("skipTests") || Boolean.getBoolean("maven.test.skip")) {
+            getLog().info("The tests were skipped, not committing the coverage maps of the tests.");
+            return;
+        }
+
+        File pending = TestSelector.pendingBaselineFile(dataFile);
+        if (!pending.isFile() || !testsPassed(pending.lastModified())) {
+            return;
+        }
+
+        try {
+            if (TestSelector.commitBaseline(dataFile)) {
+                getLog().debug("Committed " + TestSelector.baselineFile(dataFile) + ".");
+            }
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to commit the coverage maps of the tests.", e);
+        }
+    }
+
+    /**
+     * Read the outcome of the tests from the Surefire reports written since the pending baseline.
+     *
+     * @param since when the pending baseline was written, before the tests ran.
+     * @return <code>true</code> if there is at least one report and none of them has a failure or an error.
+     * @throws MojoExecutionException if a report cannot be read.
+     */
+    private boolean testsPassed(long since) throws MojoExecutionException {
+        File[] reports = reportsDirectory.listFiles();
+        int count = 0;
+        for (int i = 0; reports != null && i < reports.length; i++) {
+            String name = reports[i].getName();
+            if (!name.startsWith("TEST-") || !name.endsWith(".xml") || reports[i].lastModified() < since) {
+                continue;
+            }
+            count++;
+
+            Xpp3Dom testsuite;
+            Reader reader = null;
+            try {
+                reader = ReaderFactory.newXmlReader(reports[i]);
+                testsuite = Xpp3DomBuilder.build(reader);
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Unable to read " + reports[i], e);
+            }
+            catch (XmlPullParserException e) {
+                throw new MojoExecutionException("Unable to read " + reports[i], e);
+            }
+            finally {
+                IOUtil.close(reader);
+            }
+            if (count(testsuite, "failures") > 0 || count(testsuite, "errors") > 0) {
+                getLog().info("Some tests failed in " + reports[i]
+                    + ", not committing the coverage maps of the tests.");
+                return false;
+            }
+        }
+        if (count == 0) {
+            getLog().info("No test report in " + reportsDirectory
+                + " since the tests were instrumented, not committing the coverage maps of the tests.");
+            return false;
+        }
+        return true;
+    }
+
+    private static int count(Xpp3Dom testsuite, String attribute) {
+        String value = testsuite.getAttribute(attribute);
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : 0;
+        }
+        catch (NumberFormatException e) {
+            // not a count Surefire writes, taken as a failure
+            return 1;
+        }
+    }
+}
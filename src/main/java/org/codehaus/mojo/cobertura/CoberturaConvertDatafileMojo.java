@@ -0,0 +1,88 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+
+/**
+ * Convert a Cobertura data file between the serialized <code>cobertura.ser</code> format and the compact format. The
+ * format of the data file is detected, so the same goal converts in both directions.
+ * 
+ * @goal convert-datafile
+ * @since 2.4
+ */
+public class CoberturaConvertDatafileMojo
+    extends AbstractCoberturaMojo
+{
+    /**
+     * The converted data file.
+     * 
+     * @parameter expression="${cobertura.convertedDataFile}"
+     *            default-value="${project.build.directory}/cobertura/cobertura.cdat"
+     */
+    private File convertedDataFile;
+
+    /**
+     * The format of the converted data file, <code>compact</code> or <code>ser</code>.
+     * 
+     * @parameter expression="${cobertura.format}" default-value="compact"
+     */
+    private String format = CompactDataFile.FORMAT_COMPACT;
+
+    public void execute()
+        throws MojoExecutionException, MojoFailureException
+    {
+        if ( ( dataFile == null ) || !dataFile.exists() )
+        {
+            throw new MojoExecutionException( "Unable to convert nonexistent dataFile [" + dataFile + "]" );
+        }
+
+        if ( !CompactDataFile.FORMAT_COMPACT.equals( format ) && !CompactDataFile.FORMAT_SER.equals( format ) )
+        {
+            throw new MojoExecutionException( "Unknown data file format '" + format + "', expected '"
+                + CompactDataFile.FORMAT_COMPACT + "' or '" + CompactDataFile.FORMAT_SER + "'." );
+        }
+
+        foldShards( dataFile );
+        ProjectData projectData = CompactDataFile.loadCoverageData( dataFile );
+        if ( projectData == null )
+        {
+            throw new MojoExecutionException( "Unable to read dataFile [" + dataFile + "]" );
+        }
+
+        try
+        {
+            CompactDataFile.saveCoverageData( projectData, convertedDataFile, format );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write " + convertedDataFile, e );
+        }
+
+        getLog().info( "Converted " + dataFile + " to " + format + " data file " + convertedDataFile );
+    }
+}
@@ -19,17 +19,20 @@ package org.codehaus.mojo.cobertura;
  * under the License.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.Date;
 import java.util.Iterator;
 
-import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
 import net.sourceforge.cobertura.coveragedata.PackageData;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
 import net.sourceforge.cobertura.util.Header;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+import org.codehaus.mojo.cobertura.data.CoverageDumpWriter;
 
 /**
  * Cobertura Datafile Dump Mojo
@@ -41,6 +44,22 @@ import org.apache.maven.plugin.MojoFailureException;
 public class CoberturaDatafileDumpMojo
     extends AbstractCoberturaMojo
 {
+    /**
+     * The file receiving the dump. When set, the whole coverage data, down to every method and line, is written to
+     * this file instead of the project and package summary being logged.
+     * 
+     * @parameter expression="${cobertura.dumpFile}"
+     * @since 2.4
+     */
+    private File dumpFile;
+
+    /**
+     * The format of the <code>dumpFile</code>, <code>xml</code> or <code>json</code>.
+     * 
+     * @parameter expression="${cobertura.dumpFormat}" default-value="xml"
+     * @since 2.4
+     */
+    private String dumpFormat = CoverageDumpWriter.FORMAT_XML;
 
     public void execute()
         throws MojoExecutionException, MojoFailureException
@@ -50,7 +69,34 @@ public class CoberturaDatafileDumpMojo
             throw new MojoExecutionException( "Unable to dump nonexistent dataFile [" + dataFile + "]" );
         }
 
-        ProjectData projectData = CoverageDataFileHandler.loadCoverageData( dataFile );
+        if ( ( dumpFile != null ) && !CoverageDumpWriter.FORMAT_XML.equals( dumpFormat )
+            && !CoverageDumpWriter.FORMAT_JSON.equals( dumpFormat ) )
+        {
+            throw new MojoExecutionException( "Unknown dump format '" + dumpFormat + "', expected '"
+                + CoverageDumpWriter.FORMAT_XML + "' or '" + CoverageDumpWriter.FORMAT_JSON + "'." );
+        }
+
+        foldShards( dataFile );
+        ProjectData projectData = CompactDataFile.loadCoverageData( dataFile );
+        if ( projectData == null )
+        {
+            throw new MojoExecutionException( "Unable to read dataFile [" + dataFile + "]" );
+        }
+
+        if ( dumpFile != null )
+        {
+            try
+            {
+                CoverageDumpWriter.dump( projectData, dumpFile, dumpFormat );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to write " + dumpFile, e );
+            }
+            getLog().info( "Dumped " + dataFile + " to " + dumpFile );
+            return;
+        }
+
         NumberFormat percentage = NumberFormat.getPercentInstance();
         NumberFormat integer = NumberFormat.getIntegerInstance();
 
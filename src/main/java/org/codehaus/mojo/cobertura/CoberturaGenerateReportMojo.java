@@ -24,11 +24,13 @@ import java.io.File;
 import org.apache.maven.artifact.handler.ArtifactHandler;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.mojo.cobertura.tasks.GenerateReportTask;
+import org.codehaus.mojo.cobertura.tasks.ReportGenerator;
 import org.apache.maven.project.MavenProjectHelper;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.reporting.MavenReportException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -61,6 +63,34 @@ public class CoberturaGenerateReportMojo extends AbstractCoberturaMojo {
      * @required
      */
     private File outputDirectory;
+
+    /**
+     * Generate all report formats inside the Maven JVM from one load of the data file and one scan of the source
+     * directories, instead of running a Cobertura report task per format.
+     * 
+     * @parameter expression="${cobertura.report.singlePass}" default-value="false"
+     * @since 2.4
+     */
+    private boolean singlePass;
+
+    /**
+     * Number of threads rendering the HTML report. With more than one thread, the source files are split into shards of
+     * similar size whose pages are rendered concurrently. Implies <code>singlePass</code>.
+     * 
+     * @parameter expression="${cobertura.report.threads}" default-value="1"
+     * @since 2.4
+     */
+    private int threads = 1;
+
+    /**
+     * Render only the HTML source pages whose coverage or source changed since the last report, as recorded by a
+     * fingerprint of every page kept in the report directory. The index, package and summary pages are always
+     * rewritten. Implies <code>singlePass</code>.
+     * 
+     * @parameter expression="${cobertura.report.incremental}" default-value="false"
+     * @since 2.4
+     */
+    private boolean incremental;
     
     private void executeGenerateReportTask(GenerateReportTask task, String format) {
         task.setOutputFormat(format);
@@ -88,18 +118,35 @@ public class CoberturaGenerateReportMojo extends AbstractCoberturaMojo {
             if (!dataFile.exists()) {
                 getLog().info("Cannot perform generate-report, instrumentation not performed - skipping.");
             } else {
-                GenerateReportTask task = new GenerateReportTask();
-                setTaskDefaults(task);
-                task.setDataFile(dataFile);
-                task.setOutputDirectory(outputDirectory);
+                foldShards(dataFile);
+
                 List<String> allSourceRoots = new ArrayList<String>();
                 for (InheritProject ip : inheritProjects) {
                     allSourceRoots.add(ip.getRelativeSourcePath());
                 }
                 allSourceRoots.addAll(project.getCompileSourceRoots());
-                task.setCompileSourceRoots(allSourceRoots);
-                for (int i = 0; i < formats.length; i++) {
-                    executeGenerateReportTask(task, formats[i]);
+                if (singlePass || threads > 1 || incremental) {
+                    ReportGenerator generator = new ReportGenerator(dataFile, getLog());
+                    generator.setSourceDirectories(allSourceRoots);
+                    generator.setThreads(threads);
+                    generator.setIncremental(incremental);
+                    try {
+                        generator.generate(outputDirectory, Arrays.asList(formats));
+                        getLog().info("Cobertura Report generation was successful.");
+                    }
+                    catch (MojoExecutionException e) {
+                        getLog().error("Error in Cobertura Report generation: " + e.getMessage(), e);
+                    }
+                }
+                else {
+                    GenerateReportTask task = new GenerateReportTask();
+                    setTaskDefaults(task);
+                    task.setDataFile(dataFile);
+                    task.setOutputDirectory(outputDirectory);
+                    task.setCompileSourceRoots(allSourceRoots);
+                    for (int i = 0; i < formats.length; i++) {
+                        executeGenerateReportTask(task, formats[i]);
+                    }
                 }
                 
                 projectHelper.attachArtifact(project, "ser", "cobertura", dataFile); 
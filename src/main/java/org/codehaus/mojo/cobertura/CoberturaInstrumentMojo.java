@@ -22,6 +22,7 @@ package org.codehaus.mojo.cobertura;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
@@ -29,6 +30,9 @@ import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
 
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.ArtifactUtils;
 import org.apache.maven.artifact.factory.ArtifactFactory;
@@ -36,8 +40,15 @@ import org.apache.maven.artifact.handler.ArtifactHandler;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.mojo.cobertura.configuration.ConfigInstrumentation;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+import org.codehaus.mojo.cobertura.runtime.BooleanTouchCollector;
+import org.codehaus.mojo.cobertura.runtime.StripedTouchCollector;
+import org.codehaus.mojo.cobertura.tasks.ClassStager;
 import org.codehaus.mojo.cobertura.tasks.InstrumentTask;
+import org.codehaus.mojo.cobertura.tasks.InstrumentationCache;
+import org.codehaus.mojo.cobertura.tasks.InstrumentationManifest;
 import org.codehaus.mojo.cobertura.tasks.MergeTask;
+import org.codehaus.mojo.cobertura.tasks.TouchCollectorRewriter;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
 
@@ -46,8 +57,13 @@ import org.codehaus.plexus.util.IOUtil;
  * 
  * @author <a href="mailto:joakim@erdfelt.com">Joakim Erdfelt</a>
  * @goal instrument
+ * @phase process-classes
  */
 public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
+    private static final String PROBE_MODE_COUNTS = "counts";
+
+    private static final String PROBE_MODE_BOOLEAN = "boolean";
+
     /**
      * Artifact factory.
      * 
@@ -55,10 +71,138 @@ public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
      */
     private ArtifactFactory factory;
 
+    /**
+     * Only copy and instrument the classes whose content changed since the last instrumentation. The content hashes
+     * are kept in <code>instrumentation.manifest</code> next to the data file, and everything is instrumented again
+     * when the data file is missing, or the instrumentation configuration or the collector of the hits, chosen by
+     * <code>stripedCounters</code>, <code>probeMode</code> and <code>perTestCoverage</code>, changed.
+     *
+     * @parameter expression="${cobertura.incremental}" default-value="false"
+     * @since 2.4
+     */
+    private boolean incremental;
+
+    /**
+     * Number of threads instrumenting classes concurrently. With more than one thread, the classes are split into
+     * shards of similar size that are instrumented in parallel into their own data files, which are then merged into
+     * the data file.
+     *
+     * @parameter expression="${cobertura.threads}" default-value="1"
+     * @since 2.4
+     */
+    private int threads = 1;
+
+    /**
+     * Only copy the classes whose size or modification time differ from the staged copy, instead of copying the whole
+     * classes directory on every build. Files that are not instrumented, such as resources and excluded classes, are
+     * hard-linked into the instrumentation directory where the file system supports it.
+     *
+     * @parameter expression="${cobertura.incrementalStaging}" default-value="false"
+     * @since 2.4
+     */
+    private boolean incrementalStaging;
+
+    /**
+     * Number of artifacts of the inherited projects that are resolved and copied at the same time. Set it to 1 to
+     * resolve them one after the other.
+     *
+     * @parameter expression="${cobertura.inheritThreads}" default-value="4"
+     * @since 2.4
+     */
+    private int inheritThreads = 4;
+
+    /**
+     * Hard-link the data files of the inherited projects from the local repository instead of copying them, and leave
+     * the artifacts and data files alone when the linked or copied file is still current. The main artifacts are
+     * always copied, since they are instrumented in place. Data files on another file system than the build directory
+     * are copied.
+     *
+     * @parameter expression="${cobertura.linkInheritedArtifacts}" default-value="false"
+     * @since 2.4
+     */
+    private boolean linkInheritedArtifacts;
+
+    /**
+     * Directory of a cache of instrumented classes, which can be shared by all the projects and builds of a machine.
+     * Classes are cached under the hash of their content, the Cobertura and plugin versions and the ignore regexes,
+     * and a cached class is copied instead of being instrumented again. No cache is used when it is not set.
+     *
+     * @parameter expression="${cobertura.instrumentationCache}"
+     * @since 2.4
+     */
+    private File instrumentationCache;
+
+    /**
+     * Size, in megabytes, over which the least recently used classes are deleted from the instrumentation cache.
+     *
+     * @parameter expression="${cobertura.instrumentationCacheSize}" default-value="512"
+     * @since 2.4
+     */
+    private int instrumentationCacheSize = 512;
+
+    /**
+     * Count the hits of the tests in per-thread counters that are only summed when the coverage data is saved,
+     * instead of the shared counters of Cobertura, which heavily multi-threaded tests keep fighting over. The
+     * instrumented classes call the counters of the plugin instead, which are put on the test classpath.
+     *
+     * @parameter expression="${cobertura.stripedCounters}" default-value="false"
+     * @since 2.4
+     */
+    private boolean stripedCounters;
+
+    /**
+     * Have every test JVM write its hits to a shard of its own next to the data file, instead of locking, reading and
+     * rewriting the whole data file when it exits. The shards are folded into the data file by the goals reading it.
+     * Implies <code>stripedCounters</code>, whose counters write the shards, unless <code>probeMode</code> is
+     * <code>boolean</code>.
+     *
+     * @parameter expression="${cobertura.coverageShards}" default-value="false"
+     * @since 2.4
+     */
+    private boolean coverageShards;
+
+    /**
+     * How the tests record the coverage: <code>counts</code> counts every hit of every line and branch,
+     * <code>boolean</code> only records whether each was hit, in bits set once, which costs much less at runtime.
+     * The reports then show one hit per test JVM instead of the counts. Cannot be combined with
+     * <code>stripedCounters</code>.
+     *
+     * @parameter expression="${cobertura.probeMode}" default-value="counts"
+     * @since 2.4
+     */
+    private String probeMode = PROBE_MODE_COUNTS;
+
+    /**
+     * Record which lines and branches every test method hits, in a file next to the data file, for test impact
+     * analysis. Implies the <code>boolean</code> probe mode. The <code>instrument-tests</code> goal, which the
+     * <code>cobertura</code> goal runs, rewrites the test methods to mark where each test starts and ends.
+     *
+     * @parameter expression="${cobertura.perTestCoverage}" default-value="false"
+     * @since 2.4
+     */
+    private boolean perTestCoverage;
+
     /**
      * build up a command line from the parameters and run Cobertura to instrument the code.
      */
     public void execute() throws MojoExecutionException {
+        boolean booleanProbes = perTestCoverage || PROBE_MODE_BOOLEAN.equals(probeMode);
+        if (!PROBE_MODE_BOOLEAN.equals(probeMode) && !PROBE_MODE_COUNTS.equals(probeMode)) {
+            throw new MojoExecutionException("Unknown probe mode '" + probeMode + "', expected '" + PROBE_MODE_COUNTS
+                + "' or '" + PROBE_MODE_BOOLEAN + "'.");
+        }
+        if (booleanProbes && stripedCounters) {
+            throw new MojoExecutionException("The striped counters count hits, they cannot be used with boolean "
+                + "probes.");
+        }
+        if (coverageShards && !booleanProbes) {
+            // only the collectors of the plugin write shards
+            stripedCounters = true;
+        }
+        // the collector the instrumented classes are rewritten to call, if not the one of Cobertura
+        Class collector = booleanProbes ? BooleanTouchCollector.class
+                        : stripedCounters ? StripedTouchCollector.class : null;
+
         ArtifactHandler artifactHandler = project.getArtifact().getArtifactHandler();
         if (!"java".equals(artifactHandler.getLanguage())) {
             getLog().info(
@@ -87,17 +231,57 @@ public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
                 outputDirectory.mkdirs();
             }
 
+            // Cobertura requires an existing dir
+            if (!dataFile.getParentFile().exists()) {
+                dataFile.getParentFile().mkdirs();
+            }
+            // the shards of the previous tests belong to the previous instrumentation
+            foldShards(dataFile);
+
+            instrumentation.setBasedir(instrumentedDirectory);
+
+            InstrumentTask task = new InstrumentTask();
+            setTaskDefaults(task);
+            task.setConfig(instrumentation);
+            task.setDestinationDir(instrumentedDirectory);
+            task.setDataFile(dataFile);
+            task.setThreads(threads);
+            task.setMergeMode(mergeMode);
+            if (instrumentationCache != null) {
+                task.setCache(new InstrumentationCache(instrumentationCache, instrumentationCacheSize * 1024L * 1024L,
+                                                       instrumentation.getIgnores()));
+            }
+
+            InstrumentationManifest manifest = null;
+            ClassStager stager = new ClassStager(incrementalStaging ? task.getFilenames(outputDirectory) : null);
+
             // Copy all of the classes into the instrumentation basedir.
             try {
-                FileUtils.copyDirectoryStructure(outputDirectory, instrumentedDirectory);
+                if (incremental) {
+                    manifest = new InstrumentationManifest(new File(dataFile.getParentFile(),
+                                                                    "instrumentation.manifest"));
+                    // classes rewritten for another collector must be instrumented again
+                    manifest.load(instrumentation.toString() + " collector="
+                        + (collector != null ? collector.getName() : "cobertura"));
+                    if (!dataFile.exists()) {
+                        manifest.clear();
+                    }
+                    manifest.stage(outputDirectory, instrumentedDirectory, stager);
+                    removeStaleClassData(manifest);
+                }
+                else if (incrementalStaging) {
+                    stager.stage(outputDirectory, instrumentedDirectory);
+                }
+                else {
+                    FileUtils.copyDirectoryStructure(outputDirectory, instrumentedDirectory);
+                }
             }
             catch (IOException e) {
                 throw new MojoExecutionException("Unable to prepare instrumentation directory.", e);
             }
-            
-            // Cobertura requires an existing dir
-            if (!dataFile.getParentFile().exists()) {
-                dataFile.getParentFile().mkdirs();
+
+            if (incrementalStaging) {
+                getLog().info(stager.getSummary());
             }
 
             List<File> dataFilesToMerge = new ArrayList<File>();
@@ -108,40 +292,53 @@ public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
                     ip.setArtifactRepository(artifactRepository);
                     ip.setArtifactResolver(artifactResolver);
                     ip.setArtifactFactory(artifactFactory);
-                    
-                    // Copy the artifact to the instrumentation directory,
-                    // and then copy the data file and record it.
-                    ip.copyMainArtifact(project, instrumentedDirectory);
-                    
-                    ip.copySerArtifact(project, dataFile.getParentFile());
-                    
-                    dataFilesToMerge.add(new File(dataFile.getParentFile(),
-                                                  InheritProject.getFormattedFileName(ip.getSerArtifact(project), false)));
+                    ip.setLinkArtifacts(linkInheritedArtifacts);
                 }
+
+                // Copy the artifacts to the instrumentation directory,
+                // and the data files next to ours, and record them.
+                dataFilesToMerge.addAll(new InheritProjectCopier(inheritThreads).copy(inheritProjects, project,
+                                                                                      instrumentedDirectory,
+                                                                                      dataFile.getParentFile()));
             }
             
             // If we've got datafiles from inherited projects to merge...
             if (dataFilesToMerge.size() > 0) {
                 MergeTask mTask = new MergeTask();
                 setTaskDefaults(mTask);
+                mTask.setMergeMode(mergeMode);
                 mTask.setSourceDataFiles(dataFilesToMerge);
                 mTask.setDataFile(dataFile);
                 mTask.execute();
             }
                     
-            
-            instrumentation.setBasedir(instrumentedDirectory);
 
             // Execute the instrumentation task.
-            InstrumentTask task = new InstrumentTask();
-            setTaskDefaults(task);
-            task.setConfig(instrumentation);
-            task.setDestinationDir(instrumentedDirectory);
-            task.setDataFile(dataFile);
-
+            task.setManifest(manifest);
             task.execute();
 
-            addCoberturaDependenciesToTestClasspath();
+            if (collector != null) {
+                try {
+                    // only the classes just instrumented or restored from the cache still call the TouchCollector
+                    int rewritten = TouchCollectorRewriter.rewrite(instrumentedDirectory,
+                                                                   task.getInstrumentedFilenames(), collector);
+                    getLog().debug("Rewrote " + rewritten + " classes to use the " + collector.getName() + ".");
+                }
+                catch (IOException e) {
+                    throw new MojoExecutionException("Unable to rewrite the instrumented classes.", e);
+                }
+            }
+
+            if (manifest != null) {
+                try {
+                    manifest.save();
+                }
+                catch (IOException e) {
+                    throw new MojoExecutionException("Unable to write " + manifest.getFile(), e);
+                }
+            }
+
+            addCoberturaDependenciesToTestClasspath(stripedCounters || booleanProbes);
 
             // Old, Broken way
             System.setProperty("net.sourceforge.cobertura.datafile", dataFile.getPath());
@@ -153,6 +350,9 @@ public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
              */
             Properties props = new Properties();
             props.setProperty("net.sourceforge.cobertura.datafile", dataFile.getPath());
+            if (coverageShards) {
+                props.setProperty(StripedTouchCollector.SHARDS_PROPERTY, "true");
+            }
 
             File coberturaPropertiesFile = new File(instrumentedDirectory, "cobertura.properties");
             FileOutputStream fos = null;
@@ -175,7 +375,59 @@ public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
         }
     }
 
-    private void addCoberturaDependenciesToTestClasspath() throws MojoExecutionException {
+    /**
+     * Drop the coverage data of the classes that changed or disappeared since the last instrumentation, so that the
+     * lines of their old versions do not linger in the data file.
+     *
+     * @param manifest the manifest of the staged classes.
+     */
+    private void removeStaleClassData(InstrumentationManifest manifest) throws MojoExecutionException {
+        Set<String> staleClasses = new LinkedHashSet<String>();
+        addClassNames(manifest.getChangedFiles(), staleClasses);
+        addClassNames(manifest.getRemovedFiles(), staleClasses);
+
+        if (staleClasses.isEmpty() || !dataFile.exists()) {
+            return;
+        }
+
+        String format = CompactDataFile.formatOf(dataFile);
+        ProjectData projectData = CompactDataFile.loadCoverageData(dataFile);
+        if (projectData == null) {
+            throw new MojoExecutionException("Unable to read the Cobertura data file " + dataFile + ".");
+        }
+
+        ProjectData keptData = new ProjectData();
+        int removed = 0;
+        for (Iterator it = projectData.getClasses().iterator(); it.hasNext();) {
+            ClassData classData = (ClassData) it.next();
+            if (staleClasses.contains(classData.getName())) {
+                removed++;
+            }
+            else {
+                keptData.addClassData(classData);
+            }
+        }
+
+        if (removed > 0) {
+            getLog().debug("Removing the coverage data of " + removed + " changed classes.");
+            try {
+                CompactDataFile.saveCoverageData(keptData, dataFile, format);
+            }
+            catch (IOException e) {
+                throw new MojoExecutionException("Unable to write the Cobertura data file " + dataFile + ".", e);
+            }
+        }
+    }
+
+    private static void addClassNames(Set<String> files, Set<String> classNames) {
+        for (String file : files) {
+            if (file.endsWith(".class")) {
+                classNames.add(file.substring(0, file.length() - ".class".length()).replace('/', '.'));
+            }
+        }
+    }
+
+    private void addCoberturaDependenciesToTestClasspath(boolean pluginRuntime) throws MojoExecutionException {
         Map pluginArtifactMap = ArtifactUtils.artifactMapByVersionlessId(pluginClasspathList);
         Artifact coberturaArtifact = (Artifact) pluginArtifactMap.get("net.sourceforge.cobertura:cobertura-runtime");
 
@@ -190,10 +442,31 @@ public class CoberturaInstrumentMojo extends AbstractCoberturaMojo {
         if (this.project.getDependencyArtifacts() != null) {
             Set set = new LinkedHashSet(this.project.getDependencyArtifacts());
             set.add(coberturaArtifact);
+            if (pluginRuntime) {
+                set.add(createStripedRuntimeArtifact(coberturaArtifact.getVersion()));
+            }
             this.project.setDependencyArtifacts(set);
         }
     }
 
+    /**
+     * Write the collectors of the plugin into a jar of the build directory, and return it as a system dependency.
+     */
+    private Artifact createStripedRuntimeArtifact(String version) throws MojoExecutionException {
+        File jar = new File(project.getBuild().getDirectory(), "cobertura/cobertura-striped-runtime.jar");
+        try {
+            TouchCollectorRewriter.writeRuntimeJar(jar);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to write " + jar, e);
+        }
+
+        Artifact artifact = factory.createArtifact("org.codehaus.mojo", "cobertura-striped-runtime", version,
+                                                   Artifact.SCOPE_SYSTEM, "jar");
+        artifact.setFile(jar);
+        return artifact;
+    }
+
     private Artifact artifactScopeToTest(Artifact artifact) {
         return factory.createArtifact(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion(),
                                        Artifact.SCOPE_TEST, artifact.getType());
@@ -0,0 +1,96 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.data.TestCoverageMaps;
+import org.codehaus.mojo.cobertura.tasks.ClassStager;
+import org.codehaus.mojo.cobertura.tasks.TestMethodRewriter;
+import org.codehaus.mojo.cobertura.tasks.TestSelector;
+
+/**
+ * Copy the compiled test classes and rewrite their test methods to record a coverage map per test.
+ * <p>
+ * Only does its work when <code>perTestCoverage</code> is set, which the <code>instrument</code> goal must share. The
+ * tests then run from the copy, so the compiled test classes still run without the plugin. The maps the previous test
+ * runs appended are compacted first, keeping the latest map of every test. The classes the maps are recorded against
+ * are only remembered by <code>commit-test-maps</code>, once the tests passed.
+ * </p>
+ * 
+ * @goal instrument-tests
+ * @phase process-test-classes
+ * @since 2.4
+ */
+public class CoberturaInstrumentTestsMojo extends AbstractCoberturaMojo {
+    /**
+     * Record which lines and branches every test method hits, in a file next to the data file.
+     *
+     * @parameter expression="${cobertura.perTestCoverage}" default-value="false"
+     */
+    private boolean perTestCoverage;
+
+    public void execute() throws MojoExecutionException {
+        if (!perTestCoverage) {
+            return;
+        }
+        if (!"java".equals(project.getArtifact().getArtifactHandler().getLanguage())) {
+            getLog().info(
+                "Not executing cobertura:instrument-tests as the project is not a Java classpath-capable package");
+            return;
+        }
+
+        File testClassesDirectory = new File(project.getBuild().getTestOutputDirectory());
+        if (!testClassesDirectory.isDirectory()) {
+            getLog().info("No test classes to instrument.");
+            return;
+        }
+        File instrumentedDirectory = new File(project.getBuild().getDirectory(), "generated-test-classes/cobertura");
+        try {
+            // a new test run starts, only the latest map of each test is kept from the previous ones
+            File mapsFile = TestCoverageMaps.file(dataFile);
+            if (TestCoverageMaps.compact(mapsFile)) {
+                getLog().debug("Compacted the coverage maps of the tests in " + mapsFile + ".");
+            }
+
+            // the classes the coverage maps are recorded against, for the select-tests goal once the tests passed
+            TestSelector.writeBaseline(TestSelector.pendingBaselineFile(dataFile), getClassesDirectory(),
+                                       testClassesDirectory);
+
+            ClassStager stager = new ClassStager(null);
+            // the tests run from the copy, a deleted or renamed test must not linger there
+            int removed = stager.removeStale(testClassesDirectory, instrumentedDirectory);
+            if (removed > 0) {
+                getLog().debug("Removed " + removed + " test classes that no longer exist.");
+            }
+            stager.stage(testClassesDirectory, instrumentedDirectory);
+            int rewritten = TestMethodRewriter.rewrite(instrumentedDirectory);
+            getLog().info("Rewrote " + rewritten + " test classes to record the coverage of each test.");
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to instrument the test classes.", e);
+        }
+
+        // Set the rewritten classes to be the new test output directory (for the tests to pick up)
+        project.getBuild().setTestOutputDirectory(instrumentedDirectory.getPath());
+    }
+}
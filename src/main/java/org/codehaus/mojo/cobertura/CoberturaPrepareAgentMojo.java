@@ -0,0 +1,191 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.agent.CoberturaAgent;
+import org.codehaus.mojo.cobertura.configuration.ConfigInstrumentation;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Prepare a Java agent instrumenting the classes of the project when the tests load them, instead of instrumenting
+ * all of them before the tests run.
+ * <p>
+ * The goal writes the agent jar and its configuration, and sets a property, <code>argLine</code> by default, to the
+ * <code>-javaagent</code> option of the test JVM. The classes are neither copied nor rewritten on disk, and the
+ * classes no test loads are never instrumented. Their lines are read from the classes directory when the test JVM
+ * exits, so they are still reported, as uncovered. The surefire and failsafe plugins pick the option up
+ * unless their <code>argLine</code> is configured, in which case it should include <code>${argLine}</code>.
+ * </p>
+ *
+ * @goal prepare-agent
+ * @phase process-classes
+ * @since 2.4
+ */
+public class CoberturaPrepareAgentMojo
+    extends AbstractCoberturaMojo
+{
+    /**
+     * The plugin dependencies on the class path of the agent, as <code>groupId:artifactId</code>.
+     */
+    private static final String[] AGENT_DEPENDENCIES =
+        { "net.sourceforge.cobertura:cobertura", "asm:asm", "asm:asm-tree", "oro:oro", "log4j:log4j" };
+
+    /**
+     * The property set to the <code>-javaagent</code> option. Its former value, if any, is kept after the option.
+     *
+     * @parameter expression="${cobertura.agent.propertyName}" default-value="argLine"
+     */
+    private String propertyName;
+
+    /**
+     * The directory receiving the agent jar and its configuration.
+     *
+     * @parameter default-value="${project.build.directory}/cobertura"
+     */
+    private File agentDirectory;
+
+    /**
+     * Count the hits of the tests in per-thread counters that are only summed when the coverage data is saved,
+     * instead of the shared counters of Cobertura.
+     *
+     * @parameter expression="${cobertura.stripedCounters}" default-value="false"
+     */
+    private boolean stripedCounters;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        if ( !"java".equals( project.getArtifact().getArtifactHandler().getLanguage() ) )
+        {
+            getLog().info(
+                "Not executing cobertura:prepare-agent as the project is not a Java classpath-capable package" );
+            return;
+        }
+
+        ConfigInstrumentation config = ( instrumentation != null ) ? instrumentation : new ConfigInstrumentation();
+        if ( config.getIncludes().isEmpty() )
+        {
+            config.addInclude( "**/*.class" );
+        }
+
+        // the coverage of the previous run must not add up with this one
+        dataFile.delete();
+        dataFile.getParentFile().mkdirs();
+
+        agentDirectory.mkdirs();
+        File agentJar = new File( agentDirectory, "cobertura-agent.jar" );
+        File agentProperties = new File( agentDirectory, "cobertura-agent.properties" );
+
+        Properties properties = new Properties();
+        properties.setProperty( CoberturaAgent.DATA_FILE, dataFile.getAbsolutePath() );
+        properties.setProperty( CoberturaAgent.CLASSES_DIRECTORY,
+                                new File( project.getBuild().getOutputDirectory() ).getAbsolutePath() );
+        properties.setProperty( CoberturaAgent.INCLUDES, StringUtils.join( config.getIncludes().iterator(), "," ) );
+        properties.setProperty( CoberturaAgent.EXCLUDES, StringUtils.join( config.getExcludes().iterator(), "," ) );
+        properties.setProperty( CoberturaAgent.STRIPED_COUNTERS, String.valueOf( stripedCounters ) );
+        int i = 0;
+        for ( Iterator it = config.getIgnores().iterator(); it.hasNext(); i++ )
+        {
+            properties.setProperty( CoberturaAgent.IGNORE + i, (String) it.next() );
+        }
+
+        try
+        {
+            store( properties, agentProperties );
+            writeAgentJar( agentJar );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write the Cobertura agent to " + agentDirectory, e );
+        }
+
+        String option = quote( "-javaagent:" + agentJar.getAbsolutePath() + "=" + agentProperties.getAbsolutePath() );
+        String former = project.getProperties().getProperty( propertyName );
+        String value = StringUtils.isEmpty( former ) ? option : option + " " + former;
+        project.getProperties().setProperty( propertyName, value );
+        getLog().info( propertyName + " set to " + value );
+    }
+
+    /**
+     * Write a jar whose manifest declares the agent and puts the plugin and the Cobertura instrumenter on its class
+     * path.
+     */
+    private void writeAgentJar( File agentJar )
+        throws IOException, MojoExecutionException
+    {
+        StringBuffer classPath = new StringBuffer();
+        classPath.append( CoberturaAgent.class.getProtectionDomain().getCodeSource().getLocation().toExternalForm() );
+
+        Map artifacts = ArtifactUtils.artifactMapByVersionlessId( pluginClasspathList );
+        for ( int i = 0; i < AGENT_DEPENDENCIES.length; i++ )
+        {
+            Artifact artifact = (Artifact) artifacts.get( AGENT_DEPENDENCIES[i] );
+            if ( artifact == null || artifact.getFile() == null )
+            {
+                throw new MojoExecutionException( "Couldn't find '" + AGENT_DEPENDENCIES[i]
+                    + "' artifact in plugin dependencies" );
+            }
+            classPath.append( ' ' ).append( artifact.getFile().toURI().toURL().toExternalForm() );
+        }
+
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Premain-Class", CoberturaAgent.class.getName() );
+        attributes.put( Attributes.Name.CLASS_PATH, classPath.toString() );
+
+        OutputStream out = new JarOutputStream( new FileOutputStream( agentJar ), manifest );
+        out.close();
+    }
+
+    private static void store( Properties properties, File file )
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            properties.store( out, "Generated by cobertura-maven-plugin, do not edit." );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+    private static String quote( String option )
+    {
+        return option.indexOf( ' ' ) >= 0 ? '"' + option + '"' : option;
+    }
+}
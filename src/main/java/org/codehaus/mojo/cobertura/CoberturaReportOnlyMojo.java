@@ -0,0 +1,35 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Generates a Cobertura Report from the data file of the tests of the main build, without running them again in a
+ * forked lifecycle.
+ * <p>
+ * Bind the <code>instrument</code> goal in the build, so that the tests run once against the instrumented classes,
+ * and this report renders the data file they wrote. It takes the same parameters as the <code>cobertura</code> report.
+ * </p>
+ * 
+ * @goal report-only
+ * @since 2.4
+ */
+public class CoberturaReportOnlyMojo
+    extends AbstractCoberturaReportMojo {
+}
@@ -0,0 +1,165 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.data.TestCoverageMaps;
+import org.codehaus.mojo.cobertura.tasks.TestSelector;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Select the test classes affected by the classes changed since the coverage maps of the tests were recorded, and
+ * have Surefire run only those.
+ * <p>
+ * The coverage maps are recorded by a previous build run with <code>perTestCoverage</code>. The changed classes are
+ * found by comparing the content hashes of the compiled classes with those the maps were recorded against, or given
+ * as <code>changedClasses</code>, from a version control diff for instance. The tests hitting each changed class are
+ * looked up in an index of the maps. The selected test classes are written to an include file for Surefire, and set
+ * as the <code>test</code> property. When the maps cannot tell which tests are affected, every test runs. The goal must run before
+ * <code>instrument-tests</code>, which records new maps, and <code>commit-test-maps</code> must run after the tests,
+ * so that the classes are compared with those the last passing tests ran against.
+ * </p>
+ * 
+ * @goal select-tests
+ * @phase process-test-classes
+ * @since 2.4
+ */
+public class CoberturaSelectTestsMojo extends AbstractCoberturaMojo {
+    /**
+     * Comma separated names of the changed classes, replacing the comparison of the compiled classes with those the
+     * coverage maps were recorded against.
+     *
+     * @parameter expression="${cobertura.changedClasses}"
+     */
+    private String changedClasses;
+
+    /**
+     * The file receiving the include patterns of the selected test classes, one per line, for the
+     * <code>includesFile</code> of Surefire.
+     *
+     * @parameter expression="${cobertura.selectedTestsFile}"
+     *            default-value="${project.build.directory}/cobertura/selected-tests.txt"
+     */
+    private File selectedTestsFile;
+
+    /**
+     * The project property set to the comma separated selected test classes.
+     *
+     * @parameter expression="${cobertura.selectTests.propertyName}" default-value="test"
+     */
+    private String propertyName;
+
+    public void execute() throws MojoExecutionException {
+        if (!"java".equals(project.getArtifact().getArtifactHandler().getLanguage())) {
+            getLog().info(
+                "Not executing cobertura:select-tests as the project is not a Java classpath-capable package");
+            return;
+        }
+
+        File mapsFile = TestCoverageMaps.file(dataFile);
+        File baselineFile = TestSelector.baselineFile(dataFile);
+        if (!mapsFile.isFile() || !baselineFile.isFile()) {
+            getLog().info("No coverage maps of the tests in " + mapsFile.getParent() + ", running every test.");
+            return;
+        }
+
+        try {
+            TestCoverageMaps maps = TestCoverageMaps.load(mapsFile);
+            TestSelector selector = new TestSelector(maps, baselineFile);
+
+            Set<String> changed;
+            if (StringUtils.isNotEmpty(changedClasses)) {
+                changed = new TreeSet<String>(Arrays.asList(StringUtils.split(changedClasses, ", \t\n")));
+            }
+            else {
+                changed = selector.getChangedClasses(getClassesDirectory());
+            }
+            Set<String> selected = selector.selectTestClasses(changed);
+
+            Set<String> knownTestClasses = new TreeSet<String>();
+            for (String test : maps.getTests()) {
+                knownTestClasses.add(test.substring(0, test.indexOf('#') >= 0 ? test.indexOf('#') : test.length()));
+            }
+            File testClassesDirectory = new File(project.getBuild().getTestOutputDirectory());
+            for (String testClass : selector.getChangedTestClasses(testClassesDirectory)) {
+                int nested = testClass.indexOf('$');
+                String outerClass = nested >= 0 ? testClass.substring(0, nested) : testClass;
+                if (knownTestClasses.contains(outerClass) || isTestClassName(outerClass)) {
+                    selected.add(outerClass);
+                }
+                else {
+                    // a changed helper of the tests, which the maps know nothing about
+                    getLog().info("Test class " + testClass + " changed, running every test.");
+                    return;
+                }
+            }
+
+            getLog().info("Selected " + selected.size() + " of " + knownTestClasses.size()
+                + " test classes, affected by " + changed.size() + " changed classes.");
+            if (getLog().isDebugEnabled()) {
+                getLog().debug("Changed classes: " + changed);
+                getLog().debug("Selected test classes: " + selected);
+            }
+            write(selected);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to select the tests from the coverage maps in " + mapsFile, e);
+        }
+    }
+
+    private void write(Set<String> selected) throws IOException {
+        StringBuffer patterns = new StringBuffer();
+        StringBuffer tests = new StringBuffer();
+        for (Iterator<String> it = selected.iterator(); it.hasNext();) {
+            String path = it.next().replace('.', '/');
+            patterns.append(path).append(".java\n");
+            tests.append(path);
+            if (it.hasNext()) {
+                tests.append(',');
+            }
+        }
+        selectedTestsFile.getParentFile().mkdirs();
+        FileUtils.fileWrite(selectedTestsFile.getPath(), "UTF-8", patterns.toString());
+
+        if (selected.isEmpty()) {
+            getLog().info("No test is affected, skipping the tests.");
+            project.getProperties().setProperty("skipTests", "true");
+        }
+        else {
+            project.getProperties().setProperty(propertyName, tests.toString());
+        }
+    }
+
+    /**
+     * @return whether Surefire runs the class by default.
+     */
+    private static boolean isTestClassName(String className) {
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        return simpleName.startsWith("Test") || simpleName.endsWith("Test") || simpleName.endsWith("TestCase");
+    }
+}
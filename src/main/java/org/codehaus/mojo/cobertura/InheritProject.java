@@ -32,6 +32,7 @@ import org.apache.maven.project.MavenProject;
 import org.apache.maven.artifact.versioning.InvalidVersionSpecificationException;
 import org.apache.maven.artifact.versioning.VersionRange;
 import org.apache.maven.plugin.logging.Log;
+import org.codehaus.mojo.cobertura.tasks.ClassStager;
 
 import java.io.File;
 import java.util.Collections;
@@ -87,6 +88,8 @@ public class InheritProject {
 
     private ArtifactFactory artifactFactory;
 
+    private boolean linkArtifacts;
+
     public InheritProject() {}
     
     public InheritProject(String groupId, String artifactId, String version, String type,
@@ -114,6 +117,14 @@ public class InheritProject {
         this.artifactFactory = af;
     }
 
+    /**
+     * @param linkArtifacts true to hard-link the resolved data files instead of copying them, and to leave the
+     *                      artifacts alone when the destination is already current. Main artifacts are always copied.
+     */
+    public void setLinkArtifacts(boolean linkArtifacts) {
+        this.linkArtifacts = linkArtifacts;
+    }
+
     private String filterEmptyString(String in) {
         if (in == null || in.equals("")) {
             return null;
@@ -225,14 +236,15 @@ public class InheritProject {
      *
      * @param project       This actual project, not the inherited one.
      * @param outputDir     The directory to copy to.
-     * @return
+     * @return              The copied file.
      *
      * @throws MojoExecutionException  Failed to resolve artifact, or could not copy artifact.
      */
-    public void copyMainArtifact(final MavenProject project, final File outputDir) throws MojoExecutionException {
+    public File copyMainArtifact(final MavenProject project, final File outputDir) throws MojoExecutionException {
         Artifact mainArtifact = getMainArtifact(project);
 
-        copyArtifact(mainArtifact, outputDir, false);
+        // The main artifact is instrumented in place, so it is never linked to the local repository.
+        return copyArtifact(mainArtifact, outputDir, false, false);
     }
 
     /**
@@ -240,14 +252,14 @@ public class InheritProject {
      *
      * @param project       This actual project, not the inherited one.
      * @param outputDir     The directory to copy to.
-     * @return
+     * @return              The copied file.
      *
      * @throws MojoExecutionException  Failed to resolve artifact, or could not copy artifact.
      */
-    public void copySerArtifact(final MavenProject project, final File outputDir) throws MojoExecutionException {
+    public File copySerArtifact(final MavenProject project, final File outputDir) throws MojoExecutionException {
         Artifact serArtifact = getSerArtifact(project);
 
-        copyArtifact(serArtifact, outputDir, false);
+        return copyArtifact(serArtifact, outputDir, false, linkArtifacts);
     }
 
 
@@ -339,19 +351,24 @@ public class InheritProject {
      * @param removeVersion
      *            specifies if the version should be removed from the file name
      *            when copying.
+     * @param link
+     *            true to hard-link the artifact when possible.
      * 
+     * @return the copied file.
      * @throws MojoExecutionException
      *             with a message if an error occurs.
      * 
      */
-    private void copyArtifact(Artifact artifact, File destDir, boolean removeVersion) throws MojoExecutionException {
+    private File copyArtifact(Artifact artifact, File destDir, boolean removeVersion, boolean link) throws MojoExecutionException {
         assert artifact != null;
 
         String destFileName = getFormattedFileName(artifact, false);
         
         File destFile = new File(destDir, destFileName);
 
-        copyFile(artifact.getFile(), destFile);
+        copyFile(artifact.getFile(), destFile, link);
+
+        return destFile;
     }
 
     /**
@@ -359,20 +376,40 @@ public class InheritProject {
      *
      * @param artifact represents the file to copy.
      * @param destFile file name of destination file.
+     * @param link true to hard-link the file when possible. Only files that are never written to may be linked.
      *
      * @throws MojoExecutionException with a message if an
      *             error occurs.
      */
-    private void copyFile(File artifact, File destFile) throws MojoExecutionException {
+    void copyFile(File artifact, File destFile, boolean link) throws MojoExecutionException {
         try {
-            FileUtils.copyFile(artifact, destFile);
-            
+            if (!linkArtifacts) {
+                FileUtils.copyFile(artifact, destFile);
+            }
+            else if (ClassStager.isCurrent(artifact, destFile)) {
+                return;
+            }
+            else if (!link || !link(artifact, destFile)) {
+                // falls back to a copy across file systems
+                ClassStager.copy(artifact, destFile);
+            }
         }
         catch (Exception e) {
             throw new MojoExecutionException("Error copying artifact from " + artifact + " to " + destFile, e);
         }
     }
 
+    /**
+     * Hard-links a file.
+     *
+     * @param source the existing file.
+     * @param dest the link to create.
+     * @return false if the file could not be linked, for instance because it is on another file system.
+     */
+    boolean link(File source, File dest) {
+        return ClassStager.link(source, dest);
+    }
+
     
     /**
      * Builds the file name. If removeVersion is set, then the file name must be
@@ -0,0 +1,113 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Resolves and copies the main and data file artifacts of inherited projects.
+ * <p>
+ * Every artifact is resolved and copied by its own task, so that the network and disk latency of the inherited
+ * projects overlap instead of adding up. The copied data files are returned in the order of the inherited projects,
+ * so that the merge does not depend on which download finished first.
+ * </p>
+ */
+public class InheritProjectCopier {
+    private final int threads;
+
+    /**
+     * @param threads the number of artifacts resolved and copied at the same time.
+     */
+    public InheritProjectCopier(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Copy the main artifacts of the inherited projects to a directory, and their data files to another.
+     *
+     * @param inheritProjects the inherited projects, ready to resolve artifacts.
+     * @param project         the project inheriting them.
+     * @param mainDirectory   the directory receiving the main artifacts.
+     * @param serDirectory    the directory receiving the data files.
+     * @return the copied data files, in the order of the inherited projects.
+     * @throws MojoExecutionException if an artifact cannot be resolved or copied.
+     */
+    public List<File> copy(List<InheritProject> inheritProjects, final MavenProject project, final File mainDirectory,
+                           final File serDirectory) throws MojoExecutionException {
+        List<File> dataFiles = new ArrayList<File>();
+        if (inheritProjects.isEmpty()) {
+            return dataFiles;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, 2 * inheritProjects.size()));
+        try {
+            List<Future<File>> mainCopies = new ArrayList<Future<File>>();
+            List<Future<File>> serCopies = new ArrayList<Future<File>>();
+            for (final InheritProject ip : inheritProjects) {
+                mainCopies.add(executor.submit(new Callable<File>() {
+                    public File call() throws MojoExecutionException {
+                        return ip.copyMainArtifact(project, mainDirectory);
+                    }
+                }));
+                serCopies.add(executor.submit(new Callable<File>() {
+                    public File call() throws MojoExecutionException {
+                        return ip.copySerArtifact(project, serDirectory);
+                    }
+                }));
+            }
+
+            for (Future<File> mainCopy : mainCopies) {
+                waitFor(mainCopy);
+            }
+            for (Future<File> serCopy : serCopies) {
+                dataFiles.add(waitFor(serCopy));
+            }
+            return dataFiles;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static File waitFor(Future<File> copy) throws MojoExecutionException {
+        try {
+            return copy.get();
+        }
+        catch (InterruptedException e) {
+            throw new MojoExecutionException("Interrupted while copying the inherited artifacts.", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoExecutionException) {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException("Unable to copy the inherited artifacts.", e.getCause());
+        }
+    }
+}
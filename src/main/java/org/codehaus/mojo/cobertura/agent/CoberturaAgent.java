@@ -0,0 +1,362 @@
+package org.codehaus.mojo.cobertura.agent;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.util.FileLocker;
+import net.sourceforge.cobertura.util.RegexUtil;
+
+import org.codehaus.mojo.cobertura.tasks.TouchCollectorRewriter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A Java agent instrumenting the classes of a project when they are loaded, instead of rewriting them all before the
+ * tests run.
+ * <p>
+ * Only the classes found in the classes directory and matched by the includes and excludes are instrumented, so
+ * the classes no test loads cost nothing. They are matched by name, wherever they are loaded from, so that the tests
+ * running against the packaged jar of the project, as the integration tests do, are covered as well. The lines of the instrumented classes are merged into the data file when
+ * the JVM exits, like the hits Cobertura saves then, along with the lines of the matching classes that were never
+ * loaded, which are read from the classes directory without being instrumented, so that they are reported as
+ * uncovered.
+ * </p>
+ * <p>
+ * The instrumenter of Cobertura is not public, it is called through reflection.
+ * </p>
+ * <p>
+ * The agent argument is a properties file with the following keys:
+ * </p>
+ * <ul>
+ * <li><code>datafile</code>: the data file.</li>
+ * <li><code>classesDirectory</code>: the directory of the classes to instrument.</li>
+ * <li><code>includes</code>, <code>excludes</code>: comma separated Ant patterns of the class files to instrument,
+ * relative to the classes directory.</li>
+ * <li><code>ignore.0</code>, <code>ignore.1</code>...: regexes of the method calls ignored by the coverage.</li>
+ * <li><code>stripedCounters</code>: <code>true</code> to count the hits with the
+ * {@link org.codehaus.mojo.cobertura.runtime.StripedTouchCollector}.</li>
+ * </ul>
+ */
+public class CoberturaAgent implements ClassFileTransformer {
+    public static final String DATA_FILE = "datafile";
+
+    public static final String CLASSES_DIRECTORY = "classesDirectory";
+
+    public static final String INCLUDES = "includes";
+
+    public static final String EXCLUDES = "excludes";
+
+    public static final String IGNORE = "ignore.";
+
+    public static final String STRIPED_COUNTERS = "stripedCounters";
+
+    private static final String INSTRUMENTER = "net.sourceforge.cobertura.instrument.ClassInstrumenter";
+
+    private final Object lock = new Object();
+
+    private final ProjectData projectData = new ProjectData();
+
+    private final Constructor instrumenterConstructor;
+
+    private final Method isInstrumented;
+
+    private final File classesDirectory;
+
+    private final Set projectClasses = new HashSet();
+
+    private int instrumentedClasses;
+
+    private final Pattern includes;
+
+    private final Pattern excludes;
+
+    private final Collection ignoreRegexes = new Vector();
+
+    private final boolean stripedCounters;
+
+    /**
+     * @param properties the configuration of the agent.
+     * @throws ClassNotFoundException if the Cobertura instrumenter cannot be found.
+     * @throws NoSuchMethodException  if the Cobertura instrumenter is not the expected one.
+     */
+    public CoberturaAgent(Properties properties) throws ClassNotFoundException, NoSuchMethodException {
+        this.classesDirectory = new File(properties.getProperty(CLASSES_DIRECTORY));
+        this.includes = toPattern(properties.getProperty(INCLUDES, "**/*.class"));
+        String excludes = properties.getProperty(EXCLUDES, "");
+        this.excludes = excludes.trim().length() > 0 ? toPattern(excludes) : null;
+        for (int i = 0; properties.getProperty(IGNORE + i) != null; i++) {
+            RegexUtil.addRegex(ignoreRegexes, properties.getProperty(IGNORE + i));
+        }
+        this.stripedCounters = Boolean.valueOf(properties.getProperty(STRIPED_COUNTERS)).booleanValue();
+        addProjectClasses(classesDirectory, "");
+
+        Class instrumenter = Class.forName(INSTRUMENTER);
+        instrumenterConstructor = instrumenter.getDeclaredConstructor(new Class[] { ProjectData.class,
+            ClassVisitor.class, Collection.class, Collection.class });
+        instrumenterConstructor.setAccessible(true);
+        isInstrumented = instrumenter.getMethod("isInstrumented", new Class[0]);
+        isInstrumented.setAccessible(true);
+    }
+
+    /**
+     * Install the agent.
+     *
+     * @param options         the properties file configuring the agent.
+     * @param instrumentation the instrumentation of the JVM.
+     * @throws Exception if the properties file cannot be read or the Cobertura instrumenter cannot be found.
+     */
+    public static void premain(String options, Instrumentation instrumentation) throws Exception {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(options);
+        try {
+            properties.load(in);
+        }
+        finally {
+            in.close();
+        }
+
+        // read by the instrumented classes when they save the coverage data
+        final File dataFile = new File(properties.getProperty(DATA_FILE));
+        System.setProperty("net.sourceforge.cobertura.datafile", dataFile.getPath());
+
+        final CoberturaAgent agent = new CoberturaAgent(properties);
+        instrumentation.addTransformer(agent);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                agent.save(dataFile);
+            }
+        });
+    }
+
+    /**
+     * Merge the lines of the instrumented classes, and of the classes that were never loaded, into a data file,
+     * locking it the way Cobertura does when it saves the hits.
+     *
+     * @param dataFile the data file.
+     */
+    void save(File dataFile) {
+        synchronized (dataFile.getPath().intern()) {
+            FileLocker fileLocker = new FileLocker(dataFile);
+            try {
+                if (fileLocker.lock()) {
+                    // the instrumented lines come first, so that the hits Cobertura saved before do not replace them
+                    ProjectData saved = dataFile.isFile() ? CoverageDataFileHandler.loadCoverageData(dataFile) : null;
+                    synchronized (lock) {
+                        if (instrumentedClasses == 0 && !projectClasses.isEmpty()) {
+                            System.err.println("Cobertura: none of the " + projectClasses.size() + " classes of "
+                                + classesDirectory + " was loaded, their coverage is reported as 0%");
+                        }
+                        addUnloadedClasses(classesDirectory, "", saved);
+                        if (saved != null) {
+                            projectData.merge(saved);
+                        }
+                        CoverageDataFileHandler.saveCoverageData(projectData, dataFile);
+                    }
+                }
+            }
+            finally {
+                fileLocker.release();
+            }
+        }
+    }
+
+    public byte[] transform(ClassLoader loader, String className, Class classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || classBeingRedefined != null || !isProjectClass(className)) {
+            return null;
+        }
+
+        try {
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            Object instrumenter;
+            synchronized (lock) {
+                instrumenter = instrument(classfileBuffer, writer);
+            }
+            if (!((Boolean) isInstrumented.invoke(instrumenter, new Object[0])).booleanValue()) {
+                return null;
+            }
+            synchronized (lock) {
+                instrumentedClasses++;
+            }
+            byte[] instrumented = writer.toByteArray();
+            if (stripedCounters) {
+                byte[] rewritten = TouchCollectorRewriter.rewrite(instrumented);
+                return rewritten != null ? rewritten : instrumented;
+            }
+            return instrumented;
+        }
+        catch (Throwable e) {
+            // the class is loaded as it is
+            System.err.println("Cobertura: unable to instrument " + className + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Run the Cobertura instrumenter over a class, which records its lines in the project data.
+     *
+     * @param classfileBuffer the class file.
+     * @param writer          receives the instrumented class.
+     * @return the instrumenter.
+     * @throws Exception if the class cannot be instrumented.
+     */
+    private Object instrument(byte[] classfileBuffer, ClassWriter writer) throws Exception {
+        Object instrumenter = instrumenterConstructor.newInstance(new Object[] { projectData, writer, ignoreRegexes,
+            new Vector() });
+        new ClassReader(classfileBuffer).accept((ClassVisitor) instrumenter, 0);
+        return instrumenter;
+    }
+
+    /**
+     * Collect the class files of a directory that are matched by the includes and excludes.
+     *
+     * @param directory a directory under the classes directory.
+     * @param path      the path of the directory relative to the classes directory, ending with a slash unless empty.
+     */
+    private void addProjectClasses(File directory, String path) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            String filePath = path + files[i].getName();
+            if (files[i].isDirectory()) {
+                addProjectClasses(files[i], filePath + "/");
+            }
+            else if (filePath.endsWith(".class") && includes.matcher(filePath).matches()
+                && (excludes == null || !excludes.matcher(filePath).matches())) {
+                projectClasses.add(filePath);
+            }
+        }
+    }
+
+    /**
+     * Record the lines of the classes of a directory that are matched by the includes and excludes, but were neither
+     * loaded by this JVM nor saved by another one. Their lines show up as uncovered.
+     *
+     * @param directory a directory under the classes directory.
+     * @param path      the path of the directory relative to the classes directory, ending with a slash unless empty.
+     * @param saved     the data saved before, or <code>null</code>.
+     */
+    void addUnloadedClasses(File directory, String path, ProjectData saved) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            String filePath = path + files[i].getName();
+            if (files[i].isDirectory()) {
+                addUnloadedClasses(files[i], filePath + "/", saved);
+            }
+            else if (filePath.endsWith(".class") && includes.matcher(filePath).matches()
+                && (excludes == null || !excludes.matcher(filePath).matches())) {
+                String className = filePath.substring(0, filePath.length() - ".class".length()).replace('/', '.');
+                if (projectData.getClassData(className) == null
+                    && (saved == null || saved.getClassData(className) == null)) {
+                    try {
+                        instrument(read(files[i]), new ClassWriter(ClassWriter.COMPUTE_MAXS));
+                    }
+                    catch (Throwable e) {
+                        System.err.println("Cobertura: unable to read " + className + ": " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the class is found in the classes directory and is matched by the includes and
+     *         excludes, whether it is loaded from there or from the packaged jar of the project.
+     */
+    boolean isProjectClass(String className) {
+        return projectClasses.contains(className + ".class");
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        }
+        finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Convert comma separated Ant patterns to one regex.
+     */
+    static Pattern toPattern(String antPatterns) {
+        StringBuffer regex = new StringBuffer();
+        String[] patterns = antPatterns.split(",");
+        for (int i = 0; i < patterns.length; i++) {
+            String pattern = patterns[i].trim().replace('\\', '/');
+            if (pattern.length() == 0) {
+                continue;
+            }
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append('(');
+            for (int j = 0; j < pattern.length(); j++) {
+                char c = pattern.charAt(j);
+                if (pattern.startsWith("**/", j)) {
+                    regex.append("(.*/)?");
+                    j += 2;
+                }
+                else if (pattern.startsWith("**", j)) {
+                    regex.append(".*");
+                    j++;
+                }
+                else if (c == '*') {
+                    regex.append("[^/]*");
+                }
+                else if (c == '?') {
+                    regex.append("[^/]");
+                }
+                else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            regex.append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -19,7 +19,7 @@ package org.codehaus.mojo.cobertura.configuration;
  * under the License.
  */
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import net.sourceforge.cobertura.ant.Regex;
@@ -37,7 +37,7 @@ public class ConfigCheck
 
     private String lineRate;
 
-    private Set regexes = new HashSet();
+    private Set regexes = new LinkedHashSet();
 
     private String totalBranchRate;
 
@@ -136,7 +136,7 @@ public class ConfigCheck
      */
     public void setRegexes( Set regexes )
     {
-        this.regexes = new HashSet( regexes );
+        this.regexes = new LinkedHashSet( regexes );
     }
 
     /**
@@ -0,0 +1,644 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.JumpData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.coveragedata.SwitchData;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Reads and writes Cobertura coverage data in a compact, columnar binary format, as an alternative to the serialized
+ * <code>cobertura.ser</code> graph.
+ * <p>
+ * All names are kept once in a string table. Each class is stored as a block of primitive columns: line numbers,
+ * method name and descriptor indexes, and hit counts, followed by the columns of its jumps and switches. Files are read
+ * through a memory-mapped buffer, so loading is a sequence of bulk array copies instead of object deserialization.
+ * {@link Reader} and {@link Writer} go through a file one class at a time.
+ * </p>
+ * <p>
+ * The layout, all big-endian:
+ * </p>
+ * <pre>
+ * int magic, int version
+ * int stringCount, stringCount * (int length, UTF-8 bytes)
+ * int classCount, classCount * class
+ *
+ * class:
+ *   int name, int sourceFileName, int flags, int lineCount
+ *   int[lineCount] lineNumbers, int[lineCount] methodNames, int[lineCount] methodDescriptors, long[lineCount] hits
+ *   int jumpCount
+ *   int[jumpCount] lines, int[jumpCount] conditionNumbers, long[jumpCount] trueHits, long[jumpCount] falseHits
+ *   int switchCount
+ *   int[switchCount] lines, int[switchCount] switchNumbers, int[switchCount] branchCounts,
+ *   long[switchCount] defaultHits, long[sum of branchCounts] branchHits
+ * </pre>
+ * <p>
+ * String indexes are <code>-1</code> for <code>null</code>. Cobertura does not expose the case keys of a switch, only
+ * their number, so switches are read back with the keys <code>0..n-1</code>; the keys play no part in coverage rates
+ * or reports.
+ * </p>
+ */
+public final class CompactDataFile {
+    /**
+     * The format of <code>cobertura.ser</code>.
+     */
+    public static final String FORMAT_SER = "ser";
+
+    /**
+     * The compact format.
+     */
+    public static final String FORMAT_COMPACT = "compact";
+
+    /**
+     * "COBC".
+     */
+    private static final int MAGIC = 0x434F4243;
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_INSTRUMENTATION_INFO = 1;
+
+    private CompactDataFile() {
+    }
+
+    /**
+     * Load a data file in either format.
+     *
+     * @param file the data file.
+     * @return the coverage data, <code>null</code> if the file cannot be read, like
+     *         {@link CoverageDataFileHandler#loadCoverageData(File)}.
+     */
+    public static ProjectData loadCoverageData(File file) {
+        if (!isCompact(file)) {
+            return CoverageDataFileHandler.loadCoverageData(file);
+        }
+        try {
+            return load(file);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Save coverage data in a format.
+     *
+     * @param projectData the coverage data.
+     * @param file        the data file.
+     * @param format      {@link #FORMAT_COMPACT} or {@link #FORMAT_SER}.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void saveCoverageData(ProjectData projectData, File file, String format) throws IOException {
+        if (FORMAT_COMPACT.equals(format)) {
+            save(projectData, file);
+        }
+        else if (FORMAT_SER.equals(format)) {
+            CoverageDataFileHandler.saveCoverageData(projectData, file);
+        }
+        else {
+            throw new IllegalArgumentException("Unknown data file format '" + format + "', expected '"
+                + FORMAT_COMPACT + "' or '" + FORMAT_SER + "'.");
+        }
+    }
+
+    /**
+     * @param file a data file.
+     * @return {@link #FORMAT_COMPACT} if the file is in the compact format, {@link #FORMAT_SER} otherwise.
+     */
+    public static String formatOf(File file) {
+        return isCompact(file) ? FORMAT_COMPACT : FORMAT_SER;
+    }
+
+    /**
+     * @param file a data file.
+     * @return <code>true</code> if the file starts with the magic number of the compact format.
+     */
+    public static boolean isCompact(File file) {
+        if (!file.isFile() || file.length() < 8) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Write coverage data in the compact format.
+     *
+     * @param projectData the coverage data.
+     * @param file        the data file.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void save(ProjectData projectData, File file) throws IOException {
+        List<ClassData> classes = new ArrayList<ClassData>();
+        StringTable strings = new StringTable();
+        for (Iterator it = projectData.getClasses().iterator(); it.hasNext();) {
+            ClassData classData = (ClassData) it.next();
+            classes.add(classData);
+            strings.addAll(classData);
+        }
+
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        try {
+            writeHeader(out, strings, classes.size());
+            for (ClassData classData : classes) {
+                writeClass(out, classData, strings);
+            }
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, StringTable strings, int classCount) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(strings.values.size());
+        for (String value : strings.values) {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        out.writeInt(classCount);
+    }
+
+    private static void writeClass(DataOutputStream out, ClassData classData, StringTable strings)
+        throws IOException {
+        List<LineData> lines = new ArrayList<LineData>();
+        List<LineData> jumpLines = new ArrayList<LineData>();
+        List<JumpData> jumps = new ArrayList<JumpData>();
+        List<LineData> switchLines = new ArrayList<LineData>();
+        List<SwitchData> switches = new ArrayList<SwitchData>();
+        for (Iterator it = classData.getLines().iterator(); it.hasNext();) {
+            LineData lineData = (LineData) it.next();
+            lines.add(lineData);
+            for (int i = 0; i < lineData.getConditionSize(); i++) {
+                Object condition = lineData.getConditionData(i);
+                if (condition instanceof JumpData) {
+                    jumpLines.add(lineData);
+                    jumps.add((JumpData) condition);
+                }
+                else if (condition instanceof SwitchData) {
+                    switchLines.add(lineData);
+                    switches.add((SwitchData) condition);
+                }
+            }
+        }
+
+        out.writeInt(strings.indexOf(classData.getName()));
+        out.writeInt(strings.indexOf(getSourceFileBaseName(classData)));
+        out.writeInt(classData.containsInstrumentationInfo() ? FLAG_INSTRUMENTATION_INFO : 0);
+
+        out.writeInt(lines.size());
+        for (LineData lineData : lines) {
+            out.writeInt(lineData.getLineNumber());
+        }
+        for (LineData lineData : lines) {
+            out.writeInt(strings.indexOf(lineData.getMethodName()));
+        }
+        for (LineData lineData : lines) {
+            out.writeInt(strings.indexOf(lineData.getMethodDescriptor()));
+        }
+        for (LineData lineData : lines) {
+            out.writeLong(lineData.getHits());
+        }
+
+        out.writeInt(jumps.size());
+        for (LineData lineData : jumpLines) {
+            out.writeInt(lineData.getLineNumber());
+        }
+        for (JumpData jumpData : jumps) {
+            out.writeInt(jumpData.getConditionNumber());
+        }
+        for (JumpData jumpData : jumps) {
+            out.writeLong(jumpData.getTrueHits());
+        }
+        for (JumpData jumpData : jumps) {
+            out.writeLong(jumpData.getFalseHits());
+        }
+
+        out.writeInt(switches.size());
+        for (LineData lineData : switchLines) {
+            out.writeInt(lineData.getLineNumber());
+        }
+        for (SwitchData switchData : switches) {
+            out.writeInt(switchData.getSwitchNumber());
+        }
+        for (SwitchData switchData : switches) {
+            // every case, plus the default branch
+            out.writeInt(switchData.getNumberOfValidBranches() - 1);
+        }
+        for (SwitchData switchData : switches) {
+            out.writeLong(switchData.getDefaultHits());
+        }
+        for (SwitchData switchData : switches) {
+            for (int i = 0; i < switchData.getNumberOfValidBranches() - 1; i++) {
+                out.writeLong(switchData.getHits(i));
+            }
+        }
+    }
+
+    /**
+     * @param classData a class.
+     * @return the source file name of the class without its package directory, as taken by
+     *         {@link ClassData#setSourceFileName(String)}.
+     */
+    private static String getSourceFileBaseName(ClassData classData) {
+        String sourceFileName = classData.getSourceFileName();
+        String packagePath = classData.getPackageName().replace('.', '/') + '/';
+        if (packagePath.length() > 1 && sourceFileName.startsWith(packagePath)) {
+            return sourceFileName.substring(packagePath.length());
+        }
+        return sourceFileName;
+    }
+
+    /**
+     * Read a data file in the compact format through a memory-mapped buffer.
+     *
+     * @param file the data file.
+     * @return the coverage data.
+     * @throws IOException if the file cannot be read or is not in the compact format.
+     */
+    public static ProjectData load(File file) throws IOException {
+        Reader reader = new Reader(file);
+        ProjectData projectData = new ProjectData();
+        while (reader.hasNext()) {
+            projectData.addClassData(reader.next());
+        }
+        return projectData;
+    }
+
+    private static ClassData readClass(ByteBuffer buffer, String[] strings) throws IOException {
+        ClassData classData = new ClassData(string(strings, buffer.getInt()));
+        String sourceFileName = string(strings, buffer.getInt());
+        if (sourceFileName != null) {
+            classData.setSourceFileName(sourceFileName);
+        }
+        if ((buffer.getInt() & FLAG_INSTRUMENTATION_INFO) != 0) {
+            classData.setContainsInstrumentationInfo();
+        }
+
+        int lineCount = count(buffer, 20);
+        int[] lineNumbers = getInts(buffer, lineCount);
+        int[] methodNames = getInts(buffer, lineCount);
+        int[] methodDescriptors = getInts(buffer, lineCount);
+        long[] hits = getLongs(buffer, lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            classData.addLine(lineNumbers[i], string(strings, methodNames[i]), string(strings, methodDescriptors[i]));
+            for (long left = hits[i]; left > 0; left -= Integer.MAX_VALUE) {
+                classData.touch(lineNumbers[i], (int) Math.min(left, Integer.MAX_VALUE));
+            }
+        }
+
+        int jumpCount = count(buffer, 24);
+        int[] jumpLines = getInts(buffer, jumpCount);
+        int[] conditionNumbers = getInts(buffer, jumpCount);
+        long[] trueHits = getLongs(buffer, jumpCount);
+        long[] falseHits = getLongs(buffer, jumpCount);
+        for (int i = 0; i < jumpCount; i++) {
+            classData.addLineJump(jumpLines[i], conditionNumbers[i]);
+            touchJump(classData, jumpLines[i], conditionNumbers[i], true, trueHits[i]);
+            touchJump(classData, jumpLines[i], conditionNumbers[i], false, falseHits[i]);
+        }
+
+        int switchCount = count(buffer, 20);
+        int[] switchLines = getInts(buffer, switchCount);
+        int[] switchNumbers = getInts(buffer, switchCount);
+        int[] branchCounts = getInts(buffer, switchCount);
+        long[] defaultHits = getLongs(buffer, switchCount);
+        long branchCount = 0;
+        for (int i = 0; i < switchCount; i++) {
+            branchCount += branchCounts[i];
+            if (branchCounts[i] < 0 || branchCount > buffer.remaining() / 8) {
+                throw new IOException("Corrupt compact Cobertura data file, invalid switch branch count.");
+            }
+        }
+        for (int i = 0; i < switchCount; i++) {
+            int[] keys = new int[branchCounts[i]];
+            for (int k = 0; k < keys.length; k++) {
+                keys[k] = k;
+            }
+            classData.addLineSwitch(switchLines[i], switchNumbers[i], keys);
+            touchSwitch(classData, switchLines[i], switchNumbers[i], -1, defaultHits[i]);
+        }
+        for (int i = 0; i < switchCount; i++) {
+            long[] branchHits = getLongs(buffer, branchCounts[i]);
+            for (int b = 0; b < branchHits.length; b++) {
+                touchSwitch(classData, switchLines[i], switchNumbers[i], b, branchHits[b]);
+            }
+        }
+
+        return classData;
+    }
+
+    private static void touchJump(ClassData classData, int line, int conditionNumber, boolean branch, long hits) {
+        for (long left = hits; left > 0; left -= Integer.MAX_VALUE) {
+            classData.touchJump(line, conditionNumber, branch, (int) Math.min(left, Integer.MAX_VALUE));
+        }
+    }
+
+    private static void touchSwitch(ClassData classData, int line, int switchNumber, int branch, long hits) {
+        for (long left = hits; left > 0; left -= Integer.MAX_VALUE) {
+            classData.touchSwitch(line, switchNumber, branch, (int) Math.min(left, Integer.MAX_VALUE));
+        }
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static long[] getLongs(ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+
+    /**
+     * Read a count and check that the buffer holds that many elements.
+     *
+     * @param width the least number of bytes of an element.
+     */
+    private static int count(ByteBuffer buffer, int width) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / width) {
+            throw new IOException("Corrupt compact Cobertura data file, invalid count " + count + ".");
+        }
+        return count;
+    }
+
+    private static String string(String[] strings, int index) throws IOException {
+        if (index >= strings.length || index < -1) {
+            throw new IOException("Corrupt compact Cobertura data file, invalid string index " + index + ".");
+        }
+        return index < 0 ? null : strings[index];
+    }
+
+    /**
+     * Reads the classes of a compact data file one at a time, straight from its memory mapping. Only the string table
+     * is kept, so the caller decides how many classes are in memory at once.
+     */
+    public static final class Reader {
+        private final File file;
+
+        private final ByteBuffer buffer;
+
+        private final String[] strings;
+
+        private final int classCount;
+
+        private int classesRead;
+
+        /**
+         * Map a data file and read its string table.
+         *
+         * @param file the data file.
+         * @throws IOException if the file cannot be read or is not in the compact format.
+         */
+        public Reader(File file) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // the mapping stays valid once the file is closed
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                raf.close();
+            }
+
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a compact Cobertura data file.");
+                }
+                int version = buffer.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported compact Cobertura data file version " + version + ".");
+                }
+
+                strings = new String[count(buffer, 4)];
+                for (int i = 0; i < strings.length; i++) {
+                    byte[] bytes = new byte[count(buffer, 1)];
+                    buffer.get(bytes);
+                    strings[i] = new String(bytes, "UTF-8");
+                }
+                classCount = count(buffer, 16);
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Truncated Cobertura data file " + file);
+            }
+        }
+
+        public int getClassCount() {
+            return classCount;
+        }
+
+        public boolean hasNext() {
+            return classesRead < classCount;
+        }
+
+        /**
+         * @return the position of the next class, for {@link #readClass(int)}.
+         */
+        public int position() {
+            return buffer.position();
+        }
+
+        /**
+         * Read the next class.
+         *
+         * @return the class.
+         * @throws IOException if the file is corrupt.
+         */
+        public ClassData next() throws IOException {
+            if (!hasNext()) {
+                throw new IOException("No more classes in " + file);
+            }
+            classesRead++;
+            return read(buffer);
+        }
+
+        /**
+         * Read the class at a position, without moving this reader.
+         *
+         * @param position a position returned by {@link #position()}.
+         * @return the class.
+         * @throws IOException if the file is corrupt.
+         */
+        public ClassData readClass(int position) throws IOException {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            return read(view);
+        }
+
+        private ClassData read(ByteBuffer view) throws IOException {
+            try {
+                return CompactDataFile.readClass(view, strings);
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Truncated Cobertura data file " + file);
+            }
+        }
+    }
+
+    /**
+     * Writes a compact data file one class at a time. The class blocks go to a scratch file while the string table
+     * grows, and the data file is assembled on {@link #close()}, so only the names are kept in memory.
+     */
+    public static final class Writer {
+        private final File file;
+
+        private final File classesFile;
+
+        private final StringTable strings = new StringTable();
+
+        private final DataOutputStream out;
+
+        private int classCount;
+
+        /**
+         * @param file the data file, only replaced on {@link #close()}.
+         * @throws IOException if the scratch file cannot be created.
+         */
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.classesFile = new File(file.getPath() + ".classes");
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(classesFile), 65536));
+        }
+
+        /**
+         * @param classData the next class of the data file.
+         * @throws IOException if the scratch file cannot be written.
+         */
+        public void write(ClassData classData) throws IOException {
+            strings.addAll(classData);
+            writeClass(out, classData, strings);
+            classCount++;
+        }
+
+        /**
+         * Write the data file: the string table, then the class blocks.
+         *
+         * @throws IOException if the data file cannot be written.
+         */
+        public void close() throws IOException {
+            out.close();
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            InputStream in = new FileInputStream(classesFile);
+            try {
+                writeHeader(header, strings, classCount);
+                IOUtil.copy(in, header);
+            }
+            finally {
+                IOUtil.close(in);
+                IOUtil.close(header);
+                classesFile.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                    throw new IOException("Unable to write " + file);
+                }
+            }
+        }
+
+        /**
+         * Give up the data file, leaving it untouched.
+         */
+        public void abort() {
+            IOUtil.close(out);
+            classesFile.delete();
+        }
+    }
+
+    /**
+     * Assigns every distinct string an index, in order of appearance.
+     */
+    private static final class StringTable {
+        private final List<String> values = new ArrayList<String>();
+
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        void add(String value) {
+            if (value != null && !indexes.containsKey(value)) {
+                indexes.put(value, new Integer(values.size()));
+                values.add(value);
+            }
+        }
+
+        void addAll(ClassData classData) {
+            add(classData.getName());
+            add(getSourceFileBaseName(classData));
+            for (Iterator lines = classData.getLines().iterator(); lines.hasNext();) {
+                LineData lineData = (LineData) lines.next();
+                add(lineData.getMethodName());
+                add(lineData.getMethodDescriptor());
+            }
+        }
+
+        int indexOf(String value) {
+            return value == null ? -1 : indexes.get(value).intValue();
+        }
+    }
+}
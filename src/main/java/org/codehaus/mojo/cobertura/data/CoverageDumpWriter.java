@@ -0,0 +1,322 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.PackageData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.util.Header;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Writes Cobertura coverage data as an XML or JSON document, down to every line.
+ * <p>
+ * The document is nested project, package, class, method and line, and is written element by element as the coverage
+ * data is walked, so nothing beyond the current element is built in memory. Rates are written as fractions between 0
+ * and 1, counts as plain integers.
+ * </p>
+ */
+public final class CoverageDumpWriter {
+    /**
+     * The XML format.
+     */
+    public static final String FORMAT_XML = "xml";
+
+    /**
+     * The JSON format.
+     */
+    public static final String FORMAT_JSON = "json";
+
+    private final Writer out;
+
+    private final boolean json;
+
+    /**
+     * Whether the next JSON element is the first of its array.
+     */
+    private boolean first = true;
+
+    /**
+     * @param out    the writer receiving the document.
+     * @param format {@link #FORMAT_XML} or {@link #FORMAT_JSON}.
+     */
+    public CoverageDumpWriter(Writer out, String format) {
+        if (!FORMAT_XML.equals(format) && !FORMAT_JSON.equals(format)) {
+            throw new IllegalArgumentException("Unknown dump format '" + format + "', expected '" + FORMAT_XML
+                + "' or '" + FORMAT_JSON + "'.");
+        }
+        this.out = out;
+        this.json = FORMAT_JSON.equals(format);
+    }
+
+    /**
+     * Write coverage data to a file, in UTF-8.
+     *
+     * @param projectData the coverage data.
+     * @param file        the file.
+     * @param format      {@link #FORMAT_XML} or {@link #FORMAT_JSON}.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void dump(ProjectData projectData, File file, String format) throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        FileOutputStream stream = new FileOutputStream(file);
+        Writer out = new BufferedWriter(Channels.newWriter(stream.getChannel(), "UTF-8"), 65536);
+        try {
+            new CoverageDumpWriter(out, format).write(projectData);
+        }
+        finally {
+            IOUtil.close(out);
+            IOUtil.close(stream);
+        }
+    }
+
+    /**
+     * Write the document. The writer is flushed, not closed.
+     *
+     * @param projectData the coverage data.
+     * @throws IOException if the writer fails.
+     */
+    public void write(ProjectData projectData) throws IOException {
+        if (!json) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        }
+        open("coverage", new Object[] {
+            "line-rate", new Double(projectData.getLineCoverageRate()),
+            "branch-rate", new Double(projectData.getBranchCoverageRate()),
+            "lines-covered", new Integer(projectData.getNumberOfCoveredLines()),
+            "lines-valid", new Integer(projectData.getNumberOfValidLines()),
+            "branches-covered", new Integer(projectData.getNumberOfCoveredBranches()),
+            "branches-valid", new Integer(projectData.getNumberOfValidBranches()),
+            "version", Header.version(),
+            "timestamp", new Long(System.currentTimeMillis()) }, "packages");
+        for (Iterator it = projectData.getPackages().iterator(); it.hasNext();) {
+            writePackage((PackageData) it.next());
+        }
+        close("coverage", "packages");
+        out.write('\n');
+        out.flush();
+    }
+
+    private void writePackage(PackageData packageData) throws IOException {
+        open("package", new Object[] {
+            "name", packageData.getName(),
+            "line-rate", new Double(packageData.getLineCoverageRate()),
+            "branch-rate", new Double(packageData.getBranchCoverageRate()),
+            "lines-covered", new Integer(packageData.getNumberOfCoveredLines()),
+            "lines-valid", new Integer(packageData.getNumberOfValidLines()),
+            "branches-covered", new Integer(packageData.getNumberOfCoveredBranches()),
+            "branches-valid", new Integer(packageData.getNumberOfValidBranches()) }, "classes");
+        for (Iterator it = packageData.getClasses().iterator(); it.hasNext();) {
+            writeClass((ClassData) it.next());
+        }
+        close("package", "classes");
+    }
+
+    private void writeClass(ClassData classData) throws IOException {
+        open("class", new Object[] {
+            "name", classData.getName(),
+            "filename", classData.getSourceFileName(),
+            "line-rate", new Double(classData.getLineCoverageRate()),
+            "branch-rate", new Double(classData.getBranchCoverageRate()),
+            "lines-covered", new Integer(classData.getNumberOfCoveredLines()),
+            "lines-valid", new Integer(classData.getNumberOfValidLines()) }, "methods");
+
+        List<String> methods = new ArrayList<String>(classData.getMethodNamesAndDescriptors());
+        Collections.sort(methods);
+        for (String method : methods) {
+            // a method's name and descriptor are concatenated, the descriptor starts at the parenthesis
+            int descriptor = method.indexOf('(');
+            open("method", new Object[] {
+                "name", descriptor >= 0 ? method.substring(0, descriptor) : method,
+                "signature", descriptor >= 0 ? method.substring(descriptor) : "",
+                "line-rate", new Double(classData.getLineCoverageRate(method)),
+                "branch-rate", new Double(classData.getBranchCoverageRate(method)) }, "lines");
+            for (Iterator it = classData.getLines(method).iterator(); it.hasNext();) {
+                writeLine((LineData) it.next());
+            }
+            close("method", "lines");
+        }
+        close("class", "methods");
+    }
+
+    private void writeLine(LineData lineData) throws IOException {
+        Object[] attributes;
+        if (lineData.hasBranch()) {
+            attributes = new Object[] {
+                "number", new Integer(lineData.getLineNumber()),
+                "hits", new Long(lineData.getHits()),
+                "branch", Boolean.TRUE,
+                "condition-coverage", lineData.getConditionCoverage() };
+        }
+        else {
+            attributes = new Object[] {
+                "number", new Integer(lineData.getLineNumber()),
+                "hits", new Long(lineData.getHits()),
+                "branch", Boolean.FALSE };
+        }
+        open("line", attributes, null);
+    }
+
+    /**
+     * Start an element.
+     *
+     * @param name       the element name.
+     * @param attributes the attribute names and values, alternating.
+     * @param children   the name of the list of child elements, <code>null</code> if the element has none, in which
+     *                   case the element is complete.
+     */
+    private void open(String name, Object[] attributes, String children) throws IOException {
+        if (json) {
+            if (!first) {
+                out.write(',');
+            }
+            out.write('{');
+            for (int i = 0; i < attributes.length; i += 2) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeJsonString((String) attributes[i]);
+                out.write(':');
+                Object value = attributes[i + 1];
+                if (value instanceof String) {
+                    writeJsonString((String) value);
+                }
+                else {
+                    writeNumber(value);
+                }
+            }
+            if (children != null) {
+                out.write(',');
+                writeJsonString(children);
+                out.write(":[");
+                first = true;
+            }
+            else {
+                out.write('}');
+                first = false;
+            }
+        }
+        else {
+            out.write('<');
+            out.write(name);
+            for (int i = 0; i < attributes.length; i += 2) {
+                out.write(' ');
+                out.write((String) attributes[i]);
+                out.write("=\"");
+                Object value = attributes[i + 1];
+                if (value instanceof String) {
+                    writeXmlString((String) value);
+                }
+                else {
+                    writeNumber(value);
+                }
+                out.write('"');
+            }
+            if (children != null) {
+                out.write("><");
+                out.write(children);
+                out.write(">\n");
+            }
+            else {
+                out.write("/>\n");
+            }
+        }
+    }
+
+    private void close(String name, String children) throws IOException {
+        if (json) {
+            out.write("]}");
+            first = false;
+        }
+        else {
+            out.write("</");
+            out.write(children);
+            out.write("></");
+            out.write(name);
+            out.write(">\n");
+        }
+    }
+
+    private void writeNumber(Object value) throws IOException {
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+            // not representable in JSON, and meaningless as a rate
+            out.write('0');
+        }
+        else {
+            out.write(String.valueOf(value));
+        }
+    }
+
+    private void writeXmlString(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    private void writeJsonString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            }
+            else if (c < 0x20) {
+                out.write("\\u");
+                out.write(Integer.toHexString(c | 0x10000).substring(1));
+            }
+            else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
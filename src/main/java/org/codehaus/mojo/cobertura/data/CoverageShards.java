@@ -0,0 +1,132 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.util.FileLocker;
+
+import org.codehaus.mojo.cobertura.runtime.StripedTouchCollector;
+
+/**
+ * Folds the hit-count shards written by the test JVMs into their data file.
+ * <p>
+ * With shards, every test JVM writes its hits to a small file of its own next to the data file instead of locking,
+ * reading and rewriting the whole data file, so forked and parallel test JVMs never wait for each other. The shards are
+ * only merged when the data file is next read, once for all of them, and deleted.
+ * </p>
+ */
+public final class CoverageShards {
+    private CoverageShards() {
+    }
+
+    /**
+     * @param dataFile a data file.
+     * @return the shards of the data file, sorted by name.
+     */
+    public static List<File> find(File dataFile) {
+        List<File> shards = new ArrayList<File>();
+        File[] files = dataFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return shards;
+        }
+        Arrays.sort(files);
+        String prefix = dataFile.getName() + ".";
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.startsWith(prefix) && name.endsWith(StripedTouchCollector.SHARD_SUFFIX) && files[i].isFile()) {
+                shards.add(files[i]);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Merge the shards of a data file into it, in its own format, and delete them.
+     * <p>
+     * The data file is locked like Cobertura locks it, so that two builds never fold the same shard twice.
+     * </p>
+     *
+     * @param dataFile the data file.
+     * @return the number of shards folded.
+     * @throws IOException if the data file or a shard cannot be read, or the data file cannot be written.
+     */
+    public static int fold(File dataFile) throws IOException {
+        if (find(dataFile).isEmpty()) {
+            return 0;
+        }
+
+        synchronized (dataFile.getPath().intern()) {
+            FileLocker fileLocker = new FileLocker(dataFile);
+            try {
+                if (!fileLocker.lock()) {
+                    throw new IOException("Unable to lock " + dataFile);
+                }
+                List<File> shards = find(dataFile);
+                if (shards.isEmpty()) {
+                    return 0;
+                }
+
+                boolean compact = CompactDataFile.isCompact(dataFile);
+                ProjectData projectData = dataFile.isFile() ? CompactDataFile.loadCoverageData(dataFile)
+                    : new ProjectData();
+                if (projectData == null) {
+                    throw new IOException("Unable to read " + dataFile);
+                }
+                for (File shard : shards) {
+                    ProjectData hits = CoverageDataFileHandler.loadCoverageData(shard);
+                    if (hits == null) {
+                        throw new IOException("Unable to read " + shard);
+                    }
+                    // the data file keeps the method names the shards do not have
+                    projectData.merge(hits);
+                }
+
+                CompactDataFile.saveCoverageData(projectData, dataFile, compact ? CompactDataFile.FORMAT_COMPACT
+                    : CompactDataFile.FORMAT_SER);
+                for (File shard : shards) {
+                    shard.delete();
+                }
+                return shards.size();
+            }
+            finally {
+                fileLocker.release();
+            }
+        }
+    }
+
+    /**
+     * Delete the shards of a data file without folding them.
+     *
+     * @param dataFile the data file.
+     */
+    public static void delete(File dataFile) {
+        for (File shard : find(dataFile)) {
+            shard.delete();
+        }
+    }
+}
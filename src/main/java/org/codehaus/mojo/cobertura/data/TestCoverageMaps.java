@@ -0,0 +1,434 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.codehaus.mojo.cobertura.runtime.BooleanTouchCollector;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * The coverage maps of the tests, read from the file the {@link BooleanTouchCollector} writes next to the data file.
+ * <p>
+ * Every test JVM appends a block to the file: a dictionary of the probes it hit, sorted by class and probe, and for
+ * each test the indexes of its probes as runs of consecutive indexes, encoded as variable-length integers. The maps
+ * stay encoded in memory and are only decoded by the queries, so that the maps of tens of thousands of tests remain
+ * small. When a test was recorded more than once, its latest map is used. {@link #compact(File)} rewrites the file as a
+ * single block of those latest maps, so that it does not grow with every test run.
+ * </p>
+ * <p>
+ * The tests hitting a class are looked up in an index from the classes to the tests, built from the maps on the first
+ * lookup.
+ * </p>
+ */
+public final class TestCoverageMaps {
+    private final Map<String, TestMap> tests = new HashMap<String, TestMap>();
+
+    private Map<String, Set<String>> classTests;
+
+    private int blocks;
+
+    private TestCoverageMaps() {
+    }
+
+    /**
+     * @param dataFile a data file.
+     * @return the file of the coverage maps of the tests run against it.
+     */
+    public static File file(File dataFile) {
+        return new File(dataFile.getPath() + BooleanTouchCollector.TEST_MAPS_SUFFIX);
+    }
+
+    /**
+     * Read coverage maps.
+     *
+     * @param file the file of the coverage maps.
+     * @return the coverage maps, empty if the file does not exist.
+     * @throws IOException if the file cannot be read.
+     */
+    public static TestCoverageMaps load(File file) throws IOException {
+        TestCoverageMaps testMaps = new TestCoverageMaps();
+        if (!file.isFile()) {
+            return testMaps;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                if (magic != BooleanTouchCollector.TEST_MAPS_MAGIC) {
+                    throw new IOException(file + " is not a file of test coverage maps.");
+                }
+                Block block = new Block(in);
+                testMaps.blocks++;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String test = in.readUTF();
+                    byte[] runs = new byte[in.readInt()];
+                    in.readFully(runs);
+                    testMaps.tests.put(test, new TestMap(block, runs));
+                }
+            }
+        }
+        finally {
+            IOUtil.close(in);
+        }
+        return testMaps;
+    }
+
+    /**
+     * Rewrite a file of coverage maps as a single block holding the latest map of every test, dropping the maps the
+     * later test runs replaced.
+     *
+     * @param file the file of the coverage maps.
+     * @return <code>false</code> if the file holds at most one block, and was left alone.
+     * @throws IOException if the file cannot be read or written.
+     */
+    public static boolean compact(File file) throws IOException {
+        TestCoverageMaps testMaps = load(file);
+        if (testMaps.blocks <= 1) {
+            return false;
+        }
+
+        // the dictionary of the probes the latest maps hit, sorted by class and signed key like the collector's
+        Map<String, Set<Long>> probes = new TreeMap<String, Set<Long>>();
+        for (TestMap map : testMaps.tests.values()) {
+            int[] runs = map.runs();
+            for (int i = 0; i < runs.length; i += 2) {
+                for (int index = runs[i]; index <= runs[i + 1]; index++) {
+                    int c = map.block.classAt(index);
+                    Set<Long> keys = probes.get(map.block.classes[c]);
+                    if (keys == null) {
+                        keys = new TreeSet<Long>();
+                        probes.put(map.block.classes[c], keys);
+                    }
+                    keys.add(Long.valueOf(map.block.keys[c][index - map.block.first[c]]));
+                }
+            }
+        }
+        Map<String, Integer> first = new HashMap<String, Integer>();
+        Map<String, long[]> dictionary = new HashMap<String, long[]>();
+        int size = 0;
+        for (Map.Entry<String, Set<Long>> entry : probes.entrySet()) {
+            long[] keys = new long[entry.getValue().size()];
+            int k = 0;
+            for (Long key : entry.getValue()) {
+                keys[k++] = key.longValue();
+            }
+            first.put(entry.getKey(), Integer.valueOf(size));
+            dictionary.put(entry.getKey(), keys);
+            size += keys.length;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(BooleanTouchCollector.TEST_MAPS_MAGIC);
+            out.writeInt(probes.size());
+            for (String className : probes.keySet()) {
+                long[] keys = dictionary.get(className);
+                out.writeUTF(className);
+                out.writeInt(keys.length);
+                for (int k = 0; k < keys.length; k++) {
+                    out.writeLong(keys[k]);
+                }
+            }
+            Set<String> tests = testMaps.getTests();
+            out.writeInt(tests.size());
+            for (String test : tests) {
+                TestMap map = testMaps.tests.get(test);
+                List<Integer> indexes = new ArrayList<Integer>();
+                int[] runs = map.runs();
+                for (int i = 0; i < runs.length; i += 2) {
+                    for (int index = runs[i]; index <= runs[i + 1]; index++) {
+                        int c = map.block.classAt(index);
+                        String className = map.block.classes[c];
+                        long key = map.block.keys[c][index - map.block.first[c]];
+                        indexes.add(Integer.valueOf(first.get(className).intValue()
+                            + Arrays.binarySearch(dictionary.get(className), key)));
+                    }
+                }
+                Collections.sort(indexes);
+                byte[] encoded = encode(indexes);
+                out.writeUTF(test);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+        }
+        finally {
+            IOUtil.close(out);
+        }
+        if (!file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file + " with " + tmp);
+        }
+        return true;
+    }
+
+    /**
+     * @return the names of the tests, <code>class#method</code>, sorted.
+     */
+    public Set<String> getTests() {
+        return new TreeSet<String>(tests.keySet());
+    }
+
+    /**
+     * @param test the name of a test.
+     * @return the classes the test hit, sorted, empty for an unknown test.
+     */
+    public Set<String> getClasses(String test) {
+        Set<String> classes = new TreeSet<String>();
+        TestMap map = tests.get(test);
+        if (map == null) {
+            return classes;
+        }
+        int[] runs = map.runs();
+        Block block = map.block;
+        for (int i = 0; i < runs.length; i += 2) {
+            for (int c = block.classAt(runs[i]); c < block.classes.length && block.first[c] <= runs[i + 1]; c++) {
+                classes.add(block.classes[c]);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @param className the name of a class.
+     * @return the tests that hit the class, sorted.
+     */
+    public Set<String> getTestsCovering(String className) {
+        if (classTests == null) {
+            classTests = new HashMap<String, Set<String>>();
+            for (String test : tests.keySet()) {
+                for (String covered : getClasses(test)) {
+                    Set<String> coveringTests = classTests.get(covered);
+                    if (coveringTests == null) {
+                        coveringTests = new TreeSet<String>();
+                        classTests.put(covered, coveringTests);
+                    }
+                    coveringTests.add(test);
+                }
+            }
+        }
+        Set<String> coveringTests = classTests.get(className);
+        return coveringTests != null ? Collections.unmodifiableSet(coveringTests) : Collections.<String> emptySet();
+    }
+
+    /**
+     * @param test      the name of a test.
+     * @param className the name of a class.
+     * @return whether the test hit any line of the class.
+     */
+    public boolean covers(String test, String className) {
+        TestMap map = tests.get(test);
+        if (map == null) {
+            return false;
+        }
+        int c = Arrays.binarySearch(map.block.classes, className);
+        if (c < 0) {
+            return false;
+        }
+        int first = map.block.first[c];
+        int last = first + map.block.keys[c].length - 1;
+        int[] runs = map.runs();
+        for (int i = 0; i < runs.length; i += 2) {
+            if (runs[i] <= last && runs[i + 1] >= first) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param test      the name of a test.
+     * @param className the name of a class.
+     * @param line      a line of the class.
+     * @return whether the test hit the line, or one of its branches.
+     */
+    public boolean covers(String test, String className, int line) {
+        TestMap map = tests.get(test);
+        if (map == null) {
+            return false;
+        }
+        int c = Arrays.binarySearch(map.block.classes, className);
+        if (c < 0) {
+            return false;
+        }
+        long[] keys = map.block.keys[c];
+        int[] runs = map.runs();
+        for (int k = 0; k < keys.length; k++) {
+            if ((int) ((keys[k] >>> 32) & 0x3fffffff) != line) {
+                continue;
+            }
+            int index = map.block.first[c] + k;
+            for (int i = 0; i < runs.length && runs[i] <= index; i += 2) {
+                if (index <= runs[i + 1]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of tests.
+     */
+    public int size() {
+        return tests.size();
+    }
+
+    /**
+     * Encode sorted indexes as runs of consecutive indexes, like the collector.
+     */
+    private static byte[] encode(List<Integer> sorted) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int end = 0;
+        for (int i = 0; i < sorted.size();) {
+            int start = sorted.get(i).intValue();
+            int j = i + 1;
+            while (j < sorted.size() && sorted.get(j).intValue() <= sorted.get(j - 1).intValue() + 1) {
+                j++;
+            }
+            int last = sorted.get(j - 1).intValue();
+            writeVarInt(out, start - end);
+            writeVarInt(out, last - start);
+            end = last + 1;
+            i = j;
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * The dictionary of the probes of one JVM.
+     */
+    private static final class Block {
+        private final String[] classes;
+
+        /**
+         * The index of the first probe of each class.
+         */
+        private final int[] first;
+
+        private final long[][] keys;
+
+        Block(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            classes = new String[count];
+            first = new int[count];
+            keys = new long[count][];
+            int index = 0;
+            for (int c = 0; c < count; c++) {
+                classes[c] = in.readUTF();
+                first[c] = index;
+                keys[c] = new long[in.readInt()];
+                for (int k = 0; k < keys[c].length; k++) {
+                    keys[c][k] = in.readLong();
+                }
+                index += keys[c].length;
+            }
+        }
+
+        /**
+         * @return the class of a probe index.
+         */
+        int classAt(int index) {
+            // the last class starting at or before the index
+            int c = Arrays.binarySearch(first, index);
+            return c >= 0 ? c : -c - 2;
+        }
+    }
+
+    /**
+     * The encoded map of one test.
+     */
+    private static final class TestMap {
+        private final Block block;
+
+        private final byte[] encoded;
+
+        TestMap(Block block, byte[] encoded) {
+            this.block = block;
+            this.encoded = encoded;
+        }
+
+        /**
+         * @return the first and last index of every run, in order.
+         */
+        int[] runs() {
+            List<Integer> runs = new ArrayList<Integer>();
+            int[] position = new int[1];
+            int end = 0;
+            while (position[0] < encoded.length) {
+                int start = end + readVarInt(encoded, position);
+                int last = start + readVarInt(encoded, position);
+                runs.add(start);
+                runs.add(last);
+                end = last + 1;
+            }
+            int[] result = new int[runs.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = runs.get(i).intValue();
+            }
+            return result;
+        }
+
+        private static int readVarInt(byte[] bytes, int[] position) {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                int b = bytes[position[0]++];
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
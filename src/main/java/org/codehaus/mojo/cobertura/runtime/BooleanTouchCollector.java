@@ -0,0 +1,621 @@
+package org.codehaus.mojo.cobertura.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.util.FileLocker;
+
+/**
+ * A replacement for the <code>TouchCollector</code> of Cobertura, only recording whether each line and branch was hit.
+ * <p>
+ * Every class has a packed array of one bit per line, and a sorted array of the jumps and switch branches that were
+ * hit. A probe is only written the first time it is hit, under the lock of its class; every later hit is a read of a
+ * bit, which neither contends nor dirties a cache line shared with the other threads. The probes are saved as one hit
+ * when the JVM exits, or when {@link #save()} is called, so the reports show what was covered but no counts.
+ * </p>
+ * <p>
+ * When the test classes call {@link #startTest(String)} and {@link #endTest()}, the probes are also cleared at the end
+ * of every test and recorded as the coverage map of that test. A test is credited with every probe hit since the end of
+ * the previous test, its set up included. The tests are told apart by thread: when tests run in parallel in one JVM,
+ * the probes cannot be traced back to the thread that hit them, so every probe is credited to all the tests running
+ * when it was hit. Their maps may then hold more than what they hit, which only makes more tests selected, never
+ * fewer. The maps are appended to the file named after the data file with
+ * {@link #TEST_MAPS_SUFFIX}, as a dictionary of the probes hit in the JVM and a run-length encoded bitmap of the
+ * probe indexes of each test.
+ * </p>
+ * <p>
+ * Instrumented classes call this class once their calls to <code>TouchCollector</code> are rewritten. It only
+ * depends on the Cobertura runtime.
+ * </p>
+ */
+public final class BooleanTouchCollector {
+    /**
+     * The suffix of the file of the coverage maps of the tests, after the name of the data file.
+     */
+    public static final String TEST_MAPS_SUFFIX = ".tests";
+
+    /**
+     * The magic number starting every block of coverage maps.
+     */
+    public static final int TEST_MAPS_MAGIC = 0x434f5654;
+
+    private static final int LINE = 0;
+
+    private static final int JUMP = 1;
+
+    private static final int SWITCH = 2;
+
+    private static final ConcurrentHashMap<String, Probes> CLASSES = new ConcurrentHashMap<String, Probes>();
+
+    /**
+     * Guards the tests.
+     */
+    private static final Object TESTS = new Object();
+
+    /**
+     * The running tests, by the thread running them.
+     */
+    private static final Map<Thread, RunningTest> RUNNING = new HashMap<Thread, RunningTest>();
+
+    /**
+     * The probes hit while no test was running, credited to the next test starting.
+     */
+    private static IntList unclaimed;
+
+    private static TestMaps testMaps;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Saver());
+    }
+
+    private BooleanTouchCollector() {
+    }
+
+    public static void touch(String className, int line) {
+        probes(className).touchLine(line);
+    }
+
+    public static void touchJump(String className, int line, int branchNumber, boolean branch) {
+        probes(className).touchBranch(key(JUMP, line, branchNumber, branch ? 1 : 0));
+    }
+
+    public static void touchSwitch(String className, int line, int switchNumber, int branch) {
+        probes(className).touchBranch(key(SWITCH, line, switchNumber, branch));
+    }
+
+    /**
+     * Start recording the coverage map of a test, ending the previous test of the thread if it did not end.
+     *
+     * @param name the name of the test, <code>class#method</code>.
+     */
+    public static void startTest(String name) {
+        synchronized (TESTS) {
+            if (RUNNING.containsKey(Thread.currentThread())) {
+                endTest();
+            }
+            credit();
+            IntList ids = unclaimed != null ? unclaimed : new IntList();
+            unclaimed = null;
+            RUNNING.put(Thread.currentThread(), new RunningTest(name, ids));
+        }
+    }
+
+    /**
+     * Record the probes credited to the test of this thread as its coverage map.
+     */
+    public static void endTest() {
+        synchronized (TESTS) {
+            RunningTest test = RUNNING.get(Thread.currentThread());
+            if (test == null) {
+                return;
+            }
+            credit();
+            RUNNING.remove(Thread.currentThread());
+            testMaps.add(test.name, test.ids);
+        }
+    }
+
+    /**
+     * Credit the probes hit since the previous call to every running test, or to the next test when none is running,
+     * and clear them.
+     */
+    private static void credit() {
+        if (testMaps == null) {
+            testMaps = new TestMaps();
+        }
+        IntList ids = new IntList();
+        for (Map.Entry<String, Probes> entry : CLASSES.entrySet()) {
+            entry.getValue().endTest(entry.getKey(), testMaps, ids);
+        }
+        if (RUNNING.isEmpty()) {
+            if (unclaimed == null) {
+                unclaimed = new IntList();
+            }
+            unclaimed.addAll(ids);
+        }
+        else {
+            for (RunningTest test : RUNNING.values()) {
+                test.ids.addAll(ids);
+            }
+        }
+    }
+
+    /**
+     * Save the probes hit so far as one hit each, and the coverage maps of the tests, and clear them.
+     */
+    public static void save() {
+        TestMaps maps;
+        synchronized (TESTS) {
+            if (!RUNNING.isEmpty()) {
+                credit();
+                for (RunningTest test : RUNNING.values()) {
+                    testMaps.add(test.name, test.ids);
+                }
+                RUNNING.clear();
+            }
+            // identifiers of the maps being saved
+            unclaimed = null;
+            maps = testMaps;
+            testMaps = null;
+        }
+
+        ProjectData projectData = new ProjectData();
+        for (Map.Entry<String, Probes> entry : CLASSES.entrySet()) {
+            entry.getValue().drainTo(projectData, entry.getKey());
+        }
+        HitsWriter.save(projectData);
+
+        if (maps != null) {
+            File dataFile = CoverageDataFileHandler.getDefaultDataFile();
+            File file = new File(dataFile.getPath() + TEST_MAPS_SUFFIX);
+            try {
+                maps.append(file);
+            }
+            catch (IOException e) {
+                System.err.println("Cobertura: unable to write " + file + ": " + e);
+            }
+        }
+    }
+
+    private static Probes probes(String className) {
+        Probes probes = CLASSES.get(className);
+        if (probes == null) {
+            Probes created = new Probes();
+            probes = CLASSES.putIfAbsent(className, created);
+            if (probes == null) {
+                probes = created;
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Pack a probe like the striped counters do: 2 bits of kind, 30 bits of line, 16 bits of jump or switch number and
+     * 16 bits of branch.
+     */
+    private static long key(int kind, int line, int number, int branch) {
+        return ((long) kind << 62) | ((long) (line & 0x3fffffff) << 32) | ((long) (number & 0xffff) << 16)
+            | (branch & 0xffff);
+    }
+
+    private static long[] or(long[] a, long[] b) {
+        long[] longer = a.length >= b.length ? a : b;
+        long[] shorter = a.length >= b.length ? b : a;
+        long[] result = new long[longer.length];
+        System.arraycopy(longer, 0, result, 0, longer.length);
+        for (int i = 0; i < shorter.length; i++) {
+            result[i] |= shorter[i];
+        }
+        return result;
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        long[] result = new long[a.length + b.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            }
+            else {
+                next = b[j++];
+            }
+            if (size == 0 || result[size - 1] != next) {
+                result[size++] = next;
+            }
+        }
+        long[] trimmed = new long[size];
+        System.arraycopy(result, 0, trimmed, 0, size);
+        return trimmed;
+    }
+
+    /**
+     * The probes of one class. The arrays are read without the lock; a thread reading a stale array at worst takes the
+     * lock and sets a probe again.
+     */
+    private static final class Probes {
+        private volatile long[] lines = new long[0];
+
+        private volatile long[] branches = new long[0];
+
+        /**
+         * The probes of the tests that ended, not saved yet.
+         */
+        private long[] endedLines = new long[0];
+
+        private long[] endedBranches = new long[0];
+
+        void touchLine(int line) {
+            long[] bits = lines;
+            int word = line >>> 6;
+            if (word < bits.length && (bits[word] & (1L << line)) != 0) {
+                return;
+            }
+            setLine(line);
+        }
+
+        private synchronized void setLine(int line) {
+            int word = line >>> 6;
+            long[] bits = lines;
+            if (word >= bits.length) {
+                long[] grown = new long[Math.max(word + 1, 2 * bits.length)];
+                System.arraycopy(bits, 0, grown, 0, bits.length);
+                bits = grown;
+            }
+            bits[word] |= 1L << line;
+            lines = bits;
+        }
+
+        void touchBranch(long key) {
+            if (Arrays.binarySearch(branches, key) < 0) {
+                addBranch(key);
+            }
+        }
+
+        private synchronized void addBranch(long key) {
+            long[] keys = branches;
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            long[] added = new long[keys.length + 1];
+            System.arraycopy(keys, 0, added, 0, index);
+            added[index] = key;
+            System.arraycopy(keys, index, added, index + 1, keys.length - index);
+            branches = added;
+        }
+
+        /**
+         * Add the identifiers of the probes hit since the previous test to those of a test, and clear them.
+         */
+        synchronized void endTest(String className, TestMaps maps, IntList ids) {
+            long[] bits = lines;
+            long[] keys = branches;
+            if (bits.length == 0 && keys.length == 0) {
+                return;
+            }
+            lines = new long[0];
+            branches = new long[0];
+            endedLines = or(endedLines, bits);
+            endedBranches = union(endedBranches, keys);
+
+            for (int word = 0; word < bits.length; word++) {
+                for (long remaining = bits[word]; remaining != 0; remaining &= remaining - 1) {
+                    int line = word * 64 + Long.numberOfTrailingZeros(remaining);
+                    ids.add(maps.id(className, key(LINE, line, 0, 0)));
+                }
+            }
+            for (int i = 0; i < keys.length; i++) {
+                ids.add(maps.id(className, keys[i]));
+            }
+        }
+
+        synchronized void drainTo(ProjectData projectData, String className) {
+            long[] bits = or(lines, endedLines);
+            long[] keys = union(branches, endedBranches);
+            lines = new long[0];
+            branches = new long[0];
+            endedLines = new long[0];
+            endedBranches = new long[0];
+            if (bits.length == 0 && keys.length == 0) {
+                return;
+            }
+
+            ClassData classData = projectData.getOrCreateClassData(className);
+            for (int word = 0; word < bits.length; word++) {
+                for (long remaining = bits[word]; remaining != 0; remaining &= remaining - 1) {
+                    classData.touch(word * 64 + Long.numberOfTrailingZeros(remaining), 1);
+                }
+            }
+            for (int i = 0; i < keys.length; i++) {
+                int kind = (int) (keys[i] >>> 62);
+                int line = (int) ((keys[i] >>> 32) & 0x3fffffff);
+                int number = (int) ((keys[i] >>> 16) & 0xffff);
+                int branch = (short) (keys[i] & 0xffff);
+                if (kind == JUMP) {
+                    classData.touchJump(line, number, branch != 0, 1);
+                }
+                else {
+                    classData.touchSwitch(line, number, branch, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable array of primitive ints.
+     */
+    private static final class IntList {
+        private int[] values = new int[16];
+
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[2 * size];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        void addAll(IntList list) {
+            for (int i = 0; i < list.size; i++) {
+                add(list.values[i]);
+            }
+        }
+
+        int[] toSortedArray() {
+            int[] sorted = new int[size];
+            System.arraycopy(values, 0, sorted, 0, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * A test that started and did not end yet, with the identifiers of the probes credited to it.
+     */
+    private static final class RunningTest {
+        private final String name;
+
+        private final IntList ids;
+
+        RunningTest(String name, IntList ids) {
+            this.name = name;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * The coverage maps of the tests of this JVM, over probe identifiers given in the order the probes are first hit.
+     */
+    private static final class TestMaps {
+        private final Map<String, Map<Long, Integer>> ids = new HashMap<String, Map<Long, Integer>>();
+
+        private final List<String> probeClasses = new ArrayList<String>();
+
+        private final List<Long> probeKeys = new ArrayList<Long>();
+
+        private final List<String> tests = new ArrayList<String>();
+
+        private final List<byte[]> maps = new ArrayList<byte[]>();
+
+        int id(String className, long key) {
+            Map<Long, Integer> classIds = ids.get(className);
+            if (classIds == null) {
+                classIds = new HashMap<Long, Integer>();
+                ids.put(className, classIds);
+            }
+            Integer id = classIds.get(key);
+            if (id == null) {
+                id = probeKeys.size();
+                classIds.put(key, id);
+                probeClasses.add(className);
+                probeKeys.add(key);
+            }
+            return id;
+        }
+
+        void add(String test, IntList probes) {
+            tests.add(test);
+            maps.add(encode(probes.toSortedArray()));
+        }
+
+        /**
+         * Append a block holding the dictionary of the probes, sorted by class and key so that the probes of a method
+         * get consecutive indexes, and the maps of the tests over those indexes.
+         */
+        void append(File file) throws IOException {
+            Integer[] order = new Integer[probeKeys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new ProbeOrder(probeClasses, probeKeys));
+            int[] indexes = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                indexes[order[i]] = i;
+            }
+
+            Map<String, List<Long>> dictionary = new TreeMap<String, List<Long>>();
+            for (int i = 0; i < order.length; i++) {
+                String className = probeClasses.get(order[i]);
+                List<Long> keys = dictionary.get(className);
+                if (keys == null) {
+                    keys = new ArrayList<Long>();
+                    dictionary.put(className, keys);
+                }
+                keys.add(probeKeys.get(order[i]));
+            }
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(block);
+            out.writeInt(TEST_MAPS_MAGIC);
+            out.writeInt(dictionary.size());
+            for (Map.Entry<String, List<Long>> entry : dictionary.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Long key : entry.getValue()) {
+                    out.writeLong(key.longValue());
+                }
+            }
+            out.writeInt(tests.size());
+            for (int i = 0; i < tests.size(); i++) {
+                int[] probes = decode(maps.get(i));
+                for (int j = 0; j < probes.length; j++) {
+                    probes[j] = indexes[probes[j]];
+                }
+                Arrays.sort(probes);
+                byte[] map = encode(probes);
+                out.writeUTF(tests.get(i));
+                out.writeInt(map.length);
+                out.write(map);
+            }
+            out.flush();
+
+            // appended under the lock Cobertura takes on data files, the JVMs of a build may end together
+            synchronized (file.getPath().intern()) {
+                FileLocker fileLocker = new FileLocker(file);
+                try {
+                    if (!fileLocker.lock()) {
+                        throw new IOException("Unable to lock " + file);
+                    }
+                    BufferedOutputStream stream = new BufferedOutputStream(new FileOutputStream(file, true));
+                    try {
+                        block.writeTo(stream);
+                    }
+                    finally {
+                        stream.close();
+                    }
+                }
+                finally {
+                    fileLocker.release();
+                }
+            }
+        }
+
+        /**
+         * Encode sorted indexes as runs of consecutive indexes: the gap from the end of the previous run and the length
+         * of the run minus one, as unsigned variable-length integers.
+         */
+        static byte[] encode(int[] sorted) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int end = 0;
+            for (int i = 0; i < sorted.length;) {
+                int start = sorted[i];
+                int j = i + 1;
+                while (j < sorted.length && sorted[j] <= sorted[j - 1] + 1) {
+                    j++;
+                }
+                writeVarInt(out, start - end);
+                writeVarInt(out, sorted[j - 1] - start);
+                end = sorted[j - 1] + 1;
+                i = j;
+            }
+            return out.toByteArray();
+        }
+
+        static int[] decode(byte[] map) {
+            IntList values = new IntList();
+            int[] position = new int[1];
+            int end = 0;
+            while (position[0] < map.length) {
+                int start = end + readVarInt(map, position);
+                int last = start + readVarInt(map, position);
+                for (int value = start; value <= last; value++) {
+                    values.add(value);
+                }
+                end = last + 1;
+            }
+            return values.toSortedArray();
+        }
+
+        private static void writeVarInt(ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static int readVarInt(byte[] bytes, int[] position) {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                int b = bytes[position[0]++];
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders probe identifiers by class name, then key.
+     */
+    private static final class ProbeOrder implements Comparator<Integer> {
+        private final List<String> classes;
+
+        private final List<Long> keys;
+
+        ProbeOrder(List<String> classes, List<Long> keys) {
+            this.classes = classes;
+            this.keys = keys;
+        }
+
+        public int compare(Integer a, Integer b) {
+            int byClass = classes.get(a).compareTo(classes.get(b));
+            if (byClass != 0) {
+                return byClass;
+            }
+            // signed, like the binary searches of the readers
+            long keyA = keys.get(a).longValue();
+            long keyB = keys.get(b).longValue();
+            return keyA < keyB ? -1 : (keyA > keyB ? 1 : 0);
+        }
+    }
+
+    private static final class Saver extends Thread {
+        public void run() {
+            save();
+        }
+    }
+}
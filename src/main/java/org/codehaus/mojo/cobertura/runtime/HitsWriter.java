@@ -0,0 +1,121 @@
+package org.codehaus.mojo.cobertura.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.util.FileLocker;
+
+/**
+ * Saves the hits of the collectors of this package, into the data file or into a shard of their own.
+ */
+final class HitsWriter {
+    private static int saves;
+
+    private HitsWriter() {
+    }
+
+    /**
+     * Merge hits into the data file under the same locks Cobertura uses, or write them to a shard when
+     * {@link StripedTouchCollector#SHARDS_PROPERTY} is set.
+     *
+     * @param projectData the hits, without line definitions.
+     */
+    static void save(ProjectData projectData) {
+        File dataFile = CoverageDataFileHandler.getDefaultDataFile();
+        if (isSharded()) {
+            if (!projectData.getClasses().isEmpty()) {
+                saveShard(projectData, dataFile);
+            }
+            return;
+        }
+        synchronized (dataFile.getPath().intern()) {
+            FileLocker fileLocker = new FileLocker(dataFile);
+            try {
+                if (fileLocker.lock()) {
+                    ProjectData saved = dataFile.isFile() ? CoverageDataFileHandler.loadCoverageData(dataFile) : null;
+                    if (saved != null) {
+                        // the instrumented lines come first
+                        saved.merge(projectData);
+                        projectData = saved;
+                    }
+                    CoverageDataFileHandler.saveCoverageData(projectData, dataFile);
+                }
+            }
+            finally {
+                fileLocker.release();
+            }
+        }
+    }
+
+    /**
+     * Write the hits to a new shard, renamed once complete so that it is never folded half written.
+     */
+    private static void saveShard(ProjectData projectData, File dataFile) {
+        int save;
+        synchronized (HitsWriter.class) {
+            save = saves++;
+        }
+        // pid@host, and the start time in case the pid is reused before the shards are folded
+        String jvm = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9]", "_") + "-"
+            + ManagementFactory.getRuntimeMXBean().getStartTime();
+        File shard = new File(dataFile.getAbsoluteFile().getParentFile(), dataFile.getName() + "." + jvm + "-" + save
+            + StripedTouchCollector.SHARD_SUFFIX);
+        File tmp = new File(shard.getPath() + ".tmp");
+        CoverageDataFileHandler.saveCoverageData(projectData, tmp);
+        if (!tmp.renameTo(shard)) {
+            tmp.delete();
+            System.err.println("Cobertura: unable to write " + shard);
+        }
+    }
+
+    private static boolean isSharded() {
+        String sharded = System.getProperty(StripedTouchCollector.SHARDS_PROPERTY);
+        if (sharded == null) {
+            InputStream in = HitsWriter.class.getResourceAsStream("/cobertura.properties");
+            if (in != null) {
+                try {
+                    Properties properties = new Properties();
+                    properties.load(in);
+                    sharded = properties.getProperty(StripedTouchCollector.SHARDS_PROPERTY);
+                }
+                catch (IOException e) {
+                    // not sharded
+                }
+                finally {
+                    try {
+                        in.close();
+                    }
+                    catch (IOException e) {
+                        // ignored
+                    }
+                }
+            }
+        }
+        return Boolean.valueOf(sharded).booleanValue();
+    }
+}
@@ -0,0 +1,251 @@
+package org.codehaus.mojo.cobertura.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+/**
+ * A replacement for the <code>TouchCollector</code> of Cobertura, counting the hits of every thread in its own
+ * primitive arrays.
+ * <p>
+ * The stock collector counts all hits in shared atomic counters, which the threads of a heavily multi-threaded test
+ * keep fighting over. Here each thread counts into its own open-addressing table, guarded by a lock no other thread
+ * takes until the counts are saved, so the counting does not slow down as threads are added. The counts of all the
+ * threads are summed when the JVM exits, or when {@link #save()} is called, and merged into the data file under the
+ * same locks Cobertura uses.
+ * </p>
+ * <p>
+ * When {@link #SHARDS_PROPERTY} is <code>true</code>, as a system property or in the <code>cobertura.properties</code>
+ * of the classpath, the counts are instead written to a shard of their own next to the data file, without taking any
+ * lock or reading the data file. The plugin folds the shards into the data file before reading it.
+ * </p>
+ * <p>
+ * Instrumented classes call this class once their calls to <code>TouchCollector</code> are rewritten. It only
+ * depends on the Cobertura runtime.
+ * </p>
+ */
+public final class StripedTouchCollector {
+    /**
+     * The property enabling the shards.
+     */
+    public static final String SHARDS_PROPERTY = "org.codehaus.mojo.cobertura.shards";
+
+    /**
+     * The suffix of the shards, named after the data file, the JVM and the number of the save.
+     */
+    public static final String SHARD_SUFFIX = ".shard";
+
+    private static final int LINE = 0;
+
+    private static final int JUMP = 1;
+
+    private static final int SWITCH = 2;
+
+    /**
+     * The counters of all the threads that touched a line.
+     */
+    private static final List<Counters> COUNTERS = new ArrayList<Counters>();
+
+    private static final ThreadLocal<Counters> THREAD_COUNTERS = new ThreadCounters();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Saver());
+    }
+
+    private StripedTouchCollector() {
+    }
+
+    public static void touch(String className, int line) {
+        THREAD_COUNTERS.get().increment(className, key(LINE, line, 0, 0));
+    }
+
+    public static void touchJump(String className, int line, int branchNumber, boolean branch) {
+        THREAD_COUNTERS.get().increment(className, key(JUMP, line, branchNumber, branch ? 1 : 0));
+    }
+
+    public static void touchSwitch(String className, int line, int switchNumber, int branch) {
+        THREAD_COUNTERS.get().increment(className, key(SWITCH, line, switchNumber, branch));
+    }
+
+    /**
+     * Sum the hits counted so far by all the threads and merge them into the data file, or write them to a shard.
+     */
+    public static void save() {
+        ProjectData projectData = new ProjectData();
+        synchronized (COUNTERS) {
+            for (Counters counters : COUNTERS) {
+                counters.drainTo(projectData);
+            }
+        }
+
+        HitsWriter.save(projectData);
+    }
+
+    /**
+     * Pack a counter: 2 bits of kind, 30 bits of line, 16 bits of jump or switch number and 16 bits of branch.
+     */
+    private static long key(int kind, int line, int number, int branch) {
+        return ((long) kind << 62) | ((long) (line & 0x3fffffff) << 32) | ((long) (number & 0xffff) << 16)
+            | (branch & 0xffff);
+    }
+
+    /**
+     * The counters of one thread, by class.
+     */
+    private static final class Counters {
+        private final Map<String, Counts> classes = new HashMap<String, Counts>();
+
+        private String lastClassName;
+
+        private Counts lastCounts;
+
+        synchronized void increment(String className, long key) {
+            // the class names are constants of the instrumented classes, hence interned
+            if (className != lastClassName) {
+                Counts counts = classes.get(className);
+                if (counts == null) {
+                    counts = new Counts();
+                    classes.put(className, counts);
+                }
+                lastClassName = className;
+                lastCounts = counts;
+            }
+            lastCounts.increment(key);
+        }
+
+        synchronized void drainTo(ProjectData projectData) {
+            for (Map.Entry<String, Counts> entry : classes.entrySet()) {
+                entry.getValue().applyTo(projectData.getOrCreateClassData(entry.getKey()));
+            }
+            classes.clear();
+            lastClassName = null;
+            lastCounts = null;
+        }
+    }
+
+    /**
+     * The hits of one class, in an open-addressing table of primitive keys and counts.
+     */
+    private static final class Counts {
+        /**
+         * No counter has kind 3.
+         */
+        private static final long FREE = -1L;
+
+        private long[] keys = newKeys(16);
+
+        private long[] hits = new long[16];
+
+        private int size;
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            return keys;
+        }
+
+        void increment(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == FREE) {
+                    if (2 * (size + 1) > keys.length) {
+                        grow();
+                        increment(key);
+                        return;
+                    }
+                    keys[slot] = key;
+                    size++;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            hits[slot]++;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldHits = hits;
+            keys = newKeys(oldKeys.length * 2);
+            hits = new long[oldKeys.length * 2];
+            size = 0;
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    int slot = (int) ((oldKeys[i] * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+                    while (keys[slot] != FREE) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    hits[slot] = oldHits[i];
+                    size++;
+                }
+            }
+        }
+
+        void applyTo(ClassData classData) {
+            for (int i = 0; i < keys.length; i++) {
+                long key = keys[i];
+                if (key == FREE) {
+                    continue;
+                }
+                int kind = (int) (key >>> 62);
+                int line = (int) ((key >>> 32) & 0x3fffffff);
+                int number = (int) ((key >>> 16) & 0xffff);
+                int branch = (short) (key & 0xffff);
+                for (long remaining = hits[i]; remaining > 0; remaining -= Integer.MAX_VALUE) {
+                    int count = (int) Math.min(remaining, Integer.MAX_VALUE);
+                    if (kind == LINE) {
+                        classData.touch(line, count);
+                    }
+                    else if (kind == JUMP) {
+                        classData.touchJump(line, number, branch != 0, count);
+                    }
+                    else {
+                        classData.touchSwitch(line, number, branch, count);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class ThreadCounters extends ThreadLocal<Counters> {
+        protected Counters initialValue() {
+            Counters counters = new Counters();
+            synchronized (COUNTERS) {
+                COUNTERS.add(counters);
+            }
+            return counters;
+        }
+    }
+
+    private static final class Saver extends Thread {
+        public void run() {
+            save();
+        }
+    }
+}
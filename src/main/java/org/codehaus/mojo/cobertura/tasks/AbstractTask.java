@@ -19,6 +19,7 @@ package org.codehaus.mojo.cobertura.tasks;
  * under the License.
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -56,6 +57,14 @@ public abstract class AbstractTask
 
     private boolean quiet;
 
+    private boolean fork;
+
+    private boolean useWorker;
+
+    private int workerIdleTimeout;
+
+    private File workerDirectory;
+
     /**
      * Initialize AbstractTask.
      * 
@@ -66,6 +75,8 @@ public abstract class AbstractTask
         taskClass = taskClassname;
         cmdLineArgs = new CommandLineArguments();
         maxmem = "64m";
+        fork = true;
+        workerIdleTimeout = 600;
     }
 
     /**
@@ -88,6 +99,86 @@ public abstract class AbstractTask
         return quiet;
     }
 
+    /**
+     * Setter for <code>fork</code>.
+     * 
+     * @param fork <code>false</code> to run the task in-process instead of in a forked JVM.
+     */
+    public void setFork( boolean fork )
+    {
+        this.fork = fork;
+    }
+
+    /**
+     * Getter for <code>fork</code>.
+     * 
+     * @return Returns whether the task runs in a forked JVM.
+     */
+    public boolean isFork()
+    {
+        return fork;
+    }
+
+    /**
+     * Setter for <code>useWorker</code>.
+     * 
+     * @param useWorker <code>true</code> to send the task to a long-lived worker JVM.
+     */
+    public void setUseWorker( boolean useWorker )
+    {
+        this.useWorker = useWorker;
+    }
+
+    /**
+     * Getter for <code>useWorker</code>.
+     * 
+     * @return Returns whether the task is sent to a long-lived worker JVM.
+     */
+    public boolean isUseWorker()
+    {
+        return useWorker;
+    }
+
+    /**
+     * Setter for <code>workerDirectory</code>.
+     * 
+     * @param workerDirectory The directory holding the worker port files, <code>null</code> for the default one.
+     */
+    public void setWorkerDirectory( File workerDirectory )
+    {
+        this.workerDirectory = workerDirectory;
+    }
+
+    /**
+     * Getter for <code>workerDirectory</code>.
+     * 
+     * @return Returns the directory holding the worker port files.
+     */
+    public File getWorkerDirectory()
+    {
+        return workerDirectory;
+    }
+
+    /**
+     * Setter for <code>workerIdleTimeout</code>.
+     * 
+     * @param workerIdleTimeout The number of seconds a newly started worker stays alive without requests.
+     */
+    public void setWorkerIdleTimeout( int workerIdleTimeout )
+    {
+        this.workerIdleTimeout = workerIdleTimeout;
+    }
+
+    /**
+     * Getter for <code>workerIdleTimeout</code>.
+     * 
+     * @return Returns the number of seconds a newly started worker stays alive without requests.
+     */
+    public int getWorkerIdleTimeout()
+    {
+        return workerIdleTimeout;
+    }
+
     /**
      * Using the <code>${project.compileClasspathElements}</code> and the <code>${plugin.artifacts}</code>, create
      * a classpath string that is suitable to be used from a forked cobertura process.
@@ -157,6 +248,44 @@ public abstract class AbstractTask
     protected int executeJava()
         throws MojoExecutionException
     {
+        return executeJava( cmdLineArgs );
+    }
+
+    /**
+     * Run the task class with the given arguments, in a forked JVM, in-process or in the worker JVM depending on the
+     * task settings. Safe to call concurrently with different arguments.
+     * 
+     * @param arguments the command line arguments of the task class.
+     * @return the exit code of the task.
+     * @throws MojoExecutionException if the task could not be started.
+     */
+    protected int executeJava( CommandLineArguments arguments )
+        throws MojoExecutionException
+    {
+        if ( useWorker )
+        {
+            try
+            {
+                return executeInWorker( arguments );
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Unable to use the Cobertura task worker: " + e.getMessage()
+                    + " Falling back to a forked JVM." );
+            }
+        }
+        else if ( !fork )
+        {
+            try
+            {
+                return executeInProcess( arguments );
+            }
+            catch ( UnsupportedOperationException e )
+            {
+                getLog().warn( e.getMessage() + " Falling back to a forked JVM." );
+            }
+        }
+
         Commandline cl = new Commandline();
         File java = new File( SystemUtils.getJavaHome(), "bin/java" );
         cl.setExecutable( java.getAbsolutePath() );
@@ -173,12 +302,12 @@ public abstract class AbstractTask
 
         cl.createArg().setValue( taskClass );
 
-        if ( cmdLineArgs.useCommandsFile() )
+        if ( arguments.useCommandsFile() )
         {
             cl.createArg().setValue( "--commandsfile" );
             try
             {
-                String commandsFile = cmdLineArgs.getCommandsFile();
+                String commandsFile = arguments.getCommandsFile();
                 cl.createArg().setValue( commandsFile );
                 FileUtils.copyFile( new File( commandsFile ), new File( commandsFile + ".bak" ) );
             }
@@ -189,7 +318,7 @@ public abstract class AbstractTask
         }
         else
         {
-            Iterator it = cmdLineArgs.iterator();
+            Iterator it = arguments.iterator();
             while ( it.hasNext() )
             {
                 cl.createArg().setValue( it.next().toString() );
@@ -229,8 +358,93 @@ public abstract class AbstractTask
 
         getLog().debug( "exit code: " + exitCode );
 
-        String output = stdout.getOutput();
+        logTaskOutput( stdout.getOutput(), stderr.getOutput() );
+
+        return exitCode;
+    }
+
+    /**
+     * Run the task class inside this JVM, using a cached class loader for the plugin classpath.
+     * 
+     * @param arguments the command line arguments of the task class.
+     * @return the exit code of the task.
+     * @throws MojoExecutionException if the task could not be started.
+     * @throws UnsupportedOperationException if this JVM does not allow running tasks in-process.
+     */
+    private int executeInProcess( CommandLineArguments arguments )
+        throws MojoExecutionException
+    {
+        String[] args = toArray( arguments );
+
+        getLog().debug( "Executing " + taskClass + " in-process with arguments:" );
+        getLog().debug( arguments.getArgs().toString() );
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        int exitCode;
+        try
+        {
+            exitCode = InProcessTaskRunner.run( createClasspath(), getLog4jConfigFile(), taskClass, args, stdout, stderr );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to execute Cobertura in-process.", e );
+        }
+
+        return taskFinished( exitCode, stdout, stderr );
+    }
+
+    /**
+     * Send the task to the long-lived worker JVM for the plugin classpath, starting it if needed.
+     * 
+     * @param arguments the command line arguments of the task class.
+     * @return the exit code of the task.
+     * @throws MojoExecutionException if the classpath cannot be resolved.
+     * @throws IOException if the worker cannot be reached or started.
+     */
+    private int executeInWorker( CommandLineArguments arguments )
+        throws MojoExecutionException, IOException
+    {
+        String[] args = toArray( arguments );
+
+        TaskWorkerClient client = new TaskWorkerClient( createClasspath(), maxmem, workerIdleTimeout, getLog() );
+        if ( workerDirectory != null )
+        {
+            client.setWorkerDirectory( workerDirectory );
+        }
+
+        getLog().debug( "Executing " + taskClass + " in worker " + client.getWorkerKey() + " with arguments:" );
+        getLog().debug( arguments.getArgs().toString() );
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        int exitCode = client.execute( taskClass, getLog4jConfigFile(), args, stdout, stderr );
+
+        return taskFinished( exitCode, stdout, stderr );
+    }
+
+    private static String[] toArray( CommandLineArguments arguments )
+    {
+        List args = arguments.getArgs();
+        return (String[]) args.toArray( new String[args.size()] );
+    }
+
+    private int taskFinished( int exitCode, ByteArrayOutputStream stdout, ByteArrayOutputStream stderr )
+    {
+        getLog().debug( "exit code: " + exitCode );
+
+        if ( !quiet )
+        {
+            logTaskOutput( stdout.toString(), stderr.toString() );
+        }
+
+        return exitCode;
+    }
 
+    private void logTaskOutput( String output, String stream )
+    {
         if ( output.trim().length() > 0 )
         {
             getLog().debug( "--------------------" );
@@ -240,18 +454,31 @@ public abstract class AbstractTask
             getLog().debug( "--------------------" );
         }
 
-        String stream = stderr.getOutput();
-
         if ( stream.trim().length() > 0 )
         {
             getLog().debug( "--------------------" );
             getLog().debug( " Standard error from the Cobertura task:" );
             getLog().debug( "--------------------" );
-            getLog().error( stderr.getOutput() );
+            getLog().error( stream );
             getLog().debug( "--------------------" );
         }
+    }
 
-        return exitCode;
+    /**
+     * Give another task the same log, classpath and execution settings as this one.
+     * 
+     * @param task the task to configure.
+     */
+    protected void configure( AbstractTask task )
+    {
+        task.setLog( getLog() );
+        task.setPluginClasspathList( pluginClasspathList );
+        task.setMaxmem( maxmem );
+        task.setQuiet( quiet );
+        task.setFork( fork );
+        task.setUseWorker( useWorker );
+        task.setWorkerIdleTimeout( workerIdleTimeout );
+        task.setWorkerDirectory( workerDirectory );
     }
 
     public CommandLineArguments getCmdLineArgs()
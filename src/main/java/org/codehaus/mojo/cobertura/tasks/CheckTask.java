@@ -19,10 +19,16 @@ package org.codehaus.mojo.cobertura.tasks;
  * under the License.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.mojo.cobertura.configuration.ConfigCheck;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
 import org.codehaus.plexus.util.StringUtils;
 
 /**
@@ -37,6 +43,10 @@ public class CheckTask
 
     private String dataFile;
 
+    private boolean nativeCheck;
+
+    private File violationsFile;
+
     public CheckTask()
     {
         super( "net.sourceforge.cobertura.check.Main" );
@@ -45,6 +55,12 @@ public class CheckTask
     public void execute()
         throws MojoExecutionException
     {
+        if ( nativeCheck || violationsFile != null )
+        {
+            executeNative();
+            return;
+        }
+
         if ( dataFile != null )
         {
             cmdLineArgs.addArg( "--datafile", dataFile );
@@ -88,8 +104,61 @@ public class CheckTask
 
         int returnCode = executeJava();
 
-        // Check the return code and print a message
-        if ( returnCode == 0 )
+        checkResult( returnCode == 0 );
+    }
+
+    /**
+     * Check the data file with {@link CoverageChecker} instead of forking the Cobertura check.
+     */
+    private void executeNative()
+        throws MojoExecutionException
+    {
+        ProjectData projectData = CompactDataFile.loadCoverageData( new File( dataFile ) );
+        if ( projectData == null )
+        {
+            throw new MojoExecutionException( "Unable to read dataFile [" + dataFile + "]" );
+        }
+
+        check( projectData );
+    }
+
+    /**
+     * Check coverage data that is already loaded with {@link CoverageChecker}.
+     * 
+     * @param projectData the coverage data.
+     * @throws MojoExecutionException if the check fails and <code>haltOnFailure</code> is set.
+     */
+    public void check( ProjectData projectData )
+        throws MojoExecutionException
+    {
+        CoverageChecker checker = new CoverageChecker( config );
+        checker.setStopAtFirstViolation( config.isHaltOnFailure() );
+        List<CoverageChecker.Violation> violations = checker.check( projectData );
+
+        for ( CoverageChecker.Violation violation : violations )
+        {
+            getLog().error( violation.getMessage() );
+        }
+
+        if ( violationsFile != null )
+        {
+            try
+            {
+                CoverageChecker.writeViolations( violations, violationsFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to write " + violationsFile, e );
+            }
+        }
+
+        checkResult( violations.isEmpty() );
+    }
+
+    private void checkResult( boolean passed )
+        throws MojoExecutionException
+    {
+        if ( passed )
         {
             getLog().info( "All checks passed." );
         }
@@ -119,6 +188,16 @@ public class CheckTask
         return dataFile;
     }
 
+    public boolean isNativeCheck()
+    {
+        return nativeCheck;
+    }
+
+    public File getViolationsFile()
+    {
+        return violationsFile;
+    }
+
     public void setConfig( ConfigCheck config )
     {
         this.config = config;
@@ -132,4 +211,20 @@ public class CheckTask
         this.dataFile = dataFile;
     }
 
+    /**
+     * @param nativeCheck <code>true</code> to check inside the Maven JVM with {@link CoverageChecker}.
+     */
+    public void setNativeCheck( boolean nativeCheck )
+    {
+        this.nativeCheck = nativeCheck;
+    }
+
+    /**
+     * @param violationsFile the XML file receiving the violations, implies a native check.
+     */
+    public void setViolationsFile( File violationsFile )
+    {
+        this.violationsFile = violationsFile;
+    }
+
 }
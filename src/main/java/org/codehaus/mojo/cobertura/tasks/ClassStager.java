@@ -0,0 +1,231 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Stages the compiled classes into the instrumentation directory without rewriting files that are already current.
+ * <p>
+ * Files that will be instrumented are copied, since Cobertura rewrites them in place. Every other file is hard-linked
+ * when the JVM and the file system support it, and copied otherwise. Copies keep the modification time of their
+ * source, so a file whose size and modification time match its source is left alone.
+ * </p>
+ */
+public class ClassStager {
+    private static final Method TO_PATH;
+
+    private static final Method CREATE_LINK;
+
+    static {
+        // java.nio.file is only available from Java 7 on.
+        Method toPath = null;
+        Method createLink = null;
+        try {
+            Class path = Class.forName("java.nio.file.Path");
+            toPath = File.class.getMethod("toPath", new Class[0]);
+            createLink = Class.forName("java.nio.file.Files").getMethod("createLink", new Class[] { path, path });
+        }
+        catch (Exception e) {
+            toPath = null;
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private final Set<String> instrumentedFiles;
+
+    private int skipped;
+
+    private int linked;
+
+    private int copied;
+
+    /**
+     * Create a stager.
+     *
+     * @param instrumentedFiles the files that will be instrumented, relative to the classes directory. These are
+     *                          never linked. <code>null</code> to copy every file.
+     */
+    public ClassStager(Collection instrumentedFiles) {
+        if (instrumentedFiles == null) {
+            this.instrumentedFiles = null;
+        }
+        else {
+            this.instrumentedFiles = new HashSet<String>();
+            for (Iterator it = instrumentedFiles.iterator(); it.hasNext();) {
+                this.instrumentedFiles.add(normalize((String) it.next()));
+            }
+        }
+    }
+
+    /**
+     * Stage every file of <code>sourceDir</code> that is not current in <code>destDir</code>.
+     *
+     * @param sourceDir the compiled classes directory.
+     * @param destDir   the instrumentation directory.
+     * @throws IOException if a file cannot be linked or copied.
+     */
+    public void stage(File sourceDir, File destDir) throws IOException {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(sourceDir);
+        scanner.scan();
+        String[] files = scanner.getIncludedFiles();
+        for (int i = 0; i < files.length; i++) {
+            File source = new File(sourceDir, files[i]);
+            File dest = new File(destDir, files[i]);
+            if (isCurrent(source, dest)) {
+                skipped++;
+            }
+            else {
+                write(source, dest, files[i]);
+            }
+        }
+    }
+
+    /**
+     * Delete the files of <code>destDir</code> that are no longer in <code>sourceDir</code>, such as deleted or renamed
+     * classes. Only for a directory holding nothing but staged files.
+     *
+     * @param sourceDir the compiled classes directory.
+     * @param destDir   the staging directory.
+     * @return the number of files deleted.
+     * @throws IOException if a file cannot be deleted.
+     */
+    public int removeStale(File sourceDir, File destDir) throws IOException {
+        if (!destDir.isDirectory()) {
+            return 0;
+        }
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(destDir);
+        scanner.scan();
+        String[] files = scanner.getIncludedFiles();
+        int removed = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (!new File(sourceDir, files[i]).exists()) {
+                File stale = new File(destDir, files[i]);
+                if (!stale.delete()) {
+                    throw new IOException("Unable to delete " + stale);
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Write one file to the instrumentation directory, linking it unless it will be instrumented.
+     *
+     * @param source the compiled file.
+     * @param dest   the file in the instrumentation directory.
+     * @param path   the path of the file, relative to the classes directory.
+     * @throws IOException if the file cannot be linked or copied.
+     */
+    public void write(File source, File dest, String path) throws IOException {
+        if (instrumentedFiles != null && !instrumentedFiles.contains(normalize(path)) && link(source, dest)) {
+            linked++;
+        }
+        else {
+            copy(source, dest);
+            copied++;
+        }
+    }
+
+    /**
+     * @return a summary of the files staged so far.
+     */
+    public String getSummary() {
+        return "Staged classes: " + copied + " copied, " + linked + " linked, " + skipped + " up to date.";
+    }
+
+    /**
+     * @param source a file.
+     * @param dest   a copy or link of <code>source</code>.
+     * @return <code>true</code> if <code>dest</code> exists with the size and modification time of <code>source</code>.
+     */
+    public static boolean isCurrent(File source, File dest) {
+        return dest.exists() && dest.length() == source.length() && dest.lastModified() == source.lastModified();
+    }
+
+    /**
+     * Copy a file, keeping its modification time.
+     *
+     * @param source the file to copy.
+     * @param dest   the copy, replaced if it exists.
+     * @throws IOException if the file cannot be copied.
+     */
+    public static void copy(File source, File dest) throws IOException {
+        // Never write through an existing hard link to the source.
+        dest.delete();
+        FileUtils.copyFile(source, dest);
+        dest.setLastModified(source.lastModified());
+    }
+
+    /**
+     * Hard-link a file, replacing the destination.
+     *
+     * @param source the existing file.
+     * @param dest   the link to create.
+     * @return <code>false</code> if this JVM or the file system does not support hard links, or the files are on
+     *         different file systems.
+     */
+    public static boolean link(File source, File dest) {
+        if (CREATE_LINK == null) {
+            return false;
+        }
+        dest.getParentFile().mkdirs();
+        dest.delete();
+        try {
+            CREATE_LINK.invoke(null, new Object[] { TO_PATH.invoke(dest, new Object[0]),
+                TO_PATH.invoke(source, new Object[0]) });
+            return true;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hard-link a file, or copy it when it cannot be linked.
+     *
+     * @param source the existing file.
+     * @param dest   the link or copy to create.
+     * @throws IOException if the file can neither be linked nor copied.
+     */
+    public static void linkOrCopy(File source, File dest) throws IOException {
+        if (!link(source, dest)) {
+            copy(source, dest);
+        }
+    }
+
+    private static String normalize(String path) {
+        return path.replace('\\', '/');
+    }
+}
@@ -0,0 +1,146 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.sourceforge.cobertura.reporting.ComplexityCalculator;
+
+/**
+ * Access to the per source file cache of a {@link ComplexityCalculator}.
+ * <p>
+ * Parsing the sources for their cyclomatic complexity is the most expensive part of a report. Cobertura caches the
+ * result per source file, but keeps the cache private, so it is reached through reflection. Every method reports
+ * whether it could, so that callers can fall back to letting the calculator parse the sources again.
+ * </p>
+ */
+final class ComplexityCache {
+    private static final Field SOURCE_FILE_CACHE;
+
+    private static final Constructor COMPLEXITY;
+
+    private static final Field ACCUMULATED;
+
+    private static final Field METHODS;
+
+    static {
+        Field cache = null;
+        Constructor complexity = null;
+        Field accumulated = null;
+        Field methods = null;
+        try {
+            cache = ComplexityCalculator.class.getDeclaredField("sourceFileCNNCache");
+            cache.setAccessible(true);
+            Class complexityClass = Class.forName(ComplexityCalculator.class.getName() + "$Complexity");
+            complexity = complexityClass.getConstructor(new Class[] { Double.TYPE, Integer.TYPE });
+            complexity.setAccessible(true);
+            accumulated = complexityClass.getDeclaredField("accumlatedCCN");
+            accumulated.setAccessible(true);
+            methods = complexityClass.getDeclaredField("methodsNum");
+            methods.setAccessible(true);
+        }
+        catch (Exception e) {
+            cache = null;
+        }
+        SOURCE_FILE_CACHE = cache;
+        COMPLEXITY = complexity;
+        ACCUMULATED = accumulated;
+        METHODS = methods;
+    }
+
+    private ComplexityCache() {
+    }
+
+    /**
+     * Add the complexity computed by one calculator to the cache of another.
+     *
+     * @param from the calculator that parsed the sources.
+     * @param to   the calculator receiving the complexity.
+     * @return <code>false</code> if the cache of this Cobertura version is not accessible.
+     */
+    static boolean copy(ComplexityCalculator from, ComplexityCalculator to) {
+        if (SOURCE_FILE_CACHE == null) {
+            return false;
+        }
+        try {
+            ((Map) SOURCE_FILE_CACHE.get(to)).putAll((Map) SOURCE_FILE_CACHE.get(from));
+            return true;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param calculator a calculator.
+     * @return the complexity of every source file in its cache, as <code>accumulatedCCN:methods</code> by source
+     *         file name, or an empty map if the cache is not accessible.
+     */
+    static Map<String, String> export(ComplexityCalculator calculator) {
+        Map<String, String> result = new HashMap<String, String>();
+        if (SOURCE_FILE_CACHE == null) {
+            return result;
+        }
+        try {
+            Map cache = (Map) SOURCE_FILE_CACHE.get(calculator);
+            for (Iterator it = cache.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                result.put((String) entry.getKey(), ACCUMULATED.getDouble(entry.getValue()) + ":"
+                    + METHODS.getInt(entry.getValue()));
+            }
+        }
+        catch (Exception e) {
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Seed the cache of a calculator with the complexity exported by {@link #export(ComplexityCalculator)}.
+     *
+     * @param calculator the calculator.
+     * @param values     the complexity by source file name.
+     * @return <code>false</code> if the cache of this Cobertura version is not accessible.
+     */
+    static boolean load(ComplexityCalculator calculator, Map<String, String> values) {
+        if (SOURCE_FILE_CACHE == null) {
+            return false;
+        }
+        try {
+            Map cache = (Map) SOURCE_FILE_CACHE.get(calculator);
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                String value = entry.getValue();
+                int separator = value.indexOf(':');
+                Object complexity = COMPLEXITY.newInstance(new Object[] {
+                    Double.valueOf(value.substring(0, separator)),
+                    Integer.valueOf(value.substring(separator + 1)) });
+                cache.put(entry.getKey(), complexity);
+            }
+            return true;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.PatternSyntaxException;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.configuration.ConfigCheck;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Checks coverage data against the thresholds of a {@link ConfigCheck}, inside the Maven JVM.
+ * <p>
+ * The rules are those of <code>net.sourceforge.cobertura.check.Main</code>: every class must reach the class
+ * thresholds, or those of the first regex matching its name, every package the package thresholds and the project the
+ * total thresholds. When no threshold and no regex is configured, all thresholds are 50%, otherwise the missing ones
+ * are 0%. The check can stop at the first violation.
+ * </p>
+ */
+public class CoverageChecker {
+    private final Rate classRate;
+
+    private final Rate packageRate;
+
+    private final Rate totalRate;
+
+    private final RuleMatcher<Rate> regexRates;
+
+    private boolean stopAtFirstViolation;
+
+    /**
+     * @param config the thresholds, as percentages.
+     * @throws MojoExecutionException if a threshold is not a percentage or a regex is invalid.
+     */
+    public CoverageChecker(ConfigCheck config) throws MojoExecutionException {
+        boolean unset = StringUtils.isEmpty(config.getBranchRate()) && StringUtils.isEmpty(config.getLineRate())
+            && StringUtils.isEmpty(config.getPackageBranchRate()) && StringUtils.isEmpty(config.getPackageLineRate())
+            && StringUtils.isEmpty(config.getTotalBranchRate()) && StringUtils.isEmpty(config.getTotalLineRate())
+            && config.getRegexes().isEmpty();
+        double defaultRate = unset ? 0.5 : 0.0;
+
+        classRate = new Rate(rate(config.getLineRate(), defaultRate), rate(config.getBranchRate(), defaultRate));
+        packageRate = new Rate(rate(config.getPackageLineRate(), defaultRate), rate(config.getPackageBranchRate(),
+                                                                                   defaultRate));
+        totalRate = new Rate(rate(config.getTotalLineRate(), defaultRate), rate(config.getTotalBranchRate(),
+                                                                               defaultRate));
+
+        List<String> patterns = new ArrayList<String>();
+        List<Rate> patternRates = new ArrayList<Rate>();
+        for (Iterator it = config.getRegexes().iterator(); it.hasNext();) {
+            // pattern:lineRate:branchRate, the fields of the Ant regex are not visible
+            String regex = it.next().toString();
+            int branchSeparator = regex.lastIndexOf(':');
+            int lineSeparator = branchSeparator > 0 ? regex.lastIndexOf(':', branchSeparator - 1) : -1;
+            if (lineSeparator < 0) {
+                throw new MojoExecutionException("Invalid regex check '" + regex + "'.");
+            }
+            patterns.add(regex.substring(0, lineSeparator));
+            patternRates.add(new Rate(rate(regex.substring(lineSeparator + 1, branchSeparator), 0.0),
+                                      rate(regex.substring(branchSeparator + 1), 0.0)));
+        }
+        try {
+            regexRates = new RuleMatcher<Rate>(patterns, patternRates);
+        }
+        catch (PatternSyntaxException e) {
+            throw new MojoExecutionException("Invalid regex check '" + e.getPattern() + "'.", e);
+        }
+    }
+
+    /**
+     * Check coverage data.
+     *
+     * @param projectData the coverage data.
+     * @return the violations, in the order they were found.
+     */
+    public List<Violation> check(ProjectData projectData) {
+        List<Violation> violations = new ArrayList<Violation>();
+        Map<String, long[]> packages = new TreeMap<String, long[]>();
+        long[] total = new long[4];
+
+        for (Iterator it = projectData.getClasses().iterator(); it.hasNext();) {
+            ClassData classData = (ClassData) it.next();
+            Rate rate = findRate(classData.getName());
+
+            if (classData.getBranchCoverageRate() < rate.branch) {
+                violations.add(new Violation(Violation.SCOPE_CLASS, classData.getName(), Violation.METRIC_BRANCH,
+                                             classData.getBranchCoverageRate(), rate.branch));
+            }
+            if (classData.getLineCoverageRate() < rate.line) {
+                violations.add(new Violation(Violation.SCOPE_CLASS, classData.getName(), Violation.METRIC_LINE,
+                                             classData.getLineCoverageRate(), rate.line));
+            }
+            if (stopAtFirstViolation && !violations.isEmpty()) {
+                return violations;
+            }
+
+            long[] counts = packages.get(classData.getPackageName());
+            if (counts == null) {
+                counts = new long[4];
+                packages.put(classData.getPackageName(), counts);
+            }
+            add(counts, classData);
+            add(total, classData);
+        }
+
+        for (Map.Entry<String, long[]> entry : packages.entrySet()) {
+            check(violations, Violation.SCOPE_PACKAGE, entry.getKey(), entry.getValue(), packageRate);
+            if (stopAtFirstViolation && !violations.isEmpty()) {
+                return violations;
+            }
+        }
+
+        check(violations, Violation.SCOPE_PROJECT, null, total, totalRate);
+        return violations;
+    }
+
+    /**
+     * The thresholds of a class: those of the first matching regex, else the class thresholds.
+     */
+    private Rate findRate(String className) {
+        Rate rate = regexRates.find(className);
+        return rate != null ? rate : classRate;
+    }
+
+    /**
+     * Add the line and branch counts of a class: covered lines, valid lines, covered branches, valid branches.
+     */
+    private static void add(long[] counts, ClassData classData) {
+        counts[0] += classData.getNumberOfCoveredLines();
+        counts[1] += classData.getNumberOfValidLines();
+        counts[2] += classData.getNumberOfCoveredBranches();
+        counts[3] += classData.getNumberOfValidBranches();
+    }
+
+    private static void check(List<Violation> violations, String scope, String name, long[] counts, Rate rate) {
+        if (counts[3] > 0 && (double) counts[2] / counts[3] < rate.branch) {
+            violations.add(new Violation(scope, name, Violation.METRIC_BRANCH, (double) counts[2] / counts[3],
+                                         rate.branch));
+        }
+        if (counts[1] > 0 && (double) counts[0] / counts[1] < rate.line) {
+            violations.add(new Violation(scope, name, Violation.METRIC_LINE, (double) counts[0] / counts[1],
+                                         rate.line));
+        }
+    }
+
+    private static double rate(String percentage, double defaultRate) throws MojoExecutionException {
+        if (StringUtils.isEmpty(percentage)) {
+            return defaultRate;
+        }
+        int value;
+        try {
+            value = Integer.parseInt(percentage.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new MojoExecutionException("The value " + percentage + " is not a percentage.");
+        }
+        if (value < 0 || value > 100) {
+            throw new MojoExecutionException("The value " + value
+                + "% is invalid.  Percentages must be between 0 and 100.");
+        }
+        return value / 100d;
+    }
+
+    /**
+     * Write violations to an XML file.
+     *
+     * @param violations the violations.
+     * @param file       the file.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void writeViolations(List<Violation> violations, File file) throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<violations count=\"" + violations.size() + "\">\n");
+            for (Violation violation : violations) {
+                out.write("  <violation scope=\"" + violation.getScope() + "\"");
+                if (violation.getName() != null) {
+                    out.write(" name=\"" + escape(violation.getName()) + "\"");
+                }
+                out.write(" metric=\"" + violation.getMetric() + "\" rate=\"" + violation.getRate()
+                    + "\" minimum=\"" + violation.getMinimum() + "\"/>\n");
+            }
+            out.write("</violations>\n");
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static String escape(String value) {
+        return StringUtils.replace(StringUtils.replace(StringUtils.replace(value, "&", "&amp;"), "<", "&lt;"), "\"",
+                                   "&quot;");
+    }
+
+    /**
+     * @param stopAtFirstViolation whether to stop checking at the first violation.
+     */
+    public void setStopAtFirstViolation(boolean stopAtFirstViolation) {
+        this.stopAtFirstViolation = stopAtFirstViolation;
+    }
+
+    public boolean isStopAtFirstViolation() {
+        return stopAtFirstViolation;
+    }
+
+    /**
+     * A pair of line and branch thresholds, as fractions.
+     */
+    private static final class Rate {
+        private final double line;
+
+        private final double branch;
+
+        Rate(double line, double branch) {
+            this.line = line;
+            this.branch = branch;
+        }
+    }
+
+    /**
+     * A coverage rate below its threshold.
+     */
+    public static final class Violation {
+        public static final String SCOPE_CLASS = "class";
+
+        public static final String SCOPE_PACKAGE = "package";
+
+        public static final String SCOPE_PROJECT = "project";
+
+        public static final String METRIC_LINE = "line";
+
+        public static final String METRIC_BRANCH = "branch";
+
+        private final String scope;
+
+        private final String name;
+
+        private final String metric;
+
+        private final double rate;
+
+        private final double minimum;
+
+        Violation(String scope, String name, String metric, double rate, double minimum) {
+            this.scope = scope;
+            this.name = name;
+            this.metric = metric;
+            this.rate = rate;
+            this.minimum = minimum;
+        }
+
+        /**
+         * @return {@link #SCOPE_CLASS}, {@link #SCOPE_PACKAGE} or {@link #SCOPE_PROJECT}.
+         */
+        public String getScope() {
+            return scope;
+        }
+
+        /**
+         * @return the class or package name, <code>null</code> for the project.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return {@link #METRIC_LINE} or {@link #METRIC_BRANCH}.
+         */
+        public String getMetric() {
+            return metric;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public double getMinimum() {
+            return minimum;
+        }
+
+        /**
+         * @return the message of <code>net.sourceforge.cobertura.check.Main</code> for this violation.
+         */
+        public String getMessage() {
+            String measure = METRIC_LINE.equals(metric) ? "line coverage rate" : "branch coverage rate";
+            String subject;
+            if (SCOPE_CLASS.equals(scope)) {
+                subject = name + " failed check. " + Character.toUpperCase(measure.charAt(0)) + measure.substring(1);
+            }
+            else if (SCOPE_PACKAGE.equals(scope)) {
+                subject = "Package " + name + " failed check. Package " + measure;
+            }
+            else {
+                subject = "Project failed check. Total " + measure;
+            }
+            return subject + " of " + percentage(rate) + "% is below " + percentage(minimum) + "%";
+        }
+
+        private static String percentage(double rate) {
+            return String.valueOf(Math.round(rate * 1000) / 10d);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.JumpData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.coveragedata.SourceFileData;
+import net.sourceforge.cobertura.coveragedata.SwitchData;
+import net.sourceforge.cobertura.reporting.ComplexityCalculator;
+import net.sourceforge.cobertura.reporting.html.HTMLReport;
+import net.sourceforge.cobertura.util.FileFinder;
+import net.sourceforge.cobertura.util.Header;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Renders the Cobertura HTML report on several threads, and optionally only the pages whose content changed.
+ * <p>
+ * The annotated source pages are dealt out to shards of similar size, largest first. Each shard renders its source
+ * files with its own {@link HTMLReport} into a scratch directory, which reads, highlights and writes the annotated
+ * source pages, and computes the complexity of the shard's source files. The complexity caches of the shards are then
+ * handed to the shared {@link ComplexityCalculator}, and a last {@link HTMLReport} over the whole project writes the
+ * index, package and summary pages without looking at any source. Finally the annotated source pages of the shards
+ * replace the placeholders of that last pass.
+ * </p>
+ * <p>
+ * In incremental mode a fingerprint of every source page, made of its coverage counts and a hash of the source, is
+ * kept in {@link #STATE_FILE} next to the report, together with the complexity of the source file. Only the source
+ * pages whose fingerprint changed, or which are missing, are rendered again. The index, package and summary pages are
+ * always rewritten, which is cheap once the complexity of the unchanged source files comes from the state file.
+ * </p>
+ */
+public class HtmlReportRenderer {
+    /**
+     * The file in the report directory keeping the fingerprints of the rendered pages.
+     */
+    public static final String STATE_FILE = ".cobertura-report.properties";
+
+    private static final String FORMAT_KEY = "@format";
+
+    private static final String PAGE_PREFIX = "page.";
+
+    private static final String COMPLEXITY_PREFIX = "ccn.";
+
+    private final int threads;
+
+    private final Log log;
+
+    private boolean incremental;
+
+    /**
+     * @param threads the number of threads rendering pages.
+     * @param log     the log to report progress to.
+     */
+    public HtmlReportRenderer(int threads, Log log) {
+        this.threads = Math.max(1, threads);
+        this.log = log;
+    }
+
+    /**
+     * Render the report.
+     *
+     * @param projectData       the coverage data.
+     * @param outputDirectory   the report directory.
+     * @param sourceDirectories the source directories.
+     * @param complexity        the complexity calculator of the report, receives the complexity of every source file.
+     * @param encoding          the encoding of the sources.
+     * @throws MojoExecutionException if a page cannot be rendered.
+     */
+    public void render(ProjectData projectData, File outputDirectory, List<String> sourceDirectories,
+                       ComplexityCalculator complexity, String encoding) throws MojoExecutionException {
+        File scratchDirectory = new File(outputDirectory, ".shards");
+        File stateFile = new File(outputDirectory, STATE_FILE);
+        String format = "html/" + encoding + "/" + Header.version();
+
+        try {
+            FileUtils.deleteDirectory(scratchDirectory);
+
+            FileFinder finder = new FileFinder();
+            for (String sourceDirectory : sourceDirectories) {
+                finder.addSourceDirectory(sourceDirectory);
+            }
+
+            Properties previous = incremental ? loadState(stateFile, format) : new Properties();
+            Properties state = new Properties();
+            state.setProperty(FORMAT_KEY, format);
+
+            List<SourceFileData> changed = new ArrayList<SourceFileData>();
+            Map<String, String> unchangedComplexity = new HashMap<String, String>();
+            Set<String> pages = new HashSet<String>();
+            for (Iterator it = projectData.getSourceFiles().iterator(); it.hasNext();) {
+                SourceFileData sourceFileData = (SourceFileData) it.next();
+                String page = sourceFileData.getNormalizedName() + ".html";
+                pages.add(page);
+
+                if (!incremental) {
+                    changed.add(sourceFileData);
+                    continue;
+                }
+
+                String fingerprint = fingerprint(sourceFileData, finder);
+                state.setProperty(PAGE_PREFIX + page, fingerprint);
+
+                String previousComplexity = previous.getProperty(COMPLEXITY_PREFIX + sourceFileData.getName());
+                if (fingerprint.equals(previous.getProperty(PAGE_PREFIX + page)) && previousComplexity != null
+                    && (new File(outputDirectory, page).exists() || !sourceFileData.containsInstrumentationInfo())) {
+                    unchangedComplexity.put(sourceFileData.getName(), previousComplexity);
+                }
+                else {
+                    changed.add(sourceFileData);
+                }
+            }
+
+            if (incremental) {
+                log.info("Rendering " + changed.size() + " of " + pages.size() + " HTML source pages.");
+            }
+            List<List<SourceFileData>> shards = split(changed, threads);
+            if (!shards.isEmpty()) {
+                log.info("Rendering the HTML report of " + changed.size() + " source files in " + shards.size()
+                    + " shards.");
+            }
+
+            List<ComplexityCalculator> shardComplexities = renderShards(shards, scratchDirectory, sourceDirectories,
+                                                                         encoding);
+            boolean shared = ComplexityCache.load(complexity, unchangedComplexity);
+            for (ComplexityCalculator shardComplexity : shardComplexities) {
+                shared &= ComplexityCache.copy(shardComplexity, complexity);
+            }
+            if (!shared) {
+                log.debug("Unable to share the complexity of the source files, it is computed again.");
+            }
+
+            // Index, package and summary pages, with placeholders instead of the annotated sources. In incremental
+            // mode they are rendered aside, so that the placeholders do not replace the unchanged source pages.
+            File indexDirectory = incremental ? new File(scratchDirectory, "index") : outputDirectory;
+            new HTMLReport(projectData, indexDirectory, new FileFinder(), complexity, encoding);
+            if (incremental) {
+                copyDirectory(indexDirectory, outputDirectory, "", pages);
+            }
+
+            for (int i = 0; i < shards.size(); i++) {
+                File shardDirectory = new File(scratchDirectory, String.valueOf(i));
+                for (SourceFileData sourceFileData : shards.get(i)) {
+                    String page = sourceFileData.getNormalizedName() + ".html";
+                    moveFile(new File(shardDirectory, page), new File(outputDirectory, page));
+                }
+            }
+
+            for (Iterator it = previous.keySet().iterator(); it.hasNext();) {
+                String key = (String) it.next();
+                if (key.startsWith(PAGE_PREFIX) && !pages.contains(key.substring(PAGE_PREFIX.length()))) {
+                    new File(outputDirectory, key.substring(PAGE_PREFIX.length())).delete();
+                }
+            }
+
+            if (incremental) {
+                for (Map.Entry<String, String> entry : ComplexityCache.export(complexity).entrySet()) {
+                    state.setProperty(COMPLEXITY_PREFIX + entry.getKey(), entry.getValue());
+                }
+                saveState(state, stateFile);
+            }
+            else {
+                // the fingerprints of an earlier incremental run no longer describe the pages
+                stateFile.delete();
+            }
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to render the HTML Cobertura report.", e);
+        }
+        catch (MojoExecutionException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new MojoExecutionException("Unable to render the HTML Cobertura report.", e);
+        }
+        finally {
+            try {
+                FileUtils.deleteDirectory(scratchDirectory);
+            }
+            catch (IOException e) {
+                log.warn("Unable to delete " + scratchDirectory);
+            }
+        }
+    }
+
+    private List<ComplexityCalculator> renderShards(List<List<SourceFileData>> shards, File scratchDirectory,
+                                                    final List<String> sourceDirectories, final String encoding)
+        throws MojoExecutionException {
+        List<ComplexityCalculator> complexities = new ArrayList<ComplexityCalculator>();
+        if (shards.isEmpty()) {
+            return complexities;
+        }
+
+        List<Future<ComplexityCalculator>> results = new ArrayList<Future<ComplexityCalculator>>();
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                final ProjectData shardData = new ProjectData();
+                for (SourceFileData sourceFileData : shards.get(i)) {
+                    for (Iterator it = sourceFileData.getClasses().iterator(); it.hasNext();) {
+                        shardData.addClassData((ClassData) it.next());
+                    }
+                }
+                final File shardDirectory = new File(scratchDirectory, String.valueOf(i));
+
+                results.add(executor.submit(new Callable<ComplexityCalculator>() {
+                    public ComplexityCalculator call() throws Exception {
+                        FileFinder finder = new FileFinder();
+                        for (String sourceDirectory : sourceDirectories) {
+                            finder.addSourceDirectory(sourceDirectory);
+                        }
+                        ComplexityCalculator shardComplexity = new ComplexityCalculator(finder);
+                        new HTMLReport(shardData, shardDirectory, finder, shardComplexity, encoding);
+                        return shardComplexity;
+                    }
+                }));
+            }
+
+            for (Future<ComplexityCalculator> result : results) {
+                complexities.add(waitFor(result));
+            }
+            return complexities;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ComplexityCalculator waitFor(Future<ComplexityCalculator> result) throws MojoExecutionException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            throw new MojoExecutionException("Interrupted while rendering the HTML Cobertura report.", e);
+        }
+        catch (ExecutionException e) {
+            throw new MojoExecutionException("Unable to render the HTML Cobertura report.", e.getCause());
+        }
+    }
+
+    /**
+     * The fingerprint of the annotated source page of a source file: everything the page shows, that is the hits of
+     * every line and condition of its classes, and the source itself.
+     */
+    static String fingerprint(SourceFileData sourceFileData, FileFinder finder) {
+        StringBuffer buffer = new StringBuffer(sourceFileData.getNormalizedName());
+        for (Iterator classes = sourceFileData.getClasses().iterator(); classes.hasNext();) {
+            ClassData classData = (ClassData) classes.next();
+            buffer.append('|').append(classData.getName()).append(':')
+                .append(classData.containsInstrumentationInfo());
+            for (Iterator lines = classData.getLines().iterator(); lines.hasNext();) {
+                LineData lineData = (LineData) lines.next();
+                buffer.append(';').append(lineData.getLineNumber()).append('=').append(lineData.getHits())
+                    .append(',').append(lineData.getMethodName());
+                for (int i = 0; i < lineData.getConditionSize(); i++) {
+                    Object condition = lineData.getConditionData(i);
+                    if (condition instanceof JumpData) {
+                        JumpData jumpData = (JumpData) condition;
+                        buffer.append(",j").append(jumpData.getTrueHits()).append('/')
+                            .append(jumpData.getFalseHits());
+                    }
+                    else if (condition instanceof SwitchData) {
+                        SwitchData switchData = (SwitchData) condition;
+                        buffer.append(",s").append(switchData.getDefaultHits());
+                        for (int j = 0; j < switchData.getNumberOfValidBranches() - 1; j++) {
+                            buffer.append('/').append(switchData.getHits(j));
+                        }
+                    }
+                }
+            }
+        }
+
+        buffer.append("|source:");
+        try {
+            buffer.append(InstrumentationManifest.hash(finder.getFileForSource(sourceFileData.getName())));
+        }
+        catch (IOException e) {
+            // the page says the source cannot be found
+            buffer.append("none");
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(buffer.toString().getBytes("UTF-8"));
+            StringBuffer hex = new StringBuffer();
+            for (int i = 0; i < hash.length; i++) {
+                hex.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available: " + e.getMessage());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("UTF-8 is not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the state of the previous run, empty if there is none or it was rendered in another format.
+     */
+    private Properties loadState(File stateFile, String format) {
+        Properties state = new Properties();
+        if (!stateFile.exists()) {
+            return state;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(stateFile);
+            state.load(in);
+        }
+        catch (IOException e) {
+            log.warn("Unable to read " + stateFile + ", the whole HTML report is rendered.");
+            state.clear();
+        }
+        finally {
+            IOUtil.close(in);
+        }
+        if (!format.equals(state.getProperty(FORMAT_KEY))) {
+            state.clear();
+        }
+        return state;
+    }
+
+    private static void saveState(Properties state, File stateFile) throws IOException {
+        OutputStream out = new FileOutputStream(stateFile);
+        try {
+            state.store(out, "Cobertura HTML report fingerprints");
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+
+    /**
+     * Copy a directory tree, except the given files.
+     *
+     * @param source   the directory to copy.
+     * @param dest     the destination directory.
+     * @param path     the path of <code>source</code> below the copied root, ending with a slash unless empty.
+     * @param excluded the paths below the copied root of the files not to copy.
+     */
+    private static void copyDirectory(File source, File dest, String path, Set<String> excluded) throws IOException {
+        File[] files = source.listFiles();
+        if (files == null) {
+            return;
+        }
+        dest.mkdirs();
+        for (int i = 0; i < files.length; i++) {
+            String filePath = path + files[i].getName();
+            if (files[i].isDirectory()) {
+                copyDirectory(files[i], new File(dest, files[i].getName()), filePath + "/", excluded);
+            }
+            else if (!excluded.contains(filePath)) {
+                moveFile(files[i], new File(dest, files[i].getName()));
+            }
+        }
+    }
+
+    private static void moveFile(File source, File dest) throws IOException {
+        if (!source.exists()) {
+            // not rendered, the data file has no instrumentation information for it
+            return;
+        }
+        dest.delete();
+        if (!source.renameTo(dest)) {
+            FileUtils.copyFile(source, dest);
+        }
+    }
+
+    /**
+     * Deal the source files out to the shards, largest first, always to the shard with the fewest lines so far.
+     */
+    private static List<List<SourceFileData>> split(List<SourceFileData> sourceFiles, int threads) {
+        List<SourceFileData> sorted = new ArrayList<SourceFileData>(sourceFiles);
+        Collections.sort(sorted, new Comparator<SourceFileData>() {
+            public int compare(SourceFileData a, SourceFileData b) {
+                return b.getNumberOfValidLines() - a.getNumberOfValidLines();
+            }
+        });
+
+        int shardCount = Math.min(threads, sorted.size());
+        List<List<SourceFileData>> shards = new ArrayList<List<SourceFileData>>();
+        int[] shardLines = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<SourceFileData>());
+        }
+        for (SourceFileData sourceFileData : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (shardLines[i] < shardLines[smallest]) {
+                    smallest = i;
+                }
+            }
+            shards.get(smallest).add(sourceFileData);
+            // count empty source files too, so that they are spread out
+            shardLines[smallest] += sourceFileData.getNumberOfValidLines() + 1;
+        }
+        return shards;
+    }
+
+    /**
+     * @param incremental whether to render only the source pages whose fingerprint changed since the last run.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+}
@@ -0,0 +1,307 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Runs the <code>main</code> method of a Cobertura entry point inside the current JVM instead of a forked one.
+ * <p>
+ * Each classpath gets its own isolated class loader, which is cached and reused by later tasks, so that JVM startup,
+ * class loading and JIT warm-up happen once per build rather than once per task. Loaders are pooled, so tasks
+ * running concurrently never share the static state of a Cobertura entry point.
+ * </p>
+ * <p>
+ * The Cobertura entry points report failures through <code>System.exit()</code> and print to the standard streams.
+ * While a task runs, calls to <code>System.exit()</code> from its thread are trapped and turned into the exit code,
+ * and anything the thread prints is captured the same way the output of a forked process would be.
+ * </p>
+ * <p>
+ * This class only depends on the JDK, so that it can be used outside of the Maven plugin realm.
+ * </p>
+ */
+public final class InProcessTaskRunner {
+
+    private static final Object LOCK = new Object();
+
+    private static final Map<String, LinkedList<ClassLoader>> IDLE_LOADERS =
+        new HashMap<String, LinkedList<ClassLoader>>();
+
+    private static final ThreadLocal<OutputStream> CAPTURED_OUT = new ThreadLocal<OutputStream>();
+
+    private static final ThreadLocal<OutputStream> CAPTURED_ERR = new ThreadLocal<OutputStream>();
+
+    private static final ThreadLocal<Integer> EXIT_STATUS = new ThreadLocal<Integer>();
+
+    private static final ThreadLocal<Boolean> TRAP_EXIT = new ThreadLocal<Boolean>();
+
+    private static int activeTasks;
+
+    private static PrintStream originalOut;
+
+    private static PrintStream originalErr;
+
+    private static SecurityManager originalSecurityManager;
+
+    private InProcessTaskRunner() {
+        // static helper
+    }
+
+    /**
+     * Runs a task entry point in an isolated class loader.
+     *
+     * @param classpath   the classpath of the task, as a {@link File#pathSeparator} separated string.
+     * @param log4jConfig the URL of the log4j configuration to use when a new class loader is created, may be
+     *                    <code>null</code>.
+     * @param taskClass   the class name of the entry point.
+     * @param args        the command line arguments.
+     * @param stdout      receives everything the task prints to <code>System.out</code>.
+     * @param stderr      receives everything the task prints to <code>System.err</code>.
+     * @return the exit code of the task, <code>0</code> if it returned normally.
+     * @throws UnsupportedOperationException if the JVM does not allow trapping <code>System.exit()</code>.
+     * @throws IOException if the classpath cannot be turned into a class loader.
+     */
+    public static int run(String classpath, String log4jConfig, String taskClass, String[] args,
+                          OutputStream stdout, OutputStream stderr) throws IOException {
+        ClassLoader loader = borrowLoader(classpath, log4jConfig);
+        try {
+            return run(loader, taskClass, args, stdout, stderr);
+        }
+        finally {
+            releaseLoader(classpath, loader);
+        }
+    }
+
+    private static int run(ClassLoader loader, String taskClass, String[] args, OutputStream stdout,
+                           OutputStream stderr) {
+        enter();
+
+        Thread thread = Thread.currentThread();
+        ClassLoader contextLoader = thread.getContextClassLoader();
+        PrintStream err = new PrintStream(stderr, true);
+
+        CAPTURED_OUT.set(stdout);
+        CAPTURED_ERR.set(stderr);
+        EXIT_STATUS.set(null);
+        TRAP_EXIT.set(Boolean.TRUE);
+        thread.setContextClassLoader(loader);
+        try {
+            Method main = Class.forName(taskClass, true, loader).getMethod("main", new Class[] { String[].class });
+            main.invoke(null, new Object[] { args });
+            return exitStatus(0);
+        }
+        catch (InvocationTargetException e) {
+            if (EXIT_STATUS.get() == null) {
+                e.getTargetException().printStackTrace(err);
+            }
+            return exitStatus(1);
+        }
+        catch (Exception e) {
+            e.printStackTrace(err);
+            return exitStatus(1);
+        }
+        finally {
+            err.flush();
+            thread.setContextClassLoader(contextLoader);
+            TRAP_EXIT.set(null);
+            CAPTURED_OUT.set(null);
+            CAPTURED_ERR.set(null);
+            EXIT_STATUS.set(null);
+            leave();
+        }
+    }
+
+    private static int exitStatus(int defaultStatus) {
+        Integer status = EXIT_STATUS.get();
+        return status != null ? status.intValue() : defaultStatus;
+    }
+
+    private static ClassLoader borrowLoader(String classpath, String log4jConfig) throws IOException {
+        synchronized (LOCK) {
+            LinkedList<ClassLoader> idle = IDLE_LOADERS.get(classpath);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+        }
+        return createLoader(classpath, log4jConfig);
+    }
+
+    private static void releaseLoader(String classpath, ClassLoader loader) {
+        synchronized (LOCK) {
+            LinkedList<ClassLoader> idle = IDLE_LOADERS.get(classpath);
+            if (idle == null) {
+                idle = new LinkedList<ClassLoader>();
+                IDLE_LOADERS.put(classpath, idle);
+            }
+            idle.addFirst(loader);
+        }
+    }
+
+    private static ClassLoader createLoader(String classpath, String log4jConfig) throws MalformedURLException {
+        List<URL> urls = new ArrayList<URL>();
+        StringTokenizer tokens = new StringTokenizer(classpath, File.pathSeparator);
+        while (tokens.hasMoreTokens()) {
+            urls.add(new File(tokens.nextToken()).toURI().toURL());
+        }
+
+        // Only the JDK is shared with the caller, just like a forked JVM.
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]),
+                                                ClassLoader.getSystemClassLoader().getParent());
+
+        // log4j reads its configuration once, when it is first initialized in the new class loader.
+        synchronized (LOCK) {
+            String previous = System.getProperty("log4j.configuration");
+            try {
+                if (log4jConfig != null) {
+                    System.setProperty("log4j.configuration", log4jConfig);
+                }
+                Class.forName("org.apache.log4j.LogManager", true, loader);
+            }
+            catch (ClassNotFoundException e) {
+                // no log4j on the task classpath
+            }
+            finally {
+                if (previous != null) {
+                    System.setProperty("log4j.configuration", previous);
+                }
+                else {
+                    System.getProperties().remove("log4j.configuration");
+                }
+            }
+        }
+        return loader;
+    }
+
+    private static void enter() {
+        synchronized (LOCK) {
+            if (activeTasks == 0) {
+                SecurityManager current = System.getSecurityManager();
+                try {
+                    System.setSecurityManager(new ExitTrappingSecurityManager(current));
+                }
+                catch (SecurityException e) {
+                    throw new UnsupportedOperationException("Unable to trap System.exit(): " + e.getMessage());
+                }
+                originalSecurityManager = current;
+                originalOut = System.out;
+                originalErr = System.err;
+                System.setOut(new PrintStream(new RedirectingOutputStream(CAPTURED_OUT, originalOut), true));
+                System.setErr(new PrintStream(new RedirectingOutputStream(CAPTURED_ERR, originalErr), true));
+            }
+            activeTasks++;
+        }
+    }
+
+    private static void leave() {
+        synchronized (LOCK) {
+            activeTasks--;
+            if (activeTasks == 0) {
+                System.setOut(originalOut);
+                System.setErr(originalErr);
+                System.setSecurityManager(originalSecurityManager);
+                originalOut = null;
+                originalErr = null;
+                originalSecurityManager = null;
+            }
+        }
+    }
+
+    /**
+     * Sends the output of task threads to their capture stream and the output of every other thread to the original
+     * stream. Cobertura's log4j appenders keep a reference to the stream that was current when they were created,
+     * so this stream has to keep working after the runner restored the original streams.
+     */
+    private static final class RedirectingOutputStream extends OutputStream {
+        private final ThreadLocal<OutputStream> captured;
+
+        private final OutputStream fallback;
+
+        RedirectingOutputStream(ThreadLocal<OutputStream> captured, OutputStream fallback) {
+            this.captured = captured;
+            this.fallback = fallback;
+        }
+
+        private OutputStream target() {
+            OutputStream out = captured.get();
+            return out != null ? out : fallback;
+        }
+
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    /**
+     * Turns <code>System.exit()</code> calls made by a task thread into an exception, and delegates every other
+     * check to the security manager that was installed before.
+     */
+    private static final class ExitTrappingSecurityManager extends SecurityManager {
+        private final SecurityManager delegate;
+
+        ExitTrappingSecurityManager(SecurityManager delegate) {
+            this.delegate = delegate;
+        }
+
+        public void checkExit(int status) {
+            if (TRAP_EXIT.get() != null) {
+                EXIT_STATUS.set(new Integer(status));
+                throw new SecurityException("System.exit(" + status + ") trapped for in-process task.");
+            }
+            if (delegate != null) {
+                delegate.checkExit(status);
+            }
+        }
+
+        public void checkPermission(Permission perm) {
+            if (delegate != null) {
+                delegate.checkPermission(perm);
+            }
+        }
+
+        public void checkPermission(Permission perm, Object context) {
+            if (delegate != null) {
+                delegate.checkPermission(perm, context);
+            }
+        }
+    }
+}
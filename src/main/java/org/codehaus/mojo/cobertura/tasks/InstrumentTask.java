@@ -21,10 +21,24 @@ package org.codehaus.mojo.cobertura.tasks;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
 
 import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
 import org.codehaus.mojo.cobertura.configuration.ConfigInstrumentation;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.StringUtils;
@@ -43,6 +57,16 @@ public class InstrumentTask
 
     private File destinationDir = null;
 
+    private InstrumentationManifest manifest = null;
+
+    private int threads = 1;
+
+    private String mergeMode = MergeTask.MODE_FORK;
+
+    private InstrumentationCache cache = null;
+
+    private List<String> instrumentedFilenames = Collections.emptyList();
+
     /**
      * Create a new InstrumentTask.
      */
@@ -54,26 +78,199 @@ public class InstrumentTask
     public void execute()
         throws MojoExecutionException
     {
-        /* this task should always use the commands file approach */
-        cmdLineArgs.setUseCommandsFile( true );
+        List filenames = getFilenames( config.getBasedir() );
+        instrumentedFilenames = Collections.emptyList();
 
-        if ( dataFile != null )
+        if ( filenames.isEmpty() )
         {
-            cmdLineArgs.addArg( "--datafile", dataFile.getAbsolutePath() );
+            getLog().warn( "No files to instrument." );
+            return;
         }
 
-        if ( destinationDir != null )
+        if ( manifest != null )
         {
-            cmdLineArgs.addArg( "--destination", destinationDir.getAbsolutePath() );
+            int total = filenames.size();
+            for ( Iterator it = filenames.iterator(); it.hasNext(); )
+            {
+                if ( manifest.isUpToDate( (String) it.next() ) )
+                {
+                    it.remove();
+                }
+            }
+
+            if ( filenames.isEmpty() )
+            {
+                getLog().info( "All " + total + " instrumented files are up to date." );
+                return;
+            }
+            if ( filenames.size() < total )
+            {
+                getLog().info( "Instrumenting " + filenames.size() + " of " + total
+                    + " files, the others are up to date." );
+            }
         }
 
-        Iterator it = config.getIgnores().iterator();
-        while ( it.hasNext() )
+        instrumentedFilenames = new ArrayList<String>( filenames );
+
+        if ( cache != null && dataFile != null )
         {
-            String ignore = (String) it.next();
-            cmdLineArgs.addArg( "--ignore", ignore );
+            executeCached( filenames );
+        }
+        else
+        {
+            instrument( filenames, dataFile );
+        }
+
+        if ( !isQuiet() )
+        {
+            getLog().info( "Instrumentation was successful." );
+        }
+    }
+
+    /**
+     * Instrument files, sharded when there are several threads.
+     * 
+     * @param filenames the files to instrument, relative to the basedir.
+     * @param targetDataFile the data file receiving their coverage data.
+     * @throws MojoExecutionException if the files could not be instrumented.
+     */
+    private void instrument( List filenames, File targetDataFile )
+        throws MojoExecutionException
+    {
+        int shards = Math.min( threads, filenames.size() );
+        if ( shards > 1 && targetDataFile != null )
+        {
+            executeSharded( filenames, shards, targetDataFile );
+        }
+        else
+        {
+            addArguments( cmdLineArgs, targetDataFile, filenames );
+
+            if ( executeJava() != 0 )
+            {
+                throw new MojoExecutionException( "Unable to instrument project." );
+            }
+        }
+    }
+
+    /**
+     * Copy the classes found in the cache, instrument the others into a data file of their own, store them in the
+     * cache and merge all their coverage data into the data file.
+     * 
+     * @param filenames the files to instrument, relative to the basedir.
+     * @throws MojoExecutionException if the files could not be instrumented or the data file could not be updated.
+     */
+    private void executeCached( List filenames )
+        throws MojoExecutionException
+    {
+        File targetDir = ( destinationDir != null ) ? destinationDir : config.getBasedir();
+        ProjectData projectData = new ProjectData();
+        List<String> misses = new ArrayList<String>();
+        Map<String, String> keys = new HashMap<String, String>();
+
+        for ( Iterator it = filenames.iterator(); it.hasNext(); )
+        {
+            String filename = (String) it.next();
+            if ( !filename.endsWith( ".class" ) )
+            {
+                // archives are instrumented every time
+                misses.add( filename );
+                continue;
+            }
+
+            String key;
+            try
+            {
+                key = cache.key( new File( config.getBasedir(), filename ) );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to read " + filename + ".", e );
+            }
+            if ( !cache.restore( key, new File( targetDir, filename ), projectData ) )
+            {
+                misses.add( filename );
+                keys.put( filename, key );
+            }
+        }
+
+        getLog().info( "Found " + ( filenames.size() - misses.size() ) + " of " + filenames.size()
+            + " instrumented files in " + cache.getDirectory() + "." );
+
+        if ( !misses.isEmpty() )
+        {
+            File missDataFile = new File( dataFile.getParentFile(), "cobertura-cache-misses.ser" );
+            missDataFile.delete();
+            instrument( misses, missDataFile );
+
+            ProjectData missData = missDataFile.exists() ? CoverageDataFileHandler.loadCoverageData( missDataFile )
+                            : new ProjectData();
+            if ( missData == null )
+            {
+                throw new MojoExecutionException( "Unable to read " + missDataFile + "." );
+            }
+            missDataFile.delete();
+
+            try
+            {
+                for ( Map.Entry<String, String> entry : keys.entrySet() )
+                {
+                    String filename = entry.getKey();
+                    String className = filename.substring( 0, filename.length() - ".class".length() );
+                    className = className.replace( '\\', '.' ).replace( '/', '.' );
+                    cache.store( entry.getValue(), new File( targetDir, filename ), missData.getClassData( className ) );
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to store the instrumented classes in " + cache.getDirectory()
+                    + ".", e );
+            }
+            projectData.merge( missData );
+
+            int evicted = cache.evict();
+            if ( evicted > 0 )
+            {
+                getLog().info( "Evicted " + evicted + " least recently used classes from " + cache.getDirectory()
+                    + "." );
+            }
         }
 
+        String format = CompactDataFile.formatOf( dataFile );
+        if ( dataFile.exists() )
+        {
+            ProjectData existing = CompactDataFile.loadCoverageData( dataFile );
+            if ( existing != null )
+            {
+                existing.merge( projectData );
+                projectData = existing;
+            }
+            else
+            {
+                getLog().warn( "Unable to read the Cobertura data file " + dataFile + ", it is overwritten." );
+            }
+        }
+        dataFile.getParentFile().mkdirs();
+        try
+        {
+            CompactDataFile.saveCoverageData( projectData, dataFile, format );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write the Cobertura data file " + dataFile + ".", e );
+        }
+    }
+
+    /**
+     * Find the files matched by the includes and excludes of the instrumentation configuration.
+     * 
+     * @param basedir the directory to scan.
+     * @return the files to instrument, relative to <code>basedir</code>.
+     * @throws MojoExecutionException if the directory cannot be scanned.
+     */
+    public List getFilenames( File basedir )
+        throws MojoExecutionException
+    {
         String includes = joinCludes( config.getIncludes() );
         String excludes = joinCludes( config.getExcludes() );
         String defaultExcludes = joinCludes( FileUtils.getDefaultExcludesAsList() );
@@ -92,51 +289,190 @@ public class InstrumentTask
             if ( getLog().isDebugEnabled() )
             {
                 getLog().debug( "Config : " + config );
-                getLog().debug( "Basedir: " + config.getBasedir() );
+                getLog().debug( "Basedir: " + basedir );
                 getLog().debug( "Include: " + includes );
                 getLog().debug( "Exclude: " + excludes );
             }
 
-            List filenames = FileUtils.getFileNames( config.getBasedir(), includes, excludes, false );
+            return FileUtils.getFileNames( basedir, includes, excludes, false );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to obtain file list from includes/excludes.", e );
+        }
+    }
 
-            if ( filenames.isEmpty() )
+    /**
+     * Split the files into shards of roughly the same size, instrument the shards concurrently into their own data
+     * files, and merge those into the data file.
+     * 
+     * @param filenames the files to instrument, relative to the basedir.
+     * @param shards the number of shards.
+     * @param targetDataFile the data file receiving the merged shards.
+     * @throws MojoExecutionException if a shard could not be instrumented or merged.
+     */
+    private void executeSharded( List filenames, int shards, File targetDataFile )
+        throws MojoExecutionException
+    {
+        List<List<String>> shardFilenames = split( filenames, shards );
+        List<File> shardDataFiles = new ArrayList<File>();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+        getLog().info( "Instrumenting " + filenames.size() + " files in " + shards + " shards." );
+
+        ExecutorService executor = Executors.newFixedThreadPool( shards );
+        try
+        {
+            for ( int i = 0; i < shards; i++ )
             {
-                getLog().warn( "No files to instrument." );
-                return;
+                File shardDataFile = new File( targetDataFile.getParentFile(), "cobertura-shard-" + i + ".ser" );
+                shardDataFile.delete();
+                shardDataFiles.add( shardDataFile );
+
+                final CommandLineArguments shardArgs = new CommandLineArguments();
+                addArguments( shardArgs, shardDataFile, shardFilenames.get( i ) );
+
+                results.add( executor.submit( new Callable<Integer>()
+                {
+                    public Integer call()
+                        throws MojoExecutionException
+                    {
+                        return new Integer( executeJava( shardArgs ) );
+                    }
+                } ) );
             }
 
-            cmdLineArgs.addArg( "--basedir", config.getBasedir().getAbsolutePath() );
-            it = filenames.iterator();
-            while ( it.hasNext() )
+            boolean failed = false;
+            for ( Future<Integer> result : results )
             {
-                String filename = (String) it.next();
-                if ( getLog().isDebugEnabled() )
+                if ( waitFor( result ) != 0 )
                 {
-                    getLog().debug( "To Instrument: " + filename );
+                    failed = true;
                 }
-                cmdLineArgs.addArg( filename );
+            }
+            if ( failed )
+            {
+                throw new MojoExecutionException( "Unable to instrument project." );
             }
         }
-        catch ( IOException e )
+        finally
         {
-            throw new MojoExecutionException( "Unable to obtain file list from includes/excludes.", e );
+            executor.shutdownNow();
+        }
+
+        MergeTask merge = new MergeTask();
+        configure( merge );
+        merge.setMergeMode( mergeMode );
+        merge.setThreads( shards );
+        merge.setSourceDataFiles( shardDataFiles );
+        merge.setDataFile( targetDataFile );
+        merge.execute();
+
+        for ( File shardDataFile : shardDataFiles )
+        {
+            shardDataFile.delete();
+        }
+    }
+
+    private static int waitFor( Future<Integer> result )
+        throws MojoExecutionException
+    {
+        try
+        {
+            return result.get().intValue();
         }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted while instrumenting.", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException( "Unable to instrument project.", e.getCause() );
+        }
+    }
 
-        int returnCode = executeJava();
+    /**
+     * Deal the files out to the shards, largest first, always to the shard with the fewest bytes so far.
+     * 
+     * @param filenames the files to split, relative to the basedir.
+     * @param shards the number of shards.
+     * @return the files of each shard.
+     */
+    private List<List<String>> split( List filenames, int shards )
+    {
+        List<String> sorted = new ArrayList<String>( filenames );
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        for ( String filename : sorted )
+        {
+            sizes.put( filename, new Long( new File( config.getBasedir(), filename ).length() ) );
+        }
+        Collections.sort( sorted, new Comparator<String>()
+        {
+            public int compare( String a, String b )
+            {
+                return sizes.get( b ).compareTo( sizes.get( a ) );
+            }
+        } );
 
-        // Check the return code and print a message
-        if ( returnCode == 0 )
+        List<List<String>> result = new ArrayList<List<String>>();
+        long[] shardSizes = new long[shards];
+        for ( int i = 0; i < shards; i++ )
+        {
+            result.add( new ArrayList<String>() );
+        }
+        for ( String filename : sorted )
         {
-            if ( !isQuiet() )
+            int smallest = 0;
+            for ( int i = 1; i < shards; i++ )
             {
-                getLog().info( "Instrumentation was successful." );
+                if ( shardSizes[i] < shardSizes[smallest] )
+                {
+                    smallest = i;
+                }
             }
+            result.get( smallest ).add( filename );
+            shardSizes[smallest] += sizes.get( filename ).longValue();
         }
-        else
+        return result;
+    }
+
+    private void addArguments( CommandLineArguments args, File targetDataFile, List filenames )
+    {
+        /* this task should always use the commands file approach */
+        args.setUseCommandsFile( true );
+
+        if ( targetDataFile != null )
+        {
+            args.addArg( "--datafile", targetDataFile.getAbsolutePath() );
+        }
+
+        if ( destinationDir != null )
         {
-            throw new MojoExecutionException( "Unable to instrument project." );
+            args.addArg( "--destination", destinationDir.getAbsolutePath() );
         }
 
+        Iterator it = config.getIgnores().iterator();
+        while ( it.hasNext() )
+        {
+            String ignore = (String) it.next();
+            args.addArg( "--ignore", ignore );
+        }
+
+        args.addArg( "--basedir", config.getBasedir().getAbsolutePath() );
+        it = filenames.iterator();
+        while ( it.hasNext() )
+        {
+            String filename = (String) it.next();
+            if ( getLog().isDebugEnabled() )
+            {
+                getLog().debug( "To Instrument: " + filename );
+            }
+            args.addArg( filename );
+        }
     }
 
     public ConfigInstrumentation getConfig()
@@ -185,4 +521,66 @@ public class InstrumentTask
         this.destinationDir = destinationDir;
     }
 
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of shards to instrument concurrently.
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    public String getMergeMode()
+    {
+        return mergeMode;
+    }
+
+    /**
+     * @param mergeMode How the shard data files are merged, see {@link MergeTask#setMergeMode(String)}.
+     */
+    public void setMergeMode( String mergeMode )
+    {
+        this.mergeMode = mergeMode;
+    }
+
+    public InstrumentationManifest getManifest()
+    {
+        return manifest;
+    }
+
+    /**
+     * @param manifest The manifest of the files staged by an earlier build, only files that are not up to date in it
+     *            are instrumented. <code>null</code> to instrument every file.
+     */
+    public void setManifest( InstrumentationManifest manifest )
+    {
+        this.manifest = manifest;
+    }
+
+    /**
+     * @return The files instrumented or restored from the cache by the last execution, relative to the destination
+     *         directory. The up to date files are left out.
+     */
+    public List<String> getInstrumentedFilenames()
+    {
+        return instrumentedFilenames;
+    }
+
+    public InstrumentationCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @param cache The cache of instrumented classes, <code>null</code> to instrument every class.
+     */
+    public void setCache( InstrumentationCache cache )
+    {
+        this.cache = cache;
+    }
+
 }
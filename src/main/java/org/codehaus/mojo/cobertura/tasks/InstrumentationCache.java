@@ -0,0 +1,265 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.util.Header;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * A content-addressed store of instrumented classes, shared by all the builds using the same directory.
+ * <p>
+ * Instrumenting the same class with the same Cobertura and plugin versions and the same ignore rules always gives the
+ * same bytes, so every instrumented class is stored under the MD5 of its uninstrumented content and of that
+ * configuration, together with a data file holding only its <code>ClassData</code>. A class found in the cache is
+ * copied and its data merged instead of being instrumented again.
+ * </p>
+ * <p>
+ * Entries are written to a temporary file and renamed, so that concurrent builds never see half an entry. Every hit
+ * touches the entry, and the least recently used entries are deleted when the cache grows over its maximum size.
+ * </p>
+ */
+public class InstrumentationCache {
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final String DATA_SUFFIX = ".ser";
+
+    private static final String POM_PROPERTIES =
+        "/META-INF/maven/org.codehaus.mojo/cobertura-maven-plugin/pom.properties";
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final String configuration;
+
+    /**
+     * @param directory the cache directory.
+     * @param maxSize   the size, in bytes, over which the least recently used entries are deleted.
+     * @param ignores   the ignore regexes of the instrumentation, which change the instrumented bytes.
+     */
+    public InstrumentationCache(File directory, long maxSize, List ignores) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        StringBuffer buffer = new StringBuffer();
+        buffer.append(Header.version()).append('\n').append(pluginVersion());
+        for (Iterator it = ignores.iterator(); it.hasNext();) {
+            buffer.append('\n').append(it.next());
+        }
+        this.configuration = buffer.toString();
+    }
+
+    /**
+     * Compute the cache key of an uninstrumented class.
+     *
+     * @param classFile the uninstrumented class.
+     * @return the key.
+     * @throws IOException if the class cannot be read.
+     */
+    public String key(File classFile) throws IOException {
+        return md5(configuration + '\n' + InstrumentationManifest.hash(classFile));
+    }
+
+    /**
+     * Copy a cached class and merge its coverage data.
+     *
+     * @param key         the key of the uninstrumented class.
+     * @param target      the file receiving the instrumented class.
+     * @param projectData the data receiving the <code>ClassData</code> of the class.
+     * @return <code>false</code> if the class is not in the cache.
+     */
+    public boolean restore(String key, File target, ProjectData projectData) {
+        File classEntry = entry(key, CLASS_SUFFIX);
+        File dataEntry = entry(key, DATA_SUFFIX);
+        if (!classEntry.isFile()) {
+            return false;
+        }
+
+        ProjectData fragment = null;
+        if (dataEntry.isFile()) {
+            fragment = CoverageDataFileHandler.loadCoverageData(dataEntry);
+            if (fragment == null) {
+                return false;
+            }
+        }
+        try {
+            ClassStager.copy(classEntry, target);
+        }
+        catch (IOException e) {
+            // evicted by a concurrent build
+            return false;
+        }
+
+        if (fragment != null) {
+            projectData.merge(fragment);
+        }
+        classEntry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Store an instrumented class and its <code>ClassData</code>.
+     *
+     * @param key          the key of the uninstrumented class.
+     * @param instrumented the instrumented class.
+     * @param classData    the coverage data of the class, <code>null</code> if Cobertura did not instrument it.
+     * @throws IOException if the entry cannot be written.
+     */
+    public void store(String key, File instrumented, ClassData classData) throws IOException {
+        File classEntry = entry(key, CLASS_SUFFIX);
+        if (classEntry.isFile()) {
+            return;
+        }
+        classEntry.getParentFile().mkdirs();
+
+        if (classData != null) {
+            ProjectData fragment = new ProjectData();
+            fragment.addClassData(classData);
+            File tmp = File.createTempFile(key, DATA_SUFFIX, classEntry.getParentFile());
+            CoverageDataFileHandler.saveCoverageData(fragment, tmp);
+            rename(tmp, entry(key, DATA_SUFFIX));
+        }
+
+        // the class is renamed last, an entry exists once its class does
+        File tmp = File.createTempFile(key, CLASS_SUFFIX, classEntry.getParentFile());
+        FileUtils.copyFile(instrumented, tmp);
+        rename(tmp, classEntry);
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is no larger than its maximum size.
+     *
+     * @return the number of entries deleted.
+     */
+    public int evict() {
+        List<File> entries = new ArrayList<File>();
+        long size = 0;
+        File[] buckets = directory.listFiles();
+        for (int i = 0; buckets != null && i < buckets.length; i++) {
+            File[] files = buckets[i].listFiles();
+            for (int j = 0; files != null && j < files.length; j++) {
+                size += files[j].length();
+                if (files[j].getName().endsWith(CLASS_SUFFIX)) {
+                    entries.add(files[j]);
+                }
+            }
+        }
+        if (size <= maxSize) {
+            return 0;
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        int evicted = 0;
+        for (Iterator<File> it = entries.iterator(); it.hasNext() && size > maxSize;) {
+            File classEntry = it.next();
+            String name = classEntry.getName();
+            File dataEntry = new File(classEntry.getParentFile(),
+                                      name.substring(0, name.length() - CLASS_SUFFIX.length()) + DATA_SUFFIX);
+            long length = classEntry.length() + dataEntry.length();
+            if (classEntry.delete()) {
+                dataEntry.delete();
+                size -= length;
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File entry(String key, String suffix) {
+        return new File(new File(directory, key.substring(0, 2)), key + suffix);
+    }
+
+    private static void rename(File tmp, File entry) throws IOException {
+        if (!tmp.renameTo(entry)) {
+            tmp.delete();
+            if (!entry.isFile()) {
+                throw new IOException("Unable to write " + entry);
+            }
+        }
+    }
+
+    /**
+     * @return the version of this plugin, empty when not running from its jar.
+     */
+    private static String pluginVersion() {
+        InputStream in = InstrumentationCache.class.getResourceAsStream(POM_PROPERTIES);
+        if (in == null) {
+            return "";
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(in);
+            return properties.getProperty("version", "");
+        }
+        catch (IOException e) {
+            return "";
+        }
+        finally {
+            IOUtil.close(in);
+        }
+    }
+
+    private static String md5(String value) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available: " + e.getMessage());
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available: " + e.getMessage());
+        }
+
+        StringBuffer hex = new StringBuffer();
+        for (int i = 0; i < hash.length; i++) {
+            hex.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+}
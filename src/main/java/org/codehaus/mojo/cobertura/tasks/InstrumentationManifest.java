@@ -0,0 +1,241 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Remembers the content hash of every file staged for instrumentation, so that an incremental build only copies and
+ * instruments the files that changed since the last successful instrumentation.
+ * <p>
+ * The manifest is a properties file mapping the path of each file, relative to the classes directory, to the MD5 of
+ * its uninstrumented content. It also records the instrumentation configuration, and starts over when it changed.
+ * </p>
+ */
+public class InstrumentationManifest {
+    private static final String CONFIGURATION_KEY = "@configuration";
+
+    private final File file;
+
+    private final Properties hashes = new Properties();
+
+    private final Set<String> changedFiles = new HashSet<String>();
+
+    private final Set<String> removedFiles = new HashSet<String>();
+
+    /**
+     * Create a manifest backed by a file.
+     *
+     * @param file the manifest file.
+     */
+    public InstrumentationManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the manifest written by the last successful instrumentation, if any.
+     * <p>
+     * The file is deleted once loaded, so that an interrupted instrumentation can never leave behind a manifest
+     * describing uninstrumented copies as up to date. {@link #save()} writes it back.
+     * </p>
+     *
+     * @param configuration a description of the instrumentation configuration, a different configuration than the
+     *                      one in the manifest discards it.
+     * @throws IOException if the manifest cannot be read.
+     */
+    public void load(String configuration) throws IOException {
+        hashes.clear();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                hashes.load(in);
+            }
+            finally {
+                IOUtil.close(in);
+            }
+            file.delete();
+        }
+
+        if (!configuration.equals(hashes.getProperty(CONFIGURATION_KEY))) {
+            hashes.clear();
+            hashes.setProperty(CONFIGURATION_KEY, configuration);
+        }
+    }
+
+    /**
+     * Forget every staged file, so that the next {@link #stage(File, File, ClassStager)} copies everything.
+     */
+    public void clear() {
+        String configuration = hashes.getProperty(CONFIGURATION_KEY);
+        hashes.clear();
+        if (configuration != null) {
+            hashes.setProperty(CONFIGURATION_KEY, configuration);
+        }
+    }
+
+    /**
+     * Write the manifest, to be called once the staged files were instrumented successfully.
+     *
+     * @throws IOException if the manifest cannot be written.
+     */
+    public void save() throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            hashes.store(out, "Generated by cobertura-maven-plugin, do not edit.");
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+
+    /**
+     * Copy the files of <code>sourceDir</code> whose content changed since the last instrumentation into
+     * <code>destDir</code>, and delete the files of <code>destDir</code> whose source is gone.
+     *
+     * @param sourceDir the uninstrumented classes directory.
+     * @param destDir   the instrumentation directory.
+     * @param stager    writes the changed files.
+     * @throws IOException if a file cannot be hashed, copied or deleted.
+     */
+    public void stage(File sourceDir, File destDir, ClassStager stager) throws IOException {
+        changedFiles.clear();
+        removedFiles.clear();
+
+        Set<String> present = new HashSet<String>();
+
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(sourceDir);
+        scanner.scan();
+        String[] files = scanner.getIncludedFiles();
+        for (int i = 0; i < files.length; i++) {
+            String path = normalize(files[i]);
+            File source = new File(sourceDir, files[i]);
+            File dest = new File(destDir, files[i]);
+            String hash = hash(source);
+
+            present.add(path);
+            if (!dest.exists() || !hash.equals(hashes.getProperty(path))) {
+                stager.write(source, dest, files[i]);
+                hashes.setProperty(path, hash);
+                changedFiles.add(path);
+            }
+        }
+
+        List tracked = new ArrayList(hashes.keySet());
+        for (Iterator it = tracked.iterator(); it.hasNext();) {
+            String path = (String) it.next();
+            if (!CONFIGURATION_KEY.equals(path) && !present.contains(path)) {
+                new File(destDir, path).delete();
+                hashes.remove(path);
+                removedFiles.add(path);
+            }
+        }
+    }
+
+    /**
+     * @param filename a file name relative to the instrumentation directory.
+     * @return <code>true</code> if the file was staged by an earlier build and did not change since.
+     */
+    public boolean isUpToDate(String filename) {
+        String path = normalize(filename);
+        return hashes.containsKey(path) && !changedFiles.contains(path);
+    }
+
+    /**
+     * @return the new or changed files copied by the last {@link #stage(File, File, ClassStager)} call, relative to
+     *         the classes directory.
+     */
+    public Set<String> getChangedFiles() {
+        return Collections.unmodifiableSet(changedFiles);
+    }
+
+    /**
+     * @return the files deleted by the last {@link #stage(File, File, ClassStager)} call, relative to the classes
+     *         directory.
+     */
+    public Set<String> getRemovedFiles() {
+        return Collections.unmodifiableSet(removedFiles);
+    }
+
+    /**
+     * @return the manifest file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    private static String normalize(String filename) {
+        return filename.replace('\\', '/');
+    }
+
+    /**
+     * Compute the MD5 of a file.
+     *
+     * @param file the file to hash.
+     * @return the hash, as a hex string.
+     * @throws IOException if the file cannot be read.
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available: " + e.getMessage());
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            IOUtil.close(in);
+        }
+
+        StringBuffer hex = new StringBuffer();
+        byte[] hash = digest.digest();
+        for (int i = 0; i < hash.length; i++) {
+            hex.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+}
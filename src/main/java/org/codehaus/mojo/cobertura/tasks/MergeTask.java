@@ -34,8 +34,25 @@ import org.codehaus.plexus.util.StringUtils;
  */
 public class MergeTask extends AbstractTask {
 
+    /**
+     * Merge mode forking <code>net.sourceforge.cobertura.merge.Main</code>.
+     */
+    public static final String MODE_FORK = "fork";
+
+    /**
+     * Merge mode loading and merging the data files concurrently inside the Maven JVM.
+     */
+    public static final String MODE_PARALLEL = "parallel";
+
+    /**
+     * Merge mode splitting the data files into packages inside the Maven JVM and merging one package at a time.
+     */
+    public static final String MODE_STREAMING = "streaming";
+
     private List<File> sourceDataFiles;
     private File dataFile;
+    private String mergeMode = MODE_FORK;
+    private int threads = Runtime.getRuntime().availableProcessors();
 
     
     public MergeTask() {
@@ -43,6 +60,25 @@ public class MergeTask extends AbstractTask {
     }
 
     public void execute() throws MojoExecutionException {
+        if (MODE_PARALLEL.equals(mergeMode)) {
+            new ParallelMerger(threads, getLog()).merge(sourceDataFiles, dataFile);
+            if (!isQuiet()) {
+                getLog().info("Cobertura datafile merge was successful.");
+            }
+            return;
+        }
+        else if (MODE_STREAMING.equals(mergeMode)) {
+            new StreamingMerger(getLog()).merge(sourceDataFiles, dataFile);
+            if (!isQuiet()) {
+                getLog().info("Cobertura datafile merge was successful.");
+            }
+            return;
+        }
+        else if (!MODE_FORK.equals(mergeMode)) {
+            throw new MojoExecutionException("Unknown merge mode '" + mergeMode + "', expected '" + MODE_FORK
+                + "', '" + MODE_PARALLEL + "' or '" + MODE_STREAMING + "'.");
+        }
+
         cmdLineArgs.addArg("--datafile", dataFile.getAbsolutePath());
         
         for (File sdf : sourceDataFiles) {
@@ -77,4 +113,26 @@ public class MergeTask extends AbstractTask {
         return sourceDataFiles;
     }
 
+    /**
+     * @param mergeMode {@link #MODE_FORK}, {@link #MODE_PARALLEL} or {@link #MODE_STREAMING}.
+     */
+    public void setMergeMode(String mergeMode) {
+        this.mergeMode = mergeMode;
+    }
+
+    public String getMergeMode() {
+        return mergeMode;
+    }
+
+    /**
+     * @param threads the number of threads of a {@link #MODE_PARALLEL} merge.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
 }
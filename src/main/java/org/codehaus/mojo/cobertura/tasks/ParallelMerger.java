@@ -0,0 +1,162 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+
+/**
+ * Merges Cobertura data files inside the Maven JVM.
+ * <p>
+ * The data files are loaded concurrently, and every two loaded or merged graphs are merged as soon as both are
+ * available, so that loading and merging overlap and the merges form a tree rather than a chain. The result is written
+ * once. Each graph takes part in exactly one merge, so the merged graphs may share the class data of their inputs.
+ * </p>
+ */
+public class ParallelMerger {
+    private final int threads;
+
+    private final Log log;
+
+    /**
+     * @param threads the number of threads loading and merging data files.
+     * @param log     the log to report unreadable data files to.
+     */
+    public ParallelMerger(int threads, Log log) {
+        this.threads = Math.max(1, threads);
+        this.log = log;
+    }
+
+    /**
+     * Merge data files into a destination data file, like <code>net.sourceforge.cobertura.merge.Main</code>: the
+     * current content of the destination, if any, is part of the result, and the destination keeps its format.
+     *
+     * @param sourceDataFiles the data files to merge.
+     * @param dataFile        the destination data file.
+     * @throws MojoExecutionException if the merge failed or was interrupted.
+     */
+    public void merge(List<File> sourceDataFiles, File dataFile) throws MojoExecutionException {
+        String format = CompactDataFile.formatOf(dataFile);
+        List<File> files = new ArrayList<File>();
+        if (dataFile.exists()) {
+            files.add(dataFile);
+        }
+        files.addAll(sourceDataFiles);
+
+        ProjectData merged = merge(files);
+        if (merged == null) {
+            merged = new ProjectData();
+        }
+        try {
+            CompactDataFile.saveCoverageData(merged, dataFile, format);
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to write " + dataFile, e);
+        }
+    }
+
+    /**
+     * Load and merge data files.
+     *
+     * @param files the data files to merge.
+     * @return the merged data, <code>null</code> if no data file could be loaded.
+     * @throws MojoExecutionException if the merge failed or was interrupted.
+     */
+    public ProjectData merge(List<File> files) throws MojoExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+        try {
+            CompletionService<ProjectData> completion = new ExecutorCompletionService<ProjectData>(executor);
+            int pending = 0;
+            for (final File file : files) {
+                completion.submit(new Callable<ProjectData>() {
+                    public ProjectData call() {
+                        ProjectData projectData = CompactDataFile.loadCoverageData(file);
+                        if (projectData == null) {
+                            log.warn("Skipping unreadable Cobertura data file " + file);
+                        }
+                        return projectData;
+                    }
+                });
+                pending++;
+            }
+
+            ProjectData waiting = null;
+            while (pending > 0) {
+                ProjectData done = take(completion);
+                pending--;
+                if (done == null) {
+                    continue;
+                }
+                if (waiting == null) {
+                    waiting = done;
+                }
+                else {
+                    completion.submit(mergeTask(waiting, done));
+                    pending++;
+                    waiting = null;
+                }
+            }
+            return waiting;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<ProjectData> mergeTask(final ProjectData a, final ProjectData b) {
+        return new Callable<ProjectData>() {
+            public ProjectData call() {
+                // Merge the smaller graph into the larger one, that is where the fewer classes are added.
+                if (a.getNumberOfClasses() >= b.getNumberOfClasses()) {
+                    a.merge(b);
+                    return a;
+                }
+                b.merge(a);
+                return b;
+            }
+        };
+    }
+
+    private static ProjectData take(CompletionService<ProjectData> completion) throws MojoExecutionException {
+        try {
+            return completion.take().get();
+        }
+        catch (InterruptedException e) {
+            throw new MojoExecutionException("Interrupted while merging Cobertura data files.", e);
+        }
+        catch (ExecutionException e) {
+            throw new MojoExecutionException("Unable to merge Cobertura data files.", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.reporting.ComplexityCalculator;
+import net.sourceforge.cobertura.reporting.html.HTMLReport;
+import net.sourceforge.cobertura.reporting.xml.SummaryXMLReport;
+import net.sourceforge.cobertura.reporting.xml.XMLReport;
+import net.sourceforge.cobertura.util.FileFinder;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+
+/**
+ * Generates Cobertura reports in several formats inside the Maven JVM, from one load of the data file.
+ * <p>
+ * Forking <code>net.sourceforge.cobertura.reporting.Main</code> once per format loads the data file, indexes the
+ * source directories and computes the cyclomatic complexity of every source file again for each format. Here all
+ * formats share the loaded coverage data, the {@link FileFinder} and the {@link ComplexityCalculator}, which caches the
+ * complexity per source file.
+ * </p>
+ */
+public class ReportGenerator {
+    private final File dataFile;
+
+    private final Log log;
+
+    private List<String> sourceDirectories = new ArrayList<String>();
+
+    private String encoding = "UTF-8";
+
+    private int threads = 1;
+
+    private boolean incremental;
+
+    /**
+     * @param dataFile the data file, in either format, <code>null</code> if the coverage data is passed to
+     *                 {@link #generate(ProjectData, File, List)}.
+     * @param log      the log to report progress to.
+     */
+    public ReportGenerator(File dataFile, Log log) {
+        this.dataFile = dataFile;
+        this.log = log;
+    }
+
+    /**
+     * Generate the reports.
+     *
+     * @param outputDirectory the directory receiving the reports.
+     * @param formats         the formats: <code>html</code>, <code>xml</code> or <code>summaryXml</code>.
+     * @throws MojoExecutionException if the data file cannot be read, a format is unknown or a report fails.
+     */
+    public void generate(File outputDirectory, List<String> formats) throws MojoExecutionException {
+        checkFormats(formats);
+
+        ProjectData projectData = CompactDataFile.loadCoverageData(dataFile);
+        if (projectData == null) {
+            throw new MojoExecutionException("Unable to read Cobertura data file " + dataFile);
+        }
+
+        generate(projectData, outputDirectory, formats);
+    }
+
+    /**
+     * Generate the reports of coverage data that is already loaded.
+     *
+     * @param projectData     the coverage data.
+     * @param outputDirectory the directory receiving the reports.
+     * @param formats         the formats: <code>html</code>, <code>xml</code> or <code>summaryXml</code>.
+     * @throws MojoExecutionException if a format is unknown or a report fails.
+     */
+    public void generate(ProjectData projectData, File outputDirectory, List<String> formats)
+        throws MojoExecutionException {
+        checkFormats(formats);
+
+        FileFinder finder = new FileFinder();
+        for (Iterator it = sourceDirectories.iterator(); it.hasNext();) {
+            finder.addSourceDirectory((String) it.next());
+        }
+        ComplexityCalculator complexity = new ComplexityCalculator(finder);
+
+        outputDirectory.mkdirs();
+        for (String format : formats) {
+            log.debug("Generating the " + format + " report in " + outputDirectory);
+            try {
+                if ("html".equals(format) && (threads > 1 || incremental)) {
+                    HtmlReportRenderer renderer = new HtmlReportRenderer(threads, log);
+                    renderer.setIncremental(incremental);
+                    renderer.render(projectData, outputDirectory, sourceDirectories, complexity, encoding);
+                }
+                else if ("html".equals(format)) {
+                    new HTMLReport(projectData, outputDirectory, finder, complexity, encoding);
+                }
+                else if ("xml".equals(format)) {
+                    new XMLReport(projectData, outputDirectory, finder, complexity);
+                }
+                else {
+                    new SummaryXMLReport(projectData, outputDirectory, finder, complexity);
+                }
+            }
+            catch (MojoExecutionException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new MojoExecutionException("Unable to generate the " + format + " Cobertura report.", e);
+            }
+        }
+    }
+
+    private static void checkFormats(List<String> formats) throws MojoExecutionException {
+        for (String format : formats) {
+            if (!"html".equals(format) && !"xml".equals(format) && !"summaryXml".equals(format)) {
+                throw new MojoExecutionException("Unknown report format '" + format
+                    + "', expected 'html', 'xml' or 'summaryXml'.");
+            }
+        }
+    }
+
+    /**
+     * @param sourceDirectories the directories holding the sources of the covered classes.
+     */
+    public void setSourceDirectories(List sourceDirectories) {
+        this.sourceDirectories = new ArrayList<String>();
+        for (Iterator it = sourceDirectories.iterator(); it.hasNext();) {
+            this.sourceDirectories.add((String) it.next());
+        }
+    }
+
+    public List<String> getSourceDirectories() {
+        return Collections.unmodifiableList(sourceDirectories);
+    }
+
+    /**
+     * @param encoding the encoding of the sources, <code>null</code> for UTF-8.
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding != null ? encoding : "UTF-8";
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @param threads the number of threads rendering the HTML report, see {@link HtmlReportRenderer}.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param incremental whether to render only the HTML source pages whose coverage or source changed, see
+     *                    {@link HtmlReportRenderer}.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+}
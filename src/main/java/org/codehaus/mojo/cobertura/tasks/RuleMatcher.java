@@ -0,0 +1,233 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the first of an ordered list of regex rules matching a name, with all patterns compiled once.
+ * <p>
+ * Most rules are a literal package or class name, optionally followed by <code>.*</code>. Those are kept in a trie, so
+ * that they are all matched in one walk over the name. All other patterns are combined into one alternation, each in
+ * its own group, so that the regex engine tries them in one match and the first matching group tells the rule.
+ * Patterns with back references, whose group numbers would shift in the alternation, are matched on their own.
+ * </p>
+ *
+ * @param <T> the value of a rule.
+ */
+final class RuleMatcher<T> {
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final List<T> values = new ArrayList<T>();
+
+    private final Node trie = new Node();
+
+    private Pattern alternation;
+
+    /**
+     * The rule of each alternative of {@link #alternation}, by group number.
+     */
+    private final Map<Integer, Integer> groupRules = new HashMap<Integer, Integer>();
+
+    private int firstAlternationRule = NONE;
+
+    private final List<Pattern> separatePatterns = new ArrayList<Pattern>();
+
+    private final List<Integer> separateRules = new ArrayList<Integer>();
+
+    /**
+     * @param patterns the patterns of the rules, in order.
+     * @param values   the values of the rules, in the same order.
+     * @throws java.util.regex.PatternSyntaxException if a pattern is invalid.
+     */
+    RuleMatcher(List<String> patterns, List<T> values) {
+        this.values.addAll(values);
+
+        StringBuffer combined = new StringBuffer();
+        int group = 1;
+        for (int rule = 0; rule < patterns.size(); rule++) {
+            String pattern = patterns.get(rule);
+            Pattern compiled = Pattern.compile(pattern);
+
+            if (addLiteral(pattern, rule)) {
+                continue;
+            }
+            if (Pattern.compile("\\\\[1-9]").matcher(pattern).find()) {
+                separatePatterns.add(compiled);
+                separateRules.add(Integer.valueOf(rule));
+                continue;
+            }
+
+            if (combined.length() > 0) {
+                combined.append('|');
+            }
+            combined.append('(').append(pattern).append(')');
+            groupRules.put(Integer.valueOf(group), Integer.valueOf(rule));
+            group += 1 + compiled.matcher("").groupCount();
+            firstAlternationRule = Math.min(firstAlternationRule, rule);
+        }
+        if (combined.length() > 0) {
+            alternation = Pattern.compile(combined.toString());
+        }
+    }
+
+    /**
+     * @param name a name.
+     * @return the value of the first rule matching the name, <code>null</code> if none does.
+     */
+    T find(String name) {
+        int best = NONE;
+
+        Node node = trie;
+        for (int i = 0; node != null; i++) {
+            best = Math.min(best, node.prefixRule);
+            if (i == name.length()) {
+                best = Math.min(best, node.exactRule);
+                break;
+            }
+            node = node.child(name.charAt(i));
+        }
+
+        if (alternation != null && firstAlternationRule < best) {
+            Matcher matcher = alternation.matcher(name);
+            if (matcher.matches()) {
+                for (Map.Entry<Integer, Integer> entry : groupRules.entrySet()) {
+                    if (matcher.start(entry.getKey().intValue()) >= 0) {
+                        best = Math.min(best, entry.getValue().intValue());
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < separateRules.size(); i++) {
+            int rule = separateRules.get(i).intValue();
+            if (rule < best && separatePatterns.get(i).matcher(name).matches()) {
+                best = rule;
+            }
+        }
+
+        return best == NONE ? null : values.get(best);
+    }
+
+    /**
+     * Add a pattern to the trie if it is a literal, optionally followed by <code>.*</code>.
+     *
+     * @return <code>false</code> if the pattern is not such a literal.
+     */
+    private boolean addLiteral(String pattern, int rule) {
+        StringBuffer literal = new StringBuffer();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length() && !Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                c = pattern.charAt(i + 1);
+                i += 2;
+            }
+            else if (".[]{}()*+?^$|\\".indexOf(c) >= 0) {
+                break;
+            }
+            else {
+                i++;
+            }
+            if (i < pattern.length() && "*+?{".indexOf(pattern.charAt(i)) >= 0) {
+                // the character is quantified
+                return false;
+            }
+            literal.append(c);
+        }
+
+        String rest = pattern.substring(i);
+        boolean prefix = ".*".equals(rest);
+        if (!prefix && rest.length() > 0) {
+            return false;
+        }
+
+        Node node = trie;
+        for (int j = 0; j < literal.length(); j++) {
+            node = node.addChild(literal.charAt(j));
+        }
+        if (prefix) {
+            node.prefixRule = Math.min(node.prefixRule, rule);
+        }
+        else {
+            node.exactRule = Math.min(node.exactRule, rule);
+        }
+        return true;
+    }
+
+    private static final class Node {
+        private static final char[] NO_KEYS = new char[0];
+
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /**
+         * The characters leading to the children, sorted, so that a lookup boxes nothing.
+         */
+        private char[] keys = NO_KEYS;
+
+        private Node[] children = NO_CHILDREN;
+
+        /**
+         * The first rule matching every name starting with the path to this node.
+         */
+        private int prefixRule = NONE;
+
+        /**
+         * The first rule matching exactly the path to this node.
+         */
+        private int exactRule = NONE;
+
+        /**
+         * @return the child reached by a character, <code>null</code> if none.
+         */
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        /**
+         * @return the child reached by a character, created if needed.
+         */
+        Node addChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] grownKeys = new char[keys.length + 1];
+            Node[] grownChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, grownKeys, 0, index);
+            System.arraycopy(children, 0, grownChildren, 0, index);
+            grownKeys[index] = c;
+            grownChildren[index] = new Node();
+            System.arraycopy(keys, index, grownKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, grownChildren, index + 1, children.length - index);
+            keys = grownKeys;
+            children = grownChildren;
+            return children[index];
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Merges Cobertura data files inside the Maven JVM, one package at a time.
+ * <p>
+ * Data files in the compact format are read class by class through their memory mapping. A <code>cobertura.ser</code>
+ * is a single serialized graph, so it is loaded on its own and converted to a compact spill file before the next one
+ * is loaded. A first pass notes where the classes of every package are in each file; the packages are then merged one
+ * after the other, reading only their own classes.
+ * </p>
+ * <p>
+ * A destination in the compact format is written package by package through {@link CompactDataFile.Writer}, so the
+ * peak heap is the largest package plus the names. A <code>cobertura.ser</code> destination, which the Cobertura
+ * runtime and tools need, has to be complete before it is written, so it holds the merged result, but never the
+ * inputs alongside it.
+ * </p>
+ */
+public class StreamingMerger {
+    private final Log log;
+
+    /**
+     * @param log the log to report unreadable data files to.
+     */
+    public StreamingMerger(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Merge data files into a destination data file, like <code>net.sourceforge.cobertura.merge.Main</code>: the
+     * current content of the destination, if any, is part of the result, and is kept in its format.
+     *
+     * @param sourceDataFiles the data files to merge.
+     * @param dataFile        the destination data file.
+     * @throws MojoExecutionException if a spill file or the destination cannot be written.
+     */
+    public void merge(List<File> sourceDataFiles, File dataFile) throws MojoExecutionException {
+        List<File> files = new ArrayList<File>();
+        if (dataFile.exists()) {
+            files.add(dataFile);
+        }
+        files.addAll(sourceDataFiles);
+        boolean compact = CompactDataFile.isCompact(dataFile);
+
+        File spillDirectory = new File(dataFile.getParentFile(), dataFile.getName() + ".spill");
+        CompactDataFile.Writer writer = null;
+        try {
+            FileUtils.deleteDirectory(spillDirectory);
+            spillDirectory.mkdirs();
+
+            List<CompactDataFile.Reader> readers = new ArrayList<CompactDataFile.Reader>();
+            Map<String, List<Location>> packages = index(files, spillDirectory, readers);
+
+            ProjectData merged = null;
+            if (compact) {
+                writer = new CompactDataFile.Writer(dataFile);
+            }
+            else {
+                merged = new ProjectData();
+            }
+
+            for (List<Location> locations : packages.values()) {
+                // the first file holding a class is the base of its merge, it keeps its method names
+                Map<String, ClassData> classes = new LinkedHashMap<String, ClassData>();
+                for (Location location : locations) {
+                    ClassData part = readers.get(location.reader).readClass(location.position);
+                    ClassData classData = classes.get(part.getName());
+                    if (classData == null) {
+                        classes.put(part.getName(), part);
+                    }
+                    else {
+                        classData.merge(part);
+                    }
+                }
+                for (ClassData classData : classes.values()) {
+                    if (writer != null) {
+                        writer.write(classData);
+                    }
+                    else {
+                        merged.addClassData(classData);
+                    }
+                }
+            }
+
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            else {
+                CoverageDataFileHandler.saveCoverageData(merged, dataFile);
+            }
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("Unable to merge Cobertura data files.", e);
+        }
+        finally {
+            if (writer != null) {
+                writer.abort();
+            }
+            try {
+                FileUtils.deleteDirectory(spillDirectory);
+            }
+            catch (IOException e) {
+                log.warn("Unable to delete " + spillDirectory);
+            }
+        }
+    }
+
+    /**
+     * Open every data file and note where the classes of each package are.
+     *
+     * @param files          the data files.
+     * @param spillDirectory the directory receiving the compact copies of the <code>cobertura.ser</code> files.
+     * @param readers        receives a reader per readable data file.
+     * @return the locations of the classes of each package, by package name, in the order of the files.
+     * @throws IOException if a spill file cannot be written.
+     */
+    private Map<String, List<Location>> index(List<File> files, File spillDirectory,
+                                              List<CompactDataFile.Reader> readers) throws IOException {
+        Map<String, List<Location>> packages = new TreeMap<String, List<Location>>();
+        for (File file : files) {
+            CompactDataFile.Reader reader = open(file, new File(spillDirectory, readers.size() + ".cdat"));
+            if (reader == null) {
+                log.warn("Skipping unreadable Cobertura data file " + file);
+                continue;
+            }
+            readers.add(reader);
+
+            while (reader.hasNext()) {
+                int position = reader.position();
+                String packageName = reader.next().getPackageName();
+                List<Location> locations = packages.get(packageName);
+                if (locations == null) {
+                    locations = new ArrayList<Location>();
+                    packages.put(packageName, locations);
+                }
+                locations.add(new Location(readers.size() - 1, position));
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * @return a reader of the data file, or of its compact copy if it is a <code>cobertura.ser</code>,
+     *         <code>null</code> if it cannot be read.
+     */
+    private static CompactDataFile.Reader open(File file, File spill) throws IOException {
+        if (!CompactDataFile.isCompact(file)) {
+            ProjectData projectData = CoverageDataFileHandler.loadCoverageData(file);
+            if (projectData == null) {
+                return null;
+            }
+            CompactDataFile.save(projectData, spill);
+            file = spill;
+        }
+        try {
+            return new CompactDataFile.Reader(file);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Where a class is: the index of the reader of its file and its position in that file.
+     */
+    private static final class Location {
+        private final int reader;
+
+        private final int position;
+
+        Location(int reader, int position) {
+            this.reader = reader;
+            this.position = position;
+        }
+    }
+}
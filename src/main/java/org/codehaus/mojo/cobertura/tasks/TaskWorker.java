@@ -0,0 +1,321 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-lived JVM that runs Cobertura tasks on behalf of {@link TaskWorkerClient}, so that builds do not pay for a
+ * fresh JVM per task.
+ * <p>
+ * The worker listens on a loopback socket and publishes its port, together with a random secret that every request
+ * must present, in a port file. Requests are served concurrently through the {@link InProcessTaskRunner}, and the
+ * worker exits once it has been idle for the configured timeout, or when asked to by a {@link #SHUTDOWN} request.
+ * Every request is logged to the log file next to the port file. The port file and the log are only readable by their
+ * owner, where the JVM can restrict them, so that other users of the machine cannot learn the secret.
+ * </p>
+ * <p>
+ * Usage: <code>TaskWorker &lt;portFile&gt; &lt;idleTimeoutSeconds&gt; &lt;classpath&gt;</code>
+ * </p>
+ */
+public final class TaskWorker {
+    /**
+     * Only Cobertura entry points may be run through the worker.
+     */
+    static final String TASK_PACKAGE = "net.sourceforge.cobertura.";
+
+    /**
+     * The task name of a request stopping the worker.
+     */
+    static final String SHUTDOWN = "shutdown";
+
+    private final File portFile;
+
+    private final long idleTimeout;
+
+    private final String classpath;
+
+    private final String secret;
+
+    private final ServerSocket serverSocket;
+
+    private int activeRequests;
+
+    private long lastActivity;
+
+    private TaskWorker(File portFile, long idleTimeout, String classpath) throws IOException {
+        this.portFile = portFile;
+        this.idleTimeout = idleTimeout;
+        this.classpath = classpath;
+        this.secret = Long.toHexString(new SecureRandom().nextLong());
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: TaskWorker <portFile> <idleTimeoutSeconds> <classpath>");
+            System.exit(1);
+        }
+
+        File portFile = new File(args[0]);
+
+        // Nobody reads our standard streams, send anything not captured for a task to a log file.
+        File logFile = new File(portFile.getPath() + ".log");
+        if (!logFile.exists()) {
+            logFile.createNewFile();
+        }
+        restrictToOwner(logFile);
+        PrintStream log = new PrintStream(new FileOutputStream(logFile, true), true);
+        System.setOut(log);
+        System.setErr(log);
+
+        TaskWorker worker = new TaskWorker(portFile, Long.parseLong(args[1]) * 1000L, args[2]);
+        worker.publish();
+        worker.startIdleMonitor();
+        worker.serve();
+    }
+
+    private void publish() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("port", String.valueOf(serverSocket.getLocalPort()));
+        props.setProperty("secret", secret);
+
+        // restricted before the secret is written to it
+        File tmpFile = File.createTempFile(portFile.getName(), ".tmp", portFile.getAbsoluteFile().getParentFile());
+        restrictToOwner(tmpFile);
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            props.store(out, "Cobertura task worker");
+        }
+        finally {
+            out.close();
+        }
+        portFile.delete();
+        if (!tmpFile.renameTo(portFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to publish worker port file " + portFile);
+        }
+        System.out.println("Cobertura task worker listening on port " + serverSocket.getLocalPort());
+    }
+
+    private void startIdleMonitor() {
+        Thread monitor = new Thread("cobertura-worker-idle-monitor") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(1000L);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    if (isIdle()) {
+                        shutdown("Cobertura task worker idle for " + (idleTimeout / 1000L) + "s, shutting down.");
+                    }
+                }
+            }
+        };
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    private synchronized boolean isIdle() {
+        return activeRequests == 0 && System.currentTimeMillis() - lastActivity > idleTimeout;
+    }
+
+    private synchronized void requestStarted() {
+        activeRequests++;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private synchronized void requestFinished() {
+        activeRequests--;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private void shutdown(String reason) {
+        System.out.println(reason);
+
+        // Only remove the port file if another worker did not replace it in the meantime.
+        if (secret.equals(readPortFile(portFile).getProperty("secret"))) {
+            portFile.delete();
+        }
+        System.exit(0);
+    }
+
+    private void serve() throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        while (true) {
+            final Socket socket = serverSocket.accept();
+            requestStarted();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        handle(socket);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    finally {
+                        requestFinished();
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        if (!secret.equals(in.readUTF())) {
+            System.out.println("Rejected request with an invalid secret.");
+            return;
+        }
+
+        String taskClass = in.readUTF();
+        if (SHUTDOWN.equals(taskClass)) {
+            out.writeInt(0);
+            out.flush();
+            shutdown("Cobertura task worker asked to shut down.");
+        }
+
+        String log4jConfig = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(in);
+        }
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int exitCode;
+        if (!taskClass.startsWith(TASK_PACKAGE)) {
+            new PrintStream(stderr, true).println("Refusing to run " + taskClass + " in the task worker.");
+            exitCode = 1;
+        }
+        else {
+            exitCode = InProcessTaskRunner.run(classpath, log4jConfig.length() > 0 ? log4jConfig : null, taskClass,
+                                               args, stdout, stderr);
+        }
+        System.out.println("Ran " + taskClass + ", exit code " + exitCode);
+
+        out.writeInt(exitCode);
+        writeBytes(out, stdout.toByteArray());
+        writeBytes(out, stderr.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Read the port and secret published by a worker.
+     *
+     * @param portFile the port file of the worker.
+     * @return the properties, empty if the file cannot be read.
+     */
+    /**
+     * Make a file or directory only readable, writable and, for a directory, searchable by its owner. Does nothing
+     * before Java 6, whose <code>File</code> cannot change permissions.
+     *
+     * @param file the file or directory.
+     */
+    static void restrictToOwner(File file) {
+        String[] methods = { "setReadable", "setWritable", "setExecutable" };
+        for (int i = 0; i < methods.length; i++) {
+            if (i == 2 && !file.isDirectory()) {
+                break;
+            }
+            try {
+                Method method = File.class.getMethod(methods[i], new Class[] { Boolean.TYPE, Boolean.TYPE });
+                // taken from everybody, then given back to the owner
+                method.invoke(file, new Object[] { Boolean.FALSE, Boolean.FALSE });
+                method.invoke(file, new Object[] { Boolean.TRUE, Boolean.TRUE });
+            }
+            catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    static Properties readPortFile(File portFile) {
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(portFile);
+            props.load(in);
+        }
+        catch (IOException e) {
+            // no worker
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return props;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes("UTF-8"));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), "UTF-8");
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
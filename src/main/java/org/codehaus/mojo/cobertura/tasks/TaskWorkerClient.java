@@ -0,0 +1,330 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import net.sourceforge.cobertura.util.FileLocker;
+
+import org.apache.commons.lang.SystemUtils;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Sends tasks to a {@link TaskWorker}, starting one when none is running.
+ * <p>
+ * Workers are keyed on a hash of the plugin and task classpaths, of the size and modification time of their entries,
+ * and of the maximum memory, so a build using another plugin or Cobertura version, or a rebuilt snapshot at the same
+ * path, starts a fresh worker instead of reusing a stale one. Port files and worker logs are kept in
+ * <code>~/.m2/cobertura/workers</code> by default, which only its owner can read. A client starts a worker under a
+ * lock on its key, so that concurrent clients start a single worker.
+ * </p>
+ */
+public class TaskWorkerClient {
+    private static final long STARTUP_TIMEOUT = 30000L;
+
+    private final String classpath;
+
+    private final String maxmem;
+
+    private final int idleTimeout;
+
+    private final Log log;
+
+    private File workerDirectory;
+
+    /**
+     * Create a client for a task classpath.
+     *
+     * @param classpath   the classpath of the tasks, see {@link AbstractTask#createClasspath()}.
+     * @param maxmem      the maximum memory of a newly started worker.
+     * @param idleTimeout the number of seconds a newly started worker stays alive without requests.
+     * @param log         the log to report worker startup to.
+     */
+    public TaskWorkerClient(String classpath, String maxmem, int idleTimeout, Log log) {
+        this.classpath = classpath;
+        this.maxmem = maxmem;
+        this.idleTimeout = idleTimeout;
+        this.log = log;
+        this.workerDirectory = new File(System.getProperty("user.home"), ".m2/cobertura/workers");
+    }
+
+    /**
+     * Run a task in the worker for this classpath.
+     *
+     * @param taskClass   the Cobertura entry point.
+     * @param log4jConfig the log4j configuration URL, may be <code>null</code>.
+     * @param args        the command line arguments.
+     * @param stdout      receives the standard output of the task.
+     * @param stderr      receives the standard error of the task.
+     * @return the exit code of the task.
+     * @throws IOException if no worker could be reached or started.
+     */
+    public int execute(String taskClass, String log4jConfig, String[] args, OutputStream stdout, OutputStream stderr)
+        throws IOException {
+        String key = getWorkerKey();
+        File portFile = new File(workerDirectory, key + ".port");
+
+        Properties worker = TaskWorker.readPortFile(portFile);
+        Socket socket = connect(worker);
+        if (socket == null) {
+            // one client starts the worker, the others wait for it, in this JVM and in the others
+            workerDirectory.mkdirs();
+            TaskWorker.restrictToOwner(workerDirectory);
+            synchronized (portFile.getPath().intern()) {
+                FileLocker fileLocker = new FileLocker(new File(workerDirectory, key));
+                try {
+                    if (!fileLocker.lock()) {
+                        throw new IOException("Unable to lock the Cobertura task worker " + portFile);
+                    }
+                    // another client may have started the worker while this one waited
+                    worker = TaskWorker.readPortFile(portFile);
+                    socket = connect(worker);
+                    if (socket == null) {
+                        portFile.delete();
+                        startWorker(portFile);
+                        worker = waitForWorker(portFile);
+                        socket = connect(worker);
+                    }
+                }
+                finally {
+                    fileLocker.release();
+                }
+            }
+            if (socket == null) {
+                throw new IOException("Unable to connect to the Cobertura task worker.");
+            }
+        }
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(worker.getProperty("secret"));
+            out.writeUTF(taskClass);
+            out.writeUTF(log4jConfig != null ? log4jConfig : "");
+            out.writeInt(args.length);
+            for (int i = 0; i < args.length; i++) {
+                TaskWorker.writeString(out, args[i]);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int exitCode = in.readInt();
+            stdout.write(TaskWorker.readBytes(in));
+            stderr.write(TaskWorker.readBytes(in));
+            return exitCode;
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Stop the workers whose port files are in a directory.
+     *
+     * @param workerDirectory the directory holding the worker port files.
+     * @return the number of workers that were asked to stop.
+     */
+    public static int shutdownWorkers(File workerDirectory) {
+        int stopped = 0;
+        File[] portFiles = workerDirectory.listFiles();
+        for (int i = 0; portFiles != null && i < portFiles.length; i++) {
+            if (!portFiles[i].getName().endsWith(".port")) {
+                continue;
+            }
+            Properties worker = TaskWorker.readPortFile(portFiles[i]);
+            Socket socket = connect(worker);
+            if (socket == null) {
+                continue;
+            }
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeUTF(worker.getProperty("secret"));
+                out.writeUTF(TaskWorker.SHUTDOWN);
+                out.flush();
+                new DataInputStream(socket.getInputStream()).readInt();
+                stopped++;
+            }
+            catch (IOException e) {
+                // already gone
+            }
+            finally {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return stopped;
+    }
+
+    /**
+     * @return the hash identifying the worker for this plugin, classpath and memory setting.
+     */
+    public String getWorkerKey() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            updateClasspath(digest, getWorkerClasspath());
+            digest.update((byte) 0);
+            updateClasspath(digest, classpath);
+            digest.update((byte) 0);
+            digest.update(maxmem.getBytes("UTF-8"));
+
+            StringBuffer key = new StringBuffer();
+            byte[] hash = digest.digest();
+            for (int i = 0; i < hash.length; i++) {
+                key.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1));
+            }
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available: " + e.getMessage());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("UTF-8 is not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add the entries of a classpath to a digest, with their size and modification time.
+     */
+    private static void updateClasspath(MessageDigest digest, String path) throws IOException {
+        String[] entries = StringUtils.split(path, File.pathSeparator);
+        for (int i = 0; i < entries.length; i++) {
+            File entry = new File(entries[i]);
+            long[] stamp = new long[2];
+            stamp(entry, stamp);
+            digest.update((entries[i] + '|' + stamp[0] + '|' + stamp[1] + '\n').getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Add up the size of a classpath entry and keep its latest modification time, looking into directories.
+     */
+    private static void stamp(File entry, long[] stamp) {
+        File[] files = entry.listFiles();
+        if (files == null) {
+            stamp[0] += entry.length();
+            stamp[1] = Math.max(stamp[1], entry.lastModified());
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            stamp(files[i], stamp);
+        }
+    }
+
+    private static Socket connect(Properties worker) {
+        String port = worker.getProperty("port");
+        if (port == null || worker.getProperty("secret") == null) {
+            return null;
+        }
+        try {
+            return new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(port));
+        }
+        catch (IOException e) {
+            // stale port file
+            return null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void startWorker(File portFile) throws IOException {
+        workerDirectory.mkdirs();
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(SystemUtils.getJavaHome(), "bin/java").getAbsolutePath());
+        command.add("-Xmx" + maxmem);
+        command.add("-cp");
+        command.add(getWorkerClasspath());
+        command.add(TaskWorker.class.getName());
+        command.add(portFile.getAbsolutePath());
+        command.add(String.valueOf(idleTimeout));
+        command.add(classpath);
+
+        log.info("Starting Cobertura task worker " + portFile.getName());
+        log.debug(command.toString());
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        // The worker logs to a file and outlives this build, don't keep its pipes open.
+        process.getOutputStream().close();
+        process.getInputStream().close();
+    }
+
+    private Properties waitForWorker(File portFile) throws IOException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            Properties worker = TaskWorker.readPortFile(portFile);
+            if (worker.getProperty("port") != null) {
+                return worker;
+            }
+            try {
+                Thread.sleep(100L);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+        throw new IOException("Timed out waiting for the Cobertura task worker, see " + portFile + ".log");
+    }
+
+    /**
+     * @return the location of the plugin classes, which the worker JVM needs for {@link TaskWorker}.
+     */
+    private String getWorkerClasspath() {
+        try {
+            return new File(TaskWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .getAbsolutePath();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to locate the plugin classes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param workerDirectory the directory holding the worker port files.
+     */
+    public void setWorkerDirectory(File workerDirectory) {
+        this.workerDirectory = workerDirectory;
+    }
+
+    /**
+     * @return the directory holding the worker port files.
+     */
+    public File getWorkerDirectory() {
+        return workerDirectory;
+    }
+}
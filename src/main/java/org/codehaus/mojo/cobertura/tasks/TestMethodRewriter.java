@@ -0,0 +1,203 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.codehaus.mojo.cobertura.runtime.BooleanTouchCollector;
+import org.codehaus.plexus.util.IOUtil;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Rewrites the test methods of test classes to tell the {@link BooleanTouchCollector} when each test starts and ends,
+ * so that it records a coverage map per test.
+ * <p>
+ * Test methods are the public instance methods named <code>test...</code> taking no argument and returning nothing,
+ * as JUnit 3 runs them, and the methods annotated with the <code>Test</code> annotation of JUnit 4 or TestNG. A test
+ * is named after the class of the running instance, so the methods inherited from an abstract test are told apart.
+ * </p>
+ */
+public final class TestMethodRewriter {
+    private static final String COLLECTOR = BooleanTouchCollector.class.getName().replace('.', '/');
+
+    private static final byte[] COLLECTOR_BYTES = COLLECTOR.getBytes();
+
+    private static final String JUNIT4_TEST = "Lorg/junit/Test;";
+
+    private static final String TESTNG_TEST = "Lorg/testng/annotations/Test;";
+
+    private TestMethodRewriter() {
+    }
+
+    /**
+     * Rewrite a test class.
+     *
+     * @param classfile the test class.
+     * @return the rewritten class, <code>null</code> if it has no test method or is already rewritten.
+     */
+    public static byte[] rewrite(byte[] classfile) {
+        if (contains(classfile, COLLECTOR_BYTES)) {
+            return null;
+        }
+
+        ClassReader reader = new ClassReader(classfile);
+        ClassWriter writer = new ClassWriter(0);
+        final boolean[] rewritten = new boolean[1];
+        reader.accept(new ClassAdapter(writer) {
+            private String className;
+
+            private boolean isInterface;
+
+            public void visit(int version, int access, String name, String signature, String superName,
+                              String[] interfaces) {
+                className = name.replace('/', '.');
+                isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            public MethodVisitor visitMethod(final int access, final String name, String desc, String signature,
+                                             String[] exceptions) {
+                MethodVisitor visitor = super.visitMethod(access, name, desc, signature, exceptions);
+                if (isInterface || (access & Opcodes.ACC_ABSTRACT) != 0 || !"()V".equals(desc)) {
+                    return visitor;
+                }
+                final boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+                final boolean junit3 = !isStatic && (access & Opcodes.ACC_PUBLIC) != 0 && name.startsWith("test");
+                return new MethodAdapter(visitor) {
+                    private boolean isTest = junit3;
+
+                    public AnnotationVisitor visitAnnotation(String annotation, boolean visible) {
+                        if (JUNIT4_TEST.equals(annotation) || TESTNG_TEST.equals(annotation)) {
+                            isTest = true;
+                        }
+                        return super.visitAnnotation(annotation, visible);
+                    }
+
+                    public void visitCode() {
+                        super.visitCode();
+                        if (!isTest) {
+                            return;
+                        }
+                        if (isStatic) {
+                            super.visitLdcInsn(className + "#" + name);
+                        }
+                        else {
+                            super.visitVarInsn(Opcodes.ALOAD, 0);
+                            super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "getClass",
+                                                  "()Ljava/lang/Class;");
+                            super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Class", "getName",
+                                                  "()Ljava/lang/String;");
+                            super.visitLdcInsn("#" + name);
+                            super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat",
+                                                  "(Ljava/lang/String;)Ljava/lang/String;");
+                        }
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC, COLLECTOR, "startTest", "(Ljava/lang/String;)V");
+                        rewritten[0] = true;
+                    }
+
+                    public void visitInsn(int opcode) {
+                        if (isTest && opcode == Opcodes.RETURN) {
+                            // a test throwing is ended by the next one
+                            super.visitMethodInsn(Opcodes.INVOKESTATIC, COLLECTOR, "endTest", "()V");
+                        }
+                        super.visitInsn(opcode);
+                    }
+
+                    public void visitMaxs(int maxStack, int maxLocals) {
+                        super.visitMaxs(isTest ? Math.max(maxStack, 2) : maxStack, maxLocals);
+                    }
+                };
+            }
+        }, 0);
+        return rewritten[0] ? writer.toByteArray() : null;
+    }
+
+    /**
+     * Rewrite the test classes of a directory and its subdirectories.
+     *
+     * @param directory the directory, holding copies of the test classes.
+     * @return the number of classes rewritten.
+     * @throws IOException if a class cannot be read or written.
+     */
+    public static int rewrite(File directory) throws IOException {
+        int count = 0;
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].isDirectory()) {
+                count += rewrite(files[i]);
+            }
+            else if (files[i].getName().endsWith(".class")) {
+                byte[] rewritten = rewrite(read(files[i]));
+                if (rewritten != null) {
+                    write(rewritten, files[i]);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean contains(byte[] bytes, byte[] sequence) {
+        outer:
+        for (int i = 0; i <= bytes.length - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (bytes[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return IOUtil.toByteArray(in);
+        }
+        finally {
+            IOUtil.close(in);
+        }
+    }
+
+    private static void write(byte[] bytes, File file) throws IOException {
+        // never write through a hard link to the compiled class
+        file.delete();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.codehaus.mojo.cobertura.data.TestCoverageMaps;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Selects the test classes affected by changed classes, from the coverage maps of the tests.
+ * <p>
+ * The baseline remembers the content hash of every class and test class the maps were recorded against, so that the
+ * classes changed since can be found without any version control. A test class is selected when one of its tests hit
+ * a changed or removed class, or when the test class itself is new or changed.
+ * </p>
+ * <p>
+ * The baseline of a test run is written as pending before the tests run, and only replaces the baseline once they
+ * passed, so that the classes the failed or interrupted tests hit are still found changed by the next build.
+ * </p>
+ */
+public class TestSelector {
+    private static final String BASELINE = "test-maps.manifest";
+
+    private static final String PENDING = ".pending";
+
+    private static final String CLASSES = "classes/";
+
+    private static final String TEST_CLASSES = "test-classes/";
+
+    private final TestCoverageMaps maps;
+
+    private final Properties baseline = new Properties();
+
+    /**
+     * @param maps         the coverage maps of the tests.
+     * @param baselineFile the baseline the maps were recorded against, written by
+     *                     {@link #writeBaseline(File, File, File)}.
+     * @throws IOException if the baseline cannot be read.
+     */
+    public TestSelector(TestCoverageMaps maps, File baselineFile) throws IOException {
+        this.maps = maps;
+        InputStream in = new FileInputStream(baselineFile);
+        try {
+            baseline.load(in);
+        }
+        finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * @param dataFile a data file.
+     * @return the baseline of the coverage maps of the tests run against it.
+     */
+    public static File baselineFile(File dataFile) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), BASELINE);
+    }
+
+    /**
+     * @param dataFile a data file.
+     * @return the baseline of the tests running against it, until they passed.
+     */
+    public static File pendingBaselineFile(File dataFile) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), BASELINE + PENDING);
+    }
+
+    /**
+     * Replace the baseline of the coverage maps with the pending one, once the tests run against it passed.
+     *
+     * @param dataFile a data file.
+     * @return <code>false</code> if there is no pending baseline.
+     * @throws IOException if the baseline cannot be replaced.
+     */
+    public static boolean commitBaseline(File dataFile) throws IOException {
+        File pending = pendingBaselineFile(dataFile);
+        if (!pending.isFile()) {
+            return false;
+        }
+        File baseline = baselineFile(dataFile);
+        if ((baseline.exists() && !baseline.delete()) || !pending.renameTo(baseline)) {
+            throw new IOException("Unable to replace " + baseline + " with " + pending);
+        }
+        return true;
+    }
+
+    /**
+     * Remember the content hash of the classes and test classes the tests are about to run against.
+     *
+     * @param baselineFile         the baseline.
+     * @param classesDirectory     the uninstrumented classes.
+     * @param testClassesDirectory the test classes.
+     * @throws IOException if a class cannot be hashed or the baseline cannot be written.
+     */
+    public static void writeBaseline(File baselineFile, File classesDirectory, File testClassesDirectory)
+        throws IOException {
+        Properties hashes = new Properties();
+        addHashes(hashes, CLASSES, classesDirectory);
+        addHashes(hashes, TEST_CLASSES, testClassesDirectory);
+
+        baselineFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(baselineFile);
+        try {
+            hashes.store(out, "Generated by cobertura-maven-plugin, do not edit.");
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+
+    /**
+     * @param classesDirectory the uninstrumented classes.
+     * @return the classes that are new, changed or removed since the baseline.
+     * @throws IOException if a class cannot be hashed.
+     */
+    public Set<String> getChangedClasses(File classesDirectory) throws IOException {
+        return changedClasses(CLASSES, classesDirectory);
+    }
+
+    /**
+     * @param testClassesDirectory the test classes.
+     * @return the test classes that are new or changed since the baseline.
+     * @throws IOException if a class cannot be hashed.
+     */
+    public Set<String> getChangedTestClasses(File testClassesDirectory) throws IOException {
+        Set<String> changed = changedClasses(TEST_CLASSES, testClassesDirectory);
+        Set<String> present = new TreeSet<String>();
+        String[] files = classFiles(testClassesDirectory);
+        for (int i = 0; i < files.length; i++) {
+            present.add(className(files[i]));
+        }
+        changed.retainAll(present);
+        return changed;
+    }
+
+    /**
+     * @param changedClasses the changed classes.
+     * @return the test classes whose tests hit any of the classes, sorted.
+     */
+    public Set<String> selectTestClasses(Collection<String> changedClasses) {
+        Set<String> selected = new TreeSet<String>();
+        for (String changedClass : changedClasses) {
+            for (String test : maps.getTestsCovering(changedClass)) {
+                int method = test.indexOf('#');
+                selected.add(method >= 0 ? test.substring(0, method) : test);
+            }
+        }
+        return selected;
+    }
+
+    private Set<String> changedClasses(String prefix, File directory) throws IOException {
+        Set<String> changed = new TreeSet<String>();
+        Set<String> present = new TreeSet<String>();
+        String[] files = classFiles(directory);
+        for (int i = 0; i < files.length; i++) {
+            String path = prefix + files[i].replace('\\', '/');
+            present.add(path);
+            if (!InstrumentationManifest.hash(new File(directory, files[i])).equals(baseline.getProperty(path))) {
+                changed.add(className(files[i]));
+            }
+        }
+        for (Iterator it = baseline.keySet().iterator(); it.hasNext();) {
+            String path = (String) it.next();
+            if (path.startsWith(prefix) && !present.contains(path)) {
+                changed.add(className(path.substring(prefix.length())));
+            }
+        }
+        return changed;
+    }
+
+    private static void addHashes(Properties hashes, String prefix, File directory) throws IOException {
+        String[] files = classFiles(directory);
+        for (int i = 0; i < files.length; i++) {
+            hashes.setProperty(prefix + files[i].replace('\\', '/'),
+                               InstrumentationManifest.hash(new File(directory, files[i])));
+        }
+    }
+
+    private static String[] classFiles(File directory) {
+        if (directory == null || !directory.isDirectory()) {
+            return new String[0];
+        }
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(directory);
+        scanner.setIncludes(new String[] { "**/*.class" });
+        scanner.scan();
+        return scanner.getIncludedFiles();
+    }
+
+    private static String className(String classFile) {
+        return classFile.substring(0, classFile.length() - ".class".length()).replace('\\', '.').replace('/', '.');
+    }
+}
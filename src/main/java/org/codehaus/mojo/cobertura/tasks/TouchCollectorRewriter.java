@@ -0,0 +1,263 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.codehaus.mojo.cobertura.runtime.BooleanTouchCollector;
+import org.codehaus.mojo.cobertura.runtime.StripedTouchCollector;
+import org.codehaus.plexus.util.IOUtil;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Rewrites the calls of instrumented classes to the <code>TouchCollector</code> of Cobertura into calls to the
+ * {@link StripedTouchCollector} or the {@link BooleanTouchCollector}.
+ * <p>
+ * Only the classes referencing a collector are parsed, and classes already calling the requested collector are left
+ * as they are, so rewriting a directory again only costs a scan of its classes. Classes rewritten for the other
+ * collector by a previous build are rewritten again.
+ * </p>
+ */
+public final class TouchCollectorRewriter {
+    private static final String TOUCH_COLLECTOR = "net/sourceforge/cobertura/coveragedata/TouchCollector";
+
+    private static final Set<String> COLLECTORS = new HashSet<String>(Arrays.asList(new String[] { TOUCH_COLLECTOR,
+        internalName(StripedTouchCollector.class), internalName(BooleanTouchCollector.class) }));
+
+    private static final Set<String> TOUCH_METHODS =
+        new HashSet<String>(Arrays.asList(new String[] { "touch", "touchJump", "touchSwitch" }));
+
+    /**
+     * Common to the names of all the collectors.
+     */
+    private static final byte[] TOUCH_COLLECTOR_BYTES = "TouchCollector".getBytes();
+
+    private TouchCollectorRewriter() {
+    }
+
+    /**
+     * Rewrite an instrumented class to call the {@link StripedTouchCollector}.
+     *
+     * @param classfile the instrumented class.
+     * @return the rewritten class, <code>null</code> if it does not call <code>TouchCollector</code>.
+     */
+    public static byte[] rewrite(byte[] classfile) {
+        return rewrite(classfile, StripedTouchCollector.class);
+    }
+
+    /**
+     * Rewrite an instrumented class.
+     *
+     * @param classfile the instrumented class.
+     * @param collector the collector to call.
+     * @return the rewritten class, <code>null</code> if it does not call another collector.
+     */
+    public static byte[] rewrite(byte[] classfile, Class collector) {
+        if (!contains(classfile, TOUCH_COLLECTOR_BYTES)) {
+            return null;
+        }
+        final String target = internalName(collector);
+
+        ClassReader reader = new ClassReader(classfile);
+        // a new constant pool, without TouchCollector
+        ClassWriter writer = new ClassWriter(0);
+        final boolean[] rewritten = new boolean[1];
+        reader.accept(new ClassAdapter(writer) {
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                             String[] exceptions) {
+                return new MethodAdapter(super.visitMethod(access, name, desc, signature, exceptions)) {
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+                        if (opcode == Opcodes.INVOKESTATIC && COLLECTORS.contains(owner) && !target.equals(owner)
+                            && TOUCH_METHODS.contains(name)) {
+                            owner = target;
+                            rewritten[0] = true;
+                        }
+                        super.visitMethodInsn(opcode, owner, name, desc);
+                    }
+                };
+            }
+        }, 0);
+        return rewritten[0] ? writer.toByteArray() : null;
+    }
+
+    /**
+     * Rewrite the instrumented classes of a directory and its subdirectories to call the
+     * {@link StripedTouchCollector}.
+     *
+     * @param directory the directory.
+     * @return the number of classes rewritten.
+     * @throws IOException if a class cannot be read or written.
+     */
+    public static int rewrite(File directory) throws IOException {
+        return rewrite(directory, StripedTouchCollector.class);
+    }
+
+    /**
+     * Rewrite the instrumented classes of a directory and its subdirectories.
+     *
+     * @param directory the directory.
+     * @param collector the collector to call.
+     * @return the number of classes rewritten.
+     * @throws IOException if a class cannot be read or written.
+     */
+    public static int rewrite(File directory, Class collector) throws IOException {
+        int count = 0;
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].isDirectory()) {
+                count += rewrite(files[i], collector);
+            }
+            else if (files[i].getName().endsWith(".class")) {
+                byte[] rewritten = rewrite(read(files[i]), collector);
+                if (rewritten != null) {
+                    write(rewritten, files[i]);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rewrite some of the instrumented classes of a directory.
+     *
+     * @param directory the directory.
+     * @param filenames the files to rewrite, relative to the directory. Archives are skipped.
+     * @param collector the collector to call.
+     * @return the number of classes rewritten.
+     * @throws IOException if a class cannot be read or written.
+     */
+    public static int rewrite(File directory, Collection<String> filenames, Class collector) throws IOException {
+        int count = 0;
+        for (String filename : filenames) {
+            if (filename.endsWith(".class")) {
+                File file = new File(directory, filename);
+                byte[] rewritten = rewrite(read(file), collector);
+                if (rewritten != null) {
+                    write(rewritten, file);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write a jar holding the classes of the collectors, for the class path of the tests.
+     *
+     * @param jar the jar.
+     * @throws IOException if the jar cannot be written.
+     */
+    public static void writeRuntimeJar(File jar) throws IOException {
+        List<String> classes = new ArrayList<String>();
+        Class[] collectors = new Class[] { StripedTouchCollector.class, BooleanTouchCollector.class };
+        for (int i = 0; i < collectors.length; i++) {
+            classes.add(collectors[i].getName());
+            Class[] nested = collectors[i].getDeclaredClasses();
+            for (int j = 0; j < nested.length; j++) {
+                classes.add(nested[j].getName());
+            }
+        }
+        // the package-private writer both collectors save with
+        classes.add(StripedTouchCollector.class.getPackage().getName() + ".HitsWriter");
+
+        ClassLoader loader = StripedTouchCollector.class.getClassLoader();
+        jar.getParentFile().mkdirs();
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (String runtimeClass : classes) {
+                String name = runtimeClass.replace('.', '/') + ".class";
+                InputStream in = loader.getResourceAsStream(name);
+                if (in == null) {
+                    throw new IOException("Unable to find " + name);
+                }
+                try {
+                    out.putNextEntry(new JarEntry(name));
+                    IOUtil.copy(in, out);
+                    out.closeEntry();
+                }
+                finally {
+                    IOUtil.close(in);
+                }
+            }
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static String internalName(Class type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private static boolean contains(byte[] bytes, byte[] sequence) {
+        outer:
+        for (int i = 0; i <= bytes.length - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (bytes[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return IOUtil.toByteArray(in);
+        }
+        finally {
+            IOUtil.close(in);
+        }
+    }
+
+    private static void write(byte[] bytes, File file) throws IOException {
+        // never write through a hard link to the staged class
+        file.delete();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            IOUtil.close(out);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.plugin.Mojo;
+import org.apache.maven.plugin.testing.stubs.MavenProjectStub;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+import org.codehaus.mojo.cobertura.stubs.CheckMavenProjectStub;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+
+public class CoberturaAggregateMojoTest
+    extends AbstractCoberturaTestCase
+{
+    public void testAggregate()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "aggregate", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/aggregate-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        List reactorProjects = new ArrayList();
+        reactorProjects.add( new CheckMavenProjectStub() );
+        reactorProjects.add( getVariableValueFromObject( mojo, "project" ) );
+
+        setVariableValueToObject( mojo, "reactorProjects", reactorProjects );
+
+        mojo.execute();
+
+        File dir = new File( PlexusTestCase.getBasedir(), "target/test-harness/aggregate" );
+
+        assertTrue( "Test for merged data file", new File( dir, "cobertura.ser" ).exists() );
+
+        assertTrue( "Test for html report", new File( dir, "site/cobertura/index.html" ).exists() );
+
+        assertTrue( "Test for xml report", new File( dir, "site/cobertura/coverage.xml" ).exists() );
+    }
+
+    public void testRunFromRoot()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "aggregate", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/aggregate-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        List reactorProjects = new ArrayList();
+        reactorProjects.add( getVariableValueFromObject( mojo, "project" ) );
+        reactorProjects.add( new CheckMavenProjectStub() );
+
+        setVariableValueToObject( mojo, "reactorProjects", reactorProjects );
+
+        File aggregateDataFile = new File( PlexusTestCase.getBasedir(), "target/test-harness/aggregate/root.ser" );
+
+        aggregateDataFile.delete();
+
+        setVariableValueToObject( mojo, "aggregateDataFile", aggregateDataFile );
+
+        mojo.execute();
+
+        assertTrue( "Aggregated from the first project of the reactor", aggregateDataFile.exists() );
+    }
+
+    public void testConfiguredDataFile()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "aggregate", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/aggregate-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        // a module keeping a compact data file of its own, outside of its build directory
+        File moduleDir = new File( PlexusTestCase.getBasedir(), "target/test-harness/aggregate/module" );
+        final File moduleDataFile = new File( moduleDir, "coverage/module.cdat" );
+        moduleDataFile.getParentFile().mkdirs();
+        File serFile = new File( PlexusTestCase.getBasedir(), "src/test/sources/check.ser" );
+        CompactDataFile.save( CoverageDataFileHandler.loadCoverageData( serFile ), moduleDataFile );
+
+        final Build build = new Build();
+        build.setDirectory( new File( moduleDir, "target" ).getPath() );
+
+        Xpp3Dom configuration = new Xpp3Dom( "configuration" );
+        Xpp3Dom dataFile = new Xpp3Dom( "dataFile" );
+        dataFile.setValue( "coverage/module.cdat" );
+        configuration.addChild( dataFile );
+        final Plugin plugin = new Plugin();
+        plugin.setArtifactId( "cobertura-maven-plugin" );
+        plugin.setConfiguration( configuration );
+
+        final File basedir = moduleDir;
+        MavenProjectStub module = new MavenProjectStub()
+        {
+            public Build getBuild()
+            {
+                return build;
+            }
+
+            public File getBasedir()
+            {
+                return basedir;
+            }
+
+            public List getBuildPlugins()
+            {
+                return Collections.singletonList( plugin );
+            }
+
+            public List getCompileSourceRoots()
+            {
+                return Collections.singletonList( PlexusTestCase.getBasedir() + "/src/test/sources" );
+            }
+        };
+
+        List reactorProjects = new ArrayList();
+        reactorProjects.add( module );
+
+        setVariableValueToObject( mojo, "reactorProjects", reactorProjects );
+
+        File aggregateDataFile = new File( PlexusTestCase.getBasedir(), "target/test-harness/aggregate/module.ser" );
+
+        aggregateDataFile.delete();
+
+        setVariableValueToObject( mojo, "aggregateDataFile", aggregateDataFile );
+
+        mojo.execute();
+
+        assertTrue( "Aggregated the configured data file", aggregateDataFile.exists() );
+    }
+}
@@ -39,6 +39,18 @@ public class CoberturaCheckMojoTest
         mojo.execute();
     }
 
+    public void testCheckOnly()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "check-only", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/check-regex-pass-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        mojo.execute();
+    }
+
     public void testCheckWithRegexPassing()
         throws Exception
     {
@@ -98,6 +110,77 @@ public class CoberturaCheckMojoTest
         }
     }
 
+    public void testCheckFailureInProcess()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "check", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/check-halt-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "fork", Boolean.FALSE );
+
+        try
+        {
+            mojo.execute();
+
+            fail( "Should fail when rates are not satisfied" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            if ( !e.getMessage().equals( "Coverage check failed. See messages above." ) )
+            {
+                fail( "Unexpected exception thrown" );
+            }
+        }
+    }
+
+    public void testCheckNative()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "check", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/check-regex-pass-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "nativeCheck", Boolean.TRUE );
+
+        mojo.execute();
+    }
+
+    public void testCheckFailureNative()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "check", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/check-regex-fail-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        File violationsFile = new File( PlexusTestCase.getBasedir(), "target/test-harness/check/violations.xml" );
+
+        violationsFile.delete();
+
+        setVariableValueToObject( mojo, "violationsFile", violationsFile );
+
+        try
+        {
+            mojo.execute();
+
+            fail( "regex should fail at < 100% coverage" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            if ( !e.getMessage().equals( "Coverage check failed. See messages above." ) )
+            {
+                fail( "Unexpected exception thrown" );
+            }
+        }
+
+        assertTrue( "Test for violations file", violationsFile.exists() );
+    }
+
     public void testCheckFailureNoHalt()
         throws Exception
     {
@@ -16,13 +16,38 @@ package org.codehaus.mojo.cobertura;
  * the License.
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
 
+import junit.framework.TestCase;
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.Mojo;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.project.MavenProject;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+import org.codehaus.mojo.cobertura.data.CoverageShards;
+import org.codehaus.mojo.cobertura.data.TestCoverageMaps;
+import org.codehaus.mojo.cobertura.tasks.InstrumentationManifest;
+import org.codehaus.mojo.cobertura.tasks.TaskWorkerClient;
+import org.codehaus.mojo.cobertura.tasks.TestSelector;
 import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
 
 /**
  * @author Edwin Punzalan
@@ -32,12 +57,16 @@ public class CoberturaInstrumentMojoTest
 {
     private String dataFile;
 
+    private File workerDirectory;
+
     protected void setUp()
         throws Exception
     {
         super.setUp();
 
         dataFile = System.getProperty( "net.sourceforge.cobertura.datafile" );
+
+        workerDirectory = new File( PlexusTestCase.getBasedir(), "target/test-harness/instrument/workers" );
     }
 
     protected void tearDown()
@@ -48,6 +77,8 @@ public class CoberturaInstrumentMojoTest
             System.setProperty( "net.sourceforge.cobertura.datafile", dataFile );
         }
 
+        TaskWorkerClient.shutdownWorkers( workerDirectory );
+
         super.tearDown();
     }
 
@@ -124,4 +155,723 @@ public class CoberturaInstrumentMojoTest
 
         assertTrue( "Test instrumented class exists", new File( instrumentedDir, "Circle.class" ).exists() );
     }
+
+    public void testInProcess()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "fork", Boolean.FALSE );
+
+        mojo.execute();
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        assertTrue( "Test instrumented class exists", new File( instrumentedDir, "Circle.class" ).exists() );
+    }
+
+    public void testWorker()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "useWorker", Boolean.TRUE );
+
+        setVariableValueToObject( mojo, "workerIdleTimeout", new Integer( 5 ) );
+
+        FileUtils.deleteDirectory( workerDirectory );
+
+        setVariableValueToObject( mojo, "workerDirectory", workerDirectory );
+
+        mojo.execute();
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        assertTrue( "Test instrumented class exists", new File( instrumentedDir, "Circle.class" ).exists() );
+
+        String[] logs = FileUtils.getFilesFromExtension( workerDirectory.getPath(), new String[] { "log" } );
+
+        assertEquals( "One worker started", 1, logs.length );
+
+        assertTrue( "Instrumented by the worker",
+                    FileUtils.fileRead( logs[0] ).indexOf( "Ran net.sourceforge.cobertura.instrument.Main" ) >= 0 );
+    }
+
+    public void testWorkerStartedOnce()
+        throws Exception
+    {
+        FileUtils.deleteDirectory( workerDirectory );
+
+        StringBuffer classpath = new StringBuffer();
+        for ( Iterator it = getPluginClasspath().iterator(); it.hasNext(); )
+        {
+            classpath.append( File.pathSeparator ).append( ( (Artifact) it.next() ).getFile().getCanonicalPath() );
+        }
+
+        // clients of the same worker starting together, like the shards of an instrumentation
+        final List failures = Collections.synchronizedList( new ArrayList() );
+        Thread[] clients = new Thread[3];
+        for ( int i = 0; i < clients.length; i++ )
+        {
+            final TaskWorkerClient client = new TaskWorkerClient( classpath.toString(), "64m", 5, new SystemStreamLog() );
+            client.setWorkerDirectory( workerDirectory );
+            final File dataFile = new File( workerDirectory.getParentFile(), "worker-" + i + ".ser" );
+            clients[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        client.execute( "net.sourceforge.cobertura.instrument.Main", null,
+                                        new String[] { "--datafile", dataFile.getPath() }, new ByteArrayOutputStream(),
+                                        new ByteArrayOutputStream() );
+                    }
+                    catch ( Exception e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        for ( int i = 0; i < clients.length; i++ )
+        {
+            clients[i].join();
+        }
+
+        assertEquals( "Tasks run", Collections.EMPTY_LIST, failures );
+
+        String[] logs = FileUtils.getFilesFromExtension( workerDirectory.getPath(), new String[] { "log" } );
+
+        assertEquals( 1, logs.length );
+
+        // every worker of the key logs to the same file
+        String log = FileUtils.fileRead( logs[0] );
+
+        assertEquals( "One worker started", log.indexOf( "listening on port" ), log.lastIndexOf( "listening on port" ) );
+    }
+
+    public void testIncremental()
+        throws Exception
+    {
+        File classesDir = null;
+        File instrumentedDir = null;
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            Mojo mojo =
+                lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                    "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+            setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+            setVariableValueToObject( mojo, "incremental", Boolean.TRUE );
+
+            MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+            classesDir = new File( project.getBuild().getOutputDirectory() );
+
+            mojo.execute();
+
+            instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+        }
+
+        File dataFile = new File( PlexusTestCase.getBasedir(), "target/test-harness/instrument/cobertura.ser" );
+
+        assertTrue( "Manifest exists", new File( dataFile.getParentFile(), "instrumentation.manifest" ).exists() );
+
+        File instrumentedClass = new File( instrumentedDir, "Circle.class" );
+
+        assertTrue( "Test instrumented class exists", instrumentedClass.exists() );
+
+        assertFalse( "Up to date class is still instrumented",
+                     InstrumentationManifest.hash( instrumentedClass ).equals(
+                         InstrumentationManifest.hash( new File( classesDir, "Circle.class" ) ) ) );
+    }
+
+    public void testIncrementalCollectorChange()
+        throws Exception
+    {
+        File instrumentedDir = null;
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            Mojo mojo =
+                lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                    "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+            setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+            setVariableValueToObject( mojo, "incremental", Boolean.TRUE );
+
+            // striped counters first, then the Cobertura counters
+            setVariableValueToObject( mojo, "stripedCounters", Boolean.valueOf( i == 0 ) );
+
+            MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+            mojo.execute();
+
+            instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+        }
+
+        String instrumentedClass = FileUtils.fileRead( new File( instrumentedDir, "Circle.class" ).getAbsolutePath(),
+                                                       "ISO-8859-1" );
+
+        assertTrue( "Instrumented class calls the Cobertura counters again",
+                    instrumentedClass.indexOf( "coveragedata/TouchCollector" ) >= 0 );
+
+        assertTrue( "Instrumented class no longer calls the striped counters",
+                    instrumentedClass.indexOf( "StripedTouchCollector" ) < 0 );
+    }
+
+    public void testIncrementalRewritesChangedClassesOnly()
+        throws Exception
+    {
+        File instrumentedClass = null;
+        long rewritten = 0;
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            Mojo mojo =
+                lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                    "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+            setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+            setVariableValueToObject( mojo, "incremental", Boolean.TRUE );
+
+            setVariableValueToObject( mojo, "stripedCounters", Boolean.TRUE );
+
+            MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+            mojo.execute();
+
+            if ( i == 0 )
+            {
+                instrumentedClass = new File( project.getBuild().getOutputDirectory(), "Circle.class" );
+                // older than anything the second build could write
+                rewritten = instrumentedClass.lastModified() - 60000;
+                instrumentedClass.setLastModified( rewritten );
+            }
+        }
+
+        assertEquals( "Up to date class not rewritten again", rewritten, instrumentedClass.lastModified() );
+
+        String content = FileUtils.fileRead( instrumentedClass.getAbsolutePath(), "ISO-8859-1" );
+
+        assertTrue( "Up to date class still calls the striped counters",
+                    content.indexOf( "StripedTouchCollector" ) >= 0 );
+    }
+
+    public void testIncrementalStaging()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "incrementalStaging", Boolean.TRUE );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File classesDir = new File( project.getBuild().getOutputDirectory() );
+
+        File resource = new File( classesDir, "circle.properties" );
+
+        FileUtils.fileWrite( resource.getAbsolutePath(), "radius=1" );
+
+        mojo.execute();
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        File instrumentedClass = new File( instrumentedDir, "Circle.class" );
+
+        assertFalse( "Staged class is instrumented", InstrumentationManifest.hash( instrumentedClass ).equals(
+            InstrumentationManifest.hash( new File( classesDir, "Circle.class" ) ) ) );
+
+        File stagedResource = new File( instrumentedDir, "circle.properties" );
+
+        assertEquals( "Resource staged", "radius=1", FileUtils.fileRead( stagedResource ) );
+
+        assertEquals( "Staged resource keeps its modification time", resource.lastModified(),
+                      stagedResource.lastModified() );
+
+        resource.delete();
+    }
+
+    public void testThreads()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "threads", new Integer( 2 ) );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        FileUtils.copyFileToDirectory( new File( PlexusTestCase.getBasedir(), "src/test/classes/CircleTest.class" ),
+                                       new File( project.getBuild().getOutputDirectory() ) );
+
+        File dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+        dataFile.delete();
+
+        mojo.execute();
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        assertTrue( "Test instrumented class exists", new File( instrumentedDir, "Circle.class" ).exists() );
+
+        assertTrue( "Test instrumented class exists", new File( instrumentedDir, "CircleTest.class" ).exists() );
+
+        ProjectData projectData = CoverageDataFileHandler.loadCoverageData( dataFile );
+
+        assertNotNull( "Shards merged into the data file", projectData.getClassData( "Circle" ) );
+
+        assertNotNull( "Shards merged into the data file", projectData.getClassData( "CircleTest" ) );
+
+        assertFalse( "Shard data files removed", new File( dataFile.getParentFile(), "cobertura-shard-0.ser" ).exists() );
+    }
+
+    public void testInstrumentationCache()
+        throws Exception
+    {
+        File cacheDir = new File( PlexusTestCase.getBasedir(), "target/test-harness/instrument/cache" );
+
+        FileUtils.deleteDirectory( cacheDir );
+
+        File instrumentedClass = null;
+        File dataFile = null;
+        String instrumentedHash = null;
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            Mojo mojo =
+                lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                    "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+            setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+            setVariableValueToObject( mojo, "instrumentationCache", cacheDir );
+
+            MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+            dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+            dataFile.delete();
+
+            mojo.execute();
+
+            instrumentedClass = new File( project.getBuild().getOutputDirectory(), "Circle.class" );
+
+            if ( instrumentedHash == null )
+            {
+                instrumentedHash = InstrumentationManifest.hash( instrumentedClass );
+            }
+        }
+
+        assertTrue( "Instrumented class cached", cacheDir.list().length > 0 );
+
+        assertEquals( "Cached class restored", instrumentedHash, InstrumentationManifest.hash( instrumentedClass ) );
+
+        ProjectData projectData = CoverageDataFileHandler.loadCoverageData( dataFile );
+
+        assertNotNull( "Cached class data restored", projectData.getClassData( "Circle" ) );
+
+        assertTrue( "Cached class data restored", projectData.getClassData( "Circle" ).getNumberOfValidLines() > 0 );
+    }
+
+    public void testCompactDataFile()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        File cacheDir = new File( PlexusTestCase.getBasedir(), "target/test-harness/instrument/cache" );
+
+        setVariableValueToObject( mojo, "instrumentationCache", cacheDir );
+
+        File dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+        ProjectData existing = new ProjectData();
+        existing.getOrCreateClassData( "Square" ).addLine( 1, "area", "()D" );
+        CompactDataFile.save( existing, dataFile );
+
+        mojo.execute();
+
+        assertTrue( "Data file format kept", CompactDataFile.isCompact( dataFile ) );
+
+        ProjectData projectData = CompactDataFile.load( dataFile );
+
+        assertNotNull( "Existing class data kept", projectData.getClassData( "Square" ) );
+
+        assertNotNull( "Instrumented class data added", projectData.getClassData( "Circle" ) );
+
+        dataFile.delete();
+    }
+
+    public void testStripedCounters()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "stripedCounters", Boolean.TRUE );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+        dataFile.delete();
+
+        mojo.execute();
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        String instrumentedClass = FileUtils.fileRead( new File( instrumentedDir, "Circle.class" ).getAbsolutePath(),
+                                                       "ISO-8859-1" );
+
+        assertTrue( "Instrumented class calls the striped counters",
+                    instrumentedClass.indexOf( "org/codehaus/mojo/cobertura/runtime/StripedTouchCollector" ) >= 0 );
+
+        assertTrue( "Instrumented class no longer calls the Cobertura counters",
+                    instrumentedClass.indexOf( "coveragedata/TouchCollector" ) < 0 );
+
+        File runtimeJar = new File( project.getBuild().getDirectory(), "cobertura/cobertura-striped-runtime.jar" );
+
+        assertTrue( "Striped runtime written", runtimeJar.exists() );
+
+        runCircleTest( instrumentedDir, runtimeJar, new File( PlexusTestCase.getBasedir(), "src/test/classes" ) );
+
+        ClassData circle = CoverageDataFileHandler.loadCoverageData( dataFile ).getClassData( "Circle" );
+
+        assertTrue( "Hits saved", circle.getNumberOfCoveredLines() > 0 );
+
+        assertFalse( "Instrumented methods kept", circle.getMethodNamesAndDescriptors().isEmpty() );
+    }
+
+    public void testCoverageShards()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "coverageShards", Boolean.TRUE );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+        dataFile.delete();
+
+        CoverageShards.delete( dataFile );
+
+        mojo.execute();
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        runCircleTest( instrumentedDir,
+                       new File( project.getBuild().getDirectory(), "cobertura/cobertura-striped-runtime.jar" ),
+                       new File( PlexusTestCase.getBasedir(), "src/test/classes" ) );
+
+        assertEquals( "Hits written to a shard", 1, CoverageShards.find( dataFile ).size() );
+
+        assertEquals( "Data file not rewritten", 0,
+                      CoverageDataFileHandler.loadCoverageData( dataFile ).getClassData( "Circle" )
+                          .getNumberOfCoveredLines() );
+
+        assertEquals( 1, CoverageShards.fold( dataFile ) );
+
+        assertTrue( "Shards deleted once folded", CoverageShards.find( dataFile ).isEmpty() );
+
+        ClassData circle = CoverageDataFileHandler.loadCoverageData( dataFile ).getClassData( "Circle" );
+
+        assertTrue( "Hits folded", circle.getNumberOfCoveredLines() > 0 );
+
+        assertFalse( "Instrumented methods kept", circle.getMethodNamesAndDescriptors().isEmpty() );
+    }
+
+    public void testBooleanProbes()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "probeMode", "boolean" );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+        dataFile.delete();
+
+        mojo.execute();
+
+        File instrumentedDir = new File( project.getBuild().getOutputDirectory() );
+
+        String instrumentedClass = FileUtils.fileRead( new File( instrumentedDir, "Circle.class" ).getAbsolutePath(),
+                                                       "ISO-8859-1" );
+
+        assertTrue( "Instrumented class calls the boolean probes",
+                    instrumentedClass.indexOf( "org/codehaus/mojo/cobertura/runtime/BooleanTouchCollector" ) >= 0 );
+
+        runCircleTest( instrumentedDir,
+                       new File( project.getBuild().getDirectory(), "cobertura/cobertura-striped-runtime.jar" ),
+                       new File( PlexusTestCase.getBasedir(), "src/test/classes" ) );
+
+        ClassData circle = CoverageDataFileHandler.loadCoverageData( dataFile ).getClassData( "Circle" );
+
+        assertTrue( "Hits saved", circle.getNumberOfCoveredLines() > 0 );
+
+        for ( Iterator it = circle.getLines().iterator(); it.hasNext(); )
+        {
+            LineData line = (LineData) it.next();
+            assertTrue( "Line " + line.getLineNumber() + " hit at most once", line.getHits() <= 1 );
+        }
+
+        assertFalse( "Instrumented methods kept", circle.getMethodNamesAndDescriptors().isEmpty() );
+    }
+
+    public void testPerTestCoverage()
+        throws Exception
+    {
+        File dataFile = recordCoverageMaps();
+
+        TestCoverageMaps maps = TestCoverageMaps.load( TestCoverageMaps.file( dataFile ) );
+
+        assertEquals( Arrays.asList( new String[] { "CircleTest#testRadius", "CircleTest#testX", "CircleTest#testY" } ),
+                      new ArrayList<String>( maps.getTests() ) );
+
+        ClassData circle = CoverageDataFileHandler.loadCoverageData( dataFile ).getClassData( "Circle" );
+
+        for ( Iterator tests = maps.getTests().iterator(); tests.hasNext(); )
+        {
+            String test = (String) tests.next();
+
+            assertEquals( test, Collections.singleton( "Circle" ), maps.getClasses( test ) );
+
+            assertTrue( test, maps.covers( test, "Circle" ) );
+
+            assertFalse( test, maps.covers( test, "Square" ) );
+
+            assertFalse( test, maps.covers( test, "Circle", 9999 ) );
+
+            boolean coversLine = false;
+            for ( Iterator it = circle.getLines().iterator(); it.hasNext(); )
+            {
+                LineData line = (LineData) it.next();
+                if ( maps.covers( test, "Circle", line.getLineNumber() ) )
+                {
+                    assertTrue( "Line " + line.getLineNumber() + " hit", line.isCovered() );
+                    coversLine = true;
+                }
+            }
+            assertTrue( test, coversLine );
+        }
+    }
+
+    public void testSelectTests()
+        throws Exception
+    {
+        File dataFile = recordCoverageMaps();
+
+        Mojo mojo =
+            lookupMojo( "select-tests", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File selectedTestsFile = new File( project.getBuild().getDirectory(), "cobertura/selected-tests.txt" );
+
+        setVariableValueToObject( mojo, "selectedTestsFile", selectedTestsFile );
+
+        setVariableValueToObject( mojo, "propertyName", "test" );
+
+        mojo.execute();
+
+        assertEquals( "Nothing changed", "true", project.getProperties().getProperty( "skipTests" ) );
+
+        assertEquals( "", FileUtils.fileRead( selectedTestsFile ) );
+
+        // the class changed since the maps were recorded
+        File baselineFile = TestSelector.baselineFile( dataFile );
+        Properties baseline = new Properties();
+        FileInputStream in = new FileInputStream( baselineFile );
+        baseline.load( in );
+        in.close();
+        baseline.setProperty( "classes/Circle.class", "0" );
+        FileOutputStream out = new FileOutputStream( baselineFile );
+        baseline.store( out, null );
+        out.close();
+
+        project.getProperties().clear();
+
+        mojo.execute();
+
+        assertEquals( "CircleTest", project.getProperties().getProperty( "test" ) );
+
+        assertEquals( "CircleTest.java\n", FileUtils.fileRead( selectedTestsFile ) );
+
+        project.getProperties().clear();
+
+        setVariableValueToObject( mojo, "changedClasses", "Square" );
+
+        mojo.execute();
+
+        assertEquals( "Not a class hit by the tests", "true", project.getProperties().getProperty( "skipTests" ) );
+    }
+
+    /**
+     * Instrument the circle and its test to record the coverage of each test, and run the test.
+     *
+     * @return the data file.
+     */
+    private File recordCoverageMaps()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "instrument", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        setVariableValueToObject( mojo, "perTestCoverage", Boolean.TRUE );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        File dataFile = (File) getVariableValueFromObject( mojo, "dataFile" );
+
+        dataFile.delete();
+
+        TestCoverageMaps.file( dataFile ).delete();
+
+        TestSelector.baselineFile( dataFile ).delete();
+
+        mojo.execute();
+
+        Mojo testsMojo =
+            lookupMojo( "instrument-tests", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( testsMojo, "perTestCoverage", Boolean.TRUE );
+
+        MavenProject testsProject = (MavenProject) getVariableValueFromObject( testsMojo, "project" );
+
+        // a test class deleted since the previous run
+        File staleTest =
+            new File( testsProject.getBuild().getDirectory(), "generated-test-classes/cobertura/RemovedTest.class" );
+        staleTest.getParentFile().mkdirs();
+        FileUtils.fileWrite( staleTest.getPath(), "stale" );
+
+        testsMojo.execute();
+
+        assertFalse( "Deleted test class no longer run", staleTest.exists() );
+
+        File testClassesDir = new File( testsProject.getBuild().getTestOutputDirectory() );
+
+        assertEquals( new File( testsProject.getBuild().getDirectory(), "generated-test-classes/cobertura" ),
+                      testClassesDir );
+
+        String testClass = FileUtils.fileRead( new File( testClassesDir, "CircleTest.class" ).getAbsolutePath(),
+                                               "ISO-8859-1" );
+
+        assertTrue( "Test methods marked",
+                    testClass.indexOf( "org/codehaus/mojo/cobertura/runtime/BooleanTouchCollector" ) >= 0 );
+
+        runCircleTest( new File( project.getBuild().getOutputDirectory() ),
+                       new File( project.getBuild().getDirectory(), "cobertura/cobertura-striped-runtime.jar" ),
+                       testClassesDir );
+
+        assertFalse( "Baseline pending until the tests passed", TestSelector.baselineFile( dataFile ).exists() );
+
+        Mojo commitMojo =
+            lookupMojo( "commit-test-maps", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/instrument-plugin-config.xml" );
+
+        setVariableValueToObject( commitMojo, "perTestCoverage", Boolean.TRUE );
+
+        File reportsDir = new File( project.getBuild().getDirectory(), "surefire-reports" );
+
+        setVariableValueToObject( commitMojo, "reportsDirectory", reportsDir );
+
+        FileUtils.deleteDirectory( reportsDir );
+
+        commitMojo.execute();
+
+        assertFalse( "Baseline pending without test reports", TestSelector.baselineFile( dataFile ).exists() );
+
+        // as with testFailureIgnore
+        File report = new File( reportsDir, "TEST-CircleTest.xml" );
+        reportsDir.mkdirs();
+        FileUtils.fileWrite( report.getPath(),
+                             "<testsuite name=\"CircleTest\" tests=\"2\" failures=\"1\" errors=\"0\"/>" );
+
+        commitMojo.execute();
+
+        assertFalse( "Baseline pending while tests fail", TestSelector.baselineFile( dataFile ).exists() );
+
+        FileUtils.fileWrite( report.getPath(),
+                             "<testsuite name=\"CircleTest\" tests=\"2\" failures=\"0\" errors=\"0\"/>" );
+
+        commitMojo.execute();
+
+        assertTrue( "Baseline committed", TestSelector.baselineFile( dataFile ).exists() );
+
+        assertFalse( TestSelector.pendingBaselineFile( dataFile ).exists() );
+
+        return dataFile;
+    }
+
+    /**
+     * Run the test of the circle against instrumented classes, in a JVM of its own.
+     */
+    private void runCircleTest( File instrumentedDir, File runtimeJar, File testClassesDir )
+        throws Exception
+    {
+        new File( instrumentedDir, "CircleTest.class" ).delete();
+
+        Commandline cl = new Commandline();
+        cl.setExecutable( new File( System.getProperty( "java.home" ), "bin/java" ).getAbsolutePath() );
+        cl.createArg().setValue( "-cp" );
+        cl.createArg().setValue( instrumentedDir + File.pathSeparator + runtimeJar + File.pathSeparator
+            + testClassesDir + File.pathSeparator
+            + new File( TestCase.class.getProtectionDomain().getCodeSource().getLocation().getPath() )
+            + File.pathSeparator
+            + new File( ProjectData.class.getProtectionDomain().getCodeSource().getLocation().getPath() ) );
+        cl.createArg().setValue( "junit.textui.TestRunner" );
+        cl.createArg().setValue( "CircleTest" );
+
+        CommandLineUtils.StringStreamConsumer out = new CommandLineUtils.StringStreamConsumer();
+
+        assertEquals( out.getOutput(), 0, CommandLineUtils.executeCommandLine( cl, out, out ) );
+    }
 }
@@ -0,0 +1,100 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.util.jar.JarFile;
+
+import junit.framework.TestCase;
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.Mojo;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.mojo.cobertura.agent.CoberturaAgent;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+public class CoberturaPrepareAgentMojoTest
+    extends AbstractCoberturaTestCase
+{
+    public void testPrepareAgent()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "prepare-agent", PlexusTestCase.getBasedir() +
+                "/src/test/plugin-configs/prepare-agent-plugin-config.xml" );
+
+        setVariableValueToObject( mojo, "pluginClasspathList", getPluginClasspath() );
+
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        project.getProperties().setProperty( "argLine", "-Xmx128m" );
+
+        // the test class is loaded from outside the classes directory
+        new File( project.getBuild().getOutputDirectory(), "CircleTest.class" ).delete();
+
+        mojo.execute();
+
+        File agentDir = new File( PlexusTestCase.getBasedir(), "target/test-harness/instrument/agent" );
+
+        File agentJar = new File( agentDir, "cobertura-agent.jar" );
+
+        File agentProperties = new File( agentDir, "cobertura-agent.properties" );
+
+        String option = "-javaagent:" + agentJar.getAbsolutePath() + "=" + agentProperties.getAbsolutePath();
+
+        assertEquals( "Agent option set", option + " -Xmx128m", project.getProperties().getProperty( "argLine" ) );
+
+        JarFile jar = new JarFile( agentJar );
+
+        assertEquals( "Agent declared", CoberturaAgent.class.getName(),
+                      jar.getManifest().getMainAttributes().getValue( "Premain-Class" ) );
+
+        jar.close();
+
+        // run the test of the circle against the agent
+        Commandline cl = new Commandline();
+        cl.setExecutable( new File( System.getProperty( "java.home" ), "bin/java" ).getAbsolutePath() );
+        cl.createArg().setValue( option );
+        cl.createArg().setValue( "-cp" );
+        cl.createArg().setValue( project.getBuild().getOutputDirectory() + File.pathSeparator
+            + PlexusTestCase.getBasedir() + "/src/test/classes" + File.pathSeparator
+            + new File( TestCase.class.getProtectionDomain().getCodeSource().getLocation().getPath() ) );
+        cl.createArg().setValue( "junit.textui.TestRunner" );
+        cl.createArg().setValue( "CircleTest" );
+
+        CommandLineUtils.StringStreamConsumer out = new CommandLineUtils.StringStreamConsumer();
+
+        assertEquals( "Tests passed", 0, CommandLineUtils.executeCommandLine( cl, out, out ) );
+
+        ProjectData projectData =
+            CoverageDataFileHandler.loadCoverageData( new File( agentDir, "cobertura.ser" ) );
+
+        assertNotNull( "Coverage saved", projectData );
+
+        ClassData circle = projectData.getClassData( "Circle" );
+
+        assertNotNull( "Loaded class instrumented", circle );
+
+        assertTrue( "Loaded class covered", circle.getNumberOfCoveredLines() > 0 );
+
+        assertNull( "Test class not instrumented", projectData.getClassData( "CircleTest" ) );
+    }
+}
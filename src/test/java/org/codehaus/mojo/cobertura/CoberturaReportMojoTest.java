@@ -19,8 +19,11 @@ package org.codehaus.mojo.cobertura;
 import java.io.File;
 
 import org.apache.maven.plugin.Mojo;
+import org.apache.maven.project.MavenProject;
 import org.apache.maven.reporting.MavenReport;
+import org.codehaus.mojo.cobertura.tasks.HtmlReportRenderer;
 import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
 
 /**
  * @author Edwin Punzalan
@@ -49,6 +52,124 @@ public class CoberturaReportMojoTest
         assertTrue( "Test for generated html file", outputHtml.exists() );
     }
 
+    public void testReportOnly()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "report-only", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/report-plugin-config.xml" );
+
+        setMojoPluginClasspath( mojo );
+
+        File outputDirectory = new File( PlexusTestCase.getBasedir(), "target/test-harness/report/report-only/cobertura" );
+
+        // report-only does not fork a lifecycle, so Maven gives it no execution project
+        MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+
+        project.setExecutionProject( null );
+
+        setVariableValueToObject( mojo, "outputDirectory", outputDirectory );
+
+        MavenReport reportMojo = (MavenReport) mojo;
+
+        assertTrue( "Should be able to generate a report", reportMojo.canGenerateReport() );
+
+        mojo.execute();
+
+        assertTrue( "Test for generated html file", new File( outputDirectory, "index.html" ).exists() );
+    }
+
+    public void testReportSinglePass()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "cobertura", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/report-plugin-config.xml" );
+
+        setMojoPluginClasspath( mojo );
+
+        File outputDirectory = new File( PlexusTestCase.getBasedir(), "target/test-harness/report/single-pass/cobertura" );
+
+        setVariableValueToObject( mojo, "outputDirectory", outputDirectory );
+
+        setVariableValueToObject( mojo, "format", null );
+
+        setVariableValueToObject( mojo, "formats", new String[] { "html", "xml" } );
+
+        setVariableValueToObject( mojo, "singlePass", Boolean.TRUE );
+
+        mojo.execute();
+
+        assertTrue( "Test for generated html file", new File( outputDirectory, "index.html" ).exists() );
+
+        assertTrue( "Test for generated xml file", new File( outputDirectory, "coverage.xml" ).exists() );
+    }
+
+    public void testReportThreads()
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "cobertura", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/report-plugin-config.xml" );
+
+        setMojoPluginClasspath( mojo );
+
+        File outputDirectory = new File( PlexusTestCase.getBasedir(), "target/test-harness/report/threads/cobertura" );
+
+        setVariableValueToObject( mojo, "outputDirectory", outputDirectory );
+
+        setVariableValueToObject( mojo, "threads", new Integer( 2 ) );
+
+        mojo.execute();
+
+        assertTrue( "Test for generated html file", new File( outputDirectory, "index.html" ).exists() );
+
+        assertTrue( "Test for generated source page", new File( outputDirectory, "Circle.html" ).exists() );
+
+        assertFalse( "Shard directories removed", new File( outputDirectory, ".shards" ).exists() );
+
+        assertFalse( "No fingerprints outside incremental mode",
+                     new File( outputDirectory, HtmlReportRenderer.STATE_FILE ).exists() );
+    }
+
+    public void testReportIncremental()
+        throws Exception
+    {
+        File outputDirectory = new File( PlexusTestCase.getBasedir(), "target/test-harness/report/incremental/cobertura" );
+
+        FileUtils.deleteDirectory( outputDirectory );
+
+        executeIncrementalReport( outputDirectory );
+
+        File page = new File( outputDirectory, "Circle.html" );
+
+        assertTrue( "Test for generated source page", page.exists() );
+
+        assertTrue( "Test for fingerprints", new File( outputDirectory, HtmlReportRenderer.STATE_FILE ).exists() );
+
+        page.setLastModified( page.lastModified() - 60000 );
+
+        long lastModified = page.lastModified();
+
+        executeIncrementalReport( outputDirectory );
+
+        assertTrue( "Test for generated html file", new File( outputDirectory, "index.html" ).exists() );
+
+        assertEquals( "Unchanged source page not rendered again", lastModified, page.lastModified() );
+    }
+
+    private void executeIncrementalReport( File outputDirectory )
+        throws Exception
+    {
+        Mojo mojo =
+            lookupMojo( "cobertura", PlexusTestCase.getBasedir() + "/src/test/plugin-configs/report-plugin-config.xml" );
+
+        setMojoPluginClasspath( mojo );
+
+        setVariableValueToObject( mojo, "outputDirectory", outputDirectory );
+
+        setVariableValueToObject( mojo, "incremental", Boolean.TRUE );
+
+        mojo.execute();
+    }
+
     public void testReportEmptySourceDir()
         throws Exception
     {
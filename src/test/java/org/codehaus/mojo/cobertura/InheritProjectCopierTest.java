@@ -0,0 +1,114 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+public class InheritProjectCopierTest
+    extends TestCase
+{
+    public void testDataFilesInProjectOrder()
+        throws Exception
+    {
+        List<InheritProject> projects = new ArrayList<InheritProject>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            // the first projects take the longest
+            projects.add( new StubInheritProject( "p" + i, 50 - 10 * i, false ) );
+        }
+
+        List<File> dataFiles = new InheritProjectCopier( 4 ).copy( projects, null, new File( "main" ), new File( "ser" ) );
+
+        assertEquals( 5, dataFiles.size() );
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertEquals( new File( "ser", "p" + i + ".ser" ), dataFiles.get( i ) );
+        }
+    }
+
+    public void testFailure()
+    {
+        List<InheritProject> projects = new ArrayList<InheritProject>();
+        projects.add( new StubInheritProject( "ok", 0, false ) );
+        projects.add( new StubInheritProject( "missing", 0, true ) );
+
+        try
+        {
+            new InheritProjectCopier( 2 ).copy( projects, null, new File( "main" ), new File( "ser" ) );
+
+            fail( "Should fail when an artifact cannot be resolved" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            assertEquals( "Unable to find artifact missing", e.getMessage() );
+        }
+    }
+
+    private static class StubInheritProject
+        extends InheritProject
+    {
+        private final String name;
+
+        private final long delay;
+
+        private final boolean missing;
+
+        StubInheritProject( String name, long delay, boolean missing )
+        {
+            this.name = name;
+            this.delay = delay;
+            this.missing = missing;
+        }
+
+        public File copyMainArtifact( MavenProject project, File outputDir )
+            throws MojoExecutionException
+        {
+            return copy( outputDir, ".jar" );
+        }
+
+        public File copySerArtifact( MavenProject project, File outputDir )
+            throws MojoExecutionException
+        {
+            return copy( outputDir, ".ser" );
+        }
+
+        private File copy( File outputDir, String extension )
+            throws MojoExecutionException
+        {
+            if ( missing )
+            {
+                throw new MojoExecutionException( "Unable to find artifact " + name );
+            }
+            try
+            {
+                Thread.sleep( delay );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new MojoExecutionException( "Interrupted", e );
+            }
+            return new File( outputDir, name + extension );
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.codehaus.mojo.cobertura;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.codehaus.mojo.cobertura.tasks.ClassStager;
+import org.codehaus.plexus.util.FileUtils;
+
+public class InheritProjectTest
+    extends TestCase
+{
+    private File repository;
+
+    private File build;
+
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        File dir = new File( "target/test-harness/inherit" );
+        FileUtils.deleteDirectory( dir );
+        repository = new File( dir, "repository" );
+        build = new File( dir, "build" );
+        repository.mkdirs();
+        build.mkdirs();
+    }
+
+    public void testLinkDataFile()
+        throws Exception
+    {
+        File source = write( new File( repository, "project-cobertura.ser" ), "data" );
+        File dest = new File( build, source.getName() );
+
+        InheritProject project = new InheritProject();
+        project.setLinkArtifacts( true );
+        if ( !project.link( source, dest ) )
+        {
+            // this JVM or file system cannot link
+            return;
+        }
+        dest.delete();
+
+        project.copyFile( source, dest, true );
+
+        overwrite( source, "DATA" );
+        assertEquals( "The data file should be linked", "DATA", FileUtils.fileRead( dest ) );
+    }
+
+    public void testMainArtifactNeverLinked()
+        throws Exception
+    {
+        File source = write( new File( repository, "project.jar" ), "jar" );
+        File dest = new File( build, source.getName() );
+
+        InheritProject project = new InheritProject();
+        project.setLinkArtifacts( true );
+        project.copyFile( source, dest, false );
+
+        assertTrue( ClassStager.isCurrent( source, dest ) );
+        overwrite( dest, "JAR" );
+        assertEquals( "Instrumenting the copy must not touch the repository", "jar", FileUtils.fileRead( source ) );
+    }
+
+    public void testCopyAcrossFileSystems()
+        throws Exception
+    {
+        File source = write( new File( repository, "project-cobertura.ser" ), "data" );
+        File dest = new File( build, source.getName() );
+
+        InheritProject project = new InheritProject()
+        {
+            boolean link( File source, File dest )
+            {
+                // as if the repository was on another file system
+                return false;
+            }
+        };
+        project.setLinkArtifacts( true );
+        project.copyFile( source, dest, true );
+
+        assertTrue( ClassStager.isCurrent( source, dest ) );
+        overwrite( source, "DATA" );
+        assertEquals( "The data file should be copied", "data", FileUtils.fileRead( dest ) );
+    }
+
+    public void testSkipCurrent()
+        throws Exception
+    {
+        File source = write( new File( repository, "project-cobertura.ser" ), "data" );
+        File dest = write( new File( build, source.getName() ), "same" );
+        dest.setLastModified( source.lastModified() );
+
+        InheritProject project = new InheritProject();
+        project.setLinkArtifacts( true );
+        project.copyFile( source, dest, true );
+
+        assertEquals( "A current file should be left alone", "same", FileUtils.fileRead( dest ) );
+    }
+
+    private static File write( File file, String content )
+        throws IOException
+    {
+        FileUtils.fileWrite( file.getPath(), content );
+        return file;
+    }
+
+    private static void overwrite( File file, String content )
+        throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile( file, "rw" );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
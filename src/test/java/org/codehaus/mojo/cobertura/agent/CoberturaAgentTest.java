@@ -0,0 +1,120 @@
+package org.codehaus.mojo.cobertura.agent;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.IOUtil;
+
+public class CoberturaAgentTest
+    extends TestCase
+{
+    public void testAntPatterns()
+    {
+        assertTrue( CoberturaAgent.toPattern( "**/*.class" ).matcher( "Circle.class" ).matches() );
+
+        assertTrue( CoberturaAgent.toPattern( "**/*.class" ).matcher( "com/example/Circle.class" ).matches() );
+
+        assertFalse( CoberturaAgent.toPattern( "com/*.class" ).matcher( "com/example/Circle.class" ).matches() );
+
+        assertTrue( CoberturaAgent.toPattern( "org/**, com/**/Circle?.class" ).matcher( "com/a/b/Circle2.class" )
+            .matches() );
+
+        assertFalse( CoberturaAgent.toPattern( "Circle.class" ).matcher( "CircleXclass" ).matches() );
+    }
+
+    public void testUnloadedClassesReported()
+        throws Exception
+    {
+        File dataFile = new File( PlexusTestCase.getBasedir(), "target/test-harness/agent/unloaded.ser" );
+        dataFile.getParentFile().mkdirs();
+        dataFile.delete();
+
+        Properties properties = new Properties();
+        properties.setProperty( CoberturaAgent.CLASSES_DIRECTORY, PlexusTestCase.getBasedir() + "/src/test/classes" );
+        properties.setProperty( CoberturaAgent.EXCLUDES, "*Test.class" );
+
+        new CoberturaAgent( properties ).save( dataFile );
+
+        ProjectData projectData = CoverageDataFileHandler.loadCoverageData( dataFile );
+
+        ClassData circle = projectData.getClassData( "Circle" );
+
+        assertNotNull( "Unloaded class reported", circle );
+
+        assertTrue( "Unloaded class has lines", circle.getNumberOfValidLines() > 0 );
+
+        assertEquals( "Unloaded class not covered", 0, circle.getNumberOfCoveredLines() );
+
+        assertNull( "Excluded class not reported", projectData.getClassData( "CircleTest" ) );
+    }
+
+    public void testClassFromJarInstrumented()
+        throws Exception
+    {
+        File classes = new File( PlexusTestCase.getBasedir(), "src/test/classes" );
+
+        Properties properties = new Properties();
+        properties.setProperty( CoberturaAgent.CLASSES_DIRECTORY, classes.getPath() );
+        properties.setProperty( CoberturaAgent.EXCLUDES, "*Test.class" );
+
+        CoberturaAgent agent = new CoberturaAgent( properties );
+
+        // as when the integration tests run against the packaged jar
+        URL jar = new File( PlexusTestCase.getBasedir(), "target/project.jar" ).toURI().toURL();
+        ProtectionDomain protectionDomain = new ProtectionDomain( new CodeSource( jar, (Certificate[]) null ), null );
+        byte[] circle = read( new File( classes, "Circle.class" ) );
+
+        assertNotNull( "Project class loaded from a jar instrumented",
+                       agent.transform( null, "Circle", null, protectionDomain, circle ) );
+
+        assertNull( "Excluded class not instrumented",
+                    agent.transform( null, "CircleTest", null, protectionDomain,
+                                     read( new File( classes, "CircleTest.class" ) ) ) );
+
+        assertNull( "Class missing from the classes directory not instrumented",
+                    agent.transform( null, "com/example/Circle", null, protectionDomain, circle ) );
+    }
+
+    private static byte[] read( File file )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            return IOUtil.toByteArray( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
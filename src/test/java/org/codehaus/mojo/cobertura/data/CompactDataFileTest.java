@@ -0,0 +1,130 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.PlexusTestCase;
+
+public class CompactDataFileTest
+    extends TestCase
+{
+    private File dir;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = new File( PlexusTestCase.getBasedir(), "target/test-harness/data" );
+        dir.mkdirs();
+    }
+
+    public void testRoundTrip()
+        throws Exception
+    {
+        ProjectData projectData = new ProjectData();
+        ClassData classData = projectData.getOrCreateClassData( "org.example.Shape" );
+        classData.setSourceFileName( "Shape.java" );
+        classData.addLine( 10, "area", "()D" );
+        classData.touch( 10, 5 );
+        classData.addLine( 11, "area", "()D" );
+        classData.addLineJump( 11, 0 );
+        classData.touchJump( 11, 0, true, 3 );
+        classData.addLine( 12, "kind", "(I)I" );
+        classData.addLineSwitch( 12, 0, new int[] { 1, 2, 7 } );
+        classData.touchSwitch( 12, 0, 2, 4 );
+        classData.touchSwitch( 12, 0, -1, 1 );
+        projectData.getOrCreateClassData( "Default" ).addLine( 1, null, null );
+
+        File file = new File( dir, "cobertura.cdat" );
+        CompactDataFile.save( projectData, file );
+
+        assertTrue( CompactDataFile.isCompact( file ) );
+
+        ProjectData loaded = CompactDataFile.loadCoverageData( file );
+
+        assertEquals( 2, loaded.getNumberOfClasses() );
+
+        ClassData loadedClass = loaded.getClassData( "org.example.Shape" );
+
+        assertEquals( "org/example/Shape.java", loadedClass.getSourceFileName() );
+        assertEquals( 5, loadedClass.getLineCoverage( 10 ).getHits() );
+        assertEquals( "area", loadedClass.getLineCoverage( 10 ).getMethodName() );
+        assertEquals( classData.getNumberOfValidBranches(), loadedClass.getNumberOfValidBranches() );
+        assertEquals( classData.getNumberOfCoveredBranches(), loadedClass.getNumberOfCoveredBranches() );
+        assertEquals( classData.getBranchCoverageRate(), loadedClass.getBranchCoverageRate(), 0.0001 );
+
+        LineData switchLine = loadedClass.getLineCoverage( 12 );
+        assertEquals( classData.getLineCoverage( 12 ).getConditionCoverage( 0 ), switchLine.getConditionCoverage( 0 ) );
+
+        assertNull( loaded.getClassData( "Default" ).getLineCoverage( 1 ).getMethodName() );
+    }
+
+    public void testLoadSerializedDataFile()
+        throws Exception
+    {
+        ProjectData projectData = new ProjectData();
+        projectData.getOrCreateClassData( "org.example.Shape" ).addLine( 1, "area", "()D" );
+
+        File file = new File( dir, "cobertura.ser" );
+        CoverageDataFileHandler.saveCoverageData( projectData, file );
+
+        assertFalse( CompactDataFile.isCompact( file ) );
+
+        assertNotNull( CompactDataFile.loadCoverageData( file ).getClassData( "org.example.Shape" ) );
+    }
+
+    public void testCorruptCounts()
+        throws Exception
+    {
+        ProjectData projectData = new ProjectData();
+        projectData.getOrCreateClassData( "org.example.Shape" ).addLine( 1, "area", "()D" );
+
+        File file = new File( dir, "corrupt.cdat" );
+        CompactDataFile.save( projectData, file );
+
+        // the string count, right after the magic number and the version
+        int[] counts = { -1, Integer.MAX_VALUE };
+        for ( int i = 0; i < counts.length; i++ )
+        {
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            raf.seek( 8 );
+            raf.writeInt( counts[i] );
+            raf.close();
+
+            try
+            {
+                CompactDataFile.load( file );
+                fail( "Count " + counts[i] + " accepted" );
+            }
+            catch ( IOException e )
+            {
+                // expected
+            }
+
+            assertNull( CompactDataFile.loadCoverageData( file ) );
+        }
+    }
+}
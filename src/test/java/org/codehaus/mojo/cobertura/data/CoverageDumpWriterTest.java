@@ -0,0 +1,88 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.PlexusTestCase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class CoverageDumpWriterTest
+    extends TestCase
+{
+    private ProjectData projectData;
+
+    protected void setUp()
+        throws Exception
+    {
+        projectData = new ProjectData();
+        ClassData classData = projectData.getOrCreateClassData( "org.example.Shape" );
+        classData.setSourceFileName( "Shape.java" );
+        classData.addLine( 10, "area", "()D" );
+        classData.touch( 10, 5 );
+        classData.addLine( 11, "area", "()D" );
+        classData.addLineJump( 11, 0 );
+        classData.touchJump( 11, 0, true, 3 );
+        classData.addLine( 20, "name", "()Ljava/lang/String;" );
+    }
+
+    public void testXml()
+        throws Exception
+    {
+        File file = new File( PlexusTestCase.getBasedir(), "target/test-harness/data/dump.xml" );
+        CoverageDumpWriter.dump( projectData, file, CoverageDumpWriter.FORMAT_XML );
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( file );
+
+        assertEquals( 1, document.getElementsByTagName( "package" ).getLength() );
+        assertEquals( 2, document.getElementsByTagName( "method" ).getLength() );
+        assertEquals( 3, document.getElementsByTagName( "line" ).getLength() );
+
+        Element method = (Element) document.getElementsByTagName( "method" ).item( 0 );
+        assertEquals( "area", method.getAttribute( "name" ) );
+        assertEquals( "()D", method.getAttribute( "signature" ) );
+
+        Element line = (Element) method.getElementsByTagName( "line" ).item( 0 );
+        assertEquals( "10", line.getAttribute( "number" ) );
+        assertEquals( "5", line.getAttribute( "hits" ) );
+
+        Element branch = (Element) method.getElementsByTagName( "line" ).item( 1 );
+        assertEquals( "true", branch.getAttribute( "branch" ) );
+    }
+
+    public void testJson()
+        throws Exception
+    {
+        StringWriter out = new StringWriter();
+        new CoverageDumpWriter( out, CoverageDumpWriter.FORMAT_JSON ).write( projectData );
+        String json = out.toString();
+
+        assertTrue( json, json.startsWith( "{\"line-rate\":" ) );
+        assertTrue( json, json.indexOf( "\"packages\":[{\"name\":\"org.example\"" ) > 0 );
+        assertTrue( json, json.indexOf( "\"lines\":[{\"number\":10,\"hits\":5,\"branch\":false},{\"number\":11" ) > 0 );
+        assertTrue( json, json.trim().endsWith( "}]}]}]}]}" ) );
+    }
+}
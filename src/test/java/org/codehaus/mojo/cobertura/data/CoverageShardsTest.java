@@ -0,0 +1,78 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+public class CoverageShardsTest
+    extends TestCase
+{
+    private File dir;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = new File( PlexusTestCase.getBasedir(), "target/test-harness/shards" );
+        FileUtils.deleteDirectory( dir );
+        dir.mkdirs();
+    }
+
+    public void testFoldKeepsFormat()
+        throws Exception
+    {
+        ProjectData definitions = new ProjectData();
+        ClassData classData = definitions.getOrCreateClassData( "org.example.Shape" );
+        classData.addLine( 10, "area", "()D" );
+        classData.addLine( 11, "area", "()D" );
+
+        File dataFile = new File( dir, "cobertura.ser" );
+        CompactDataFile.save( definitions, dataFile );
+
+        writeShard( new File( dir, "cobertura.ser.1_host-1-0.shard" ), 10, 2 );
+        writeShard( new File( dir, "cobertura.ser.2_host-1-0.shard" ), 10, 3 );
+        writeShard( new File( dir, "other.ser.1_host-1-0.shard" ), 11, 1 );
+
+        assertEquals( 2, CoverageShards.find( dataFile ).size() );
+        assertEquals( 2, CoverageShards.fold( dataFile ) );
+        assertTrue( "Format kept", CompactDataFile.isCompact( dataFile ) );
+        assertTrue( "Folded shards deleted", CoverageShards.find( dataFile ).isEmpty() );
+        assertTrue( "Other shards kept", new File( dir, "other.ser.1_host-1-0.shard" ).exists() );
+
+        ClassData folded = CompactDataFile.load( dataFile ).getClassData( "org.example.Shape" );
+        assertEquals( 5, folded.getLineCoverage( 10 ).getHits() );
+        assertEquals( 0, folded.getLineCoverage( 11 ).getHits() );
+        assertEquals( "area", folded.getLineCoverage( 10 ).getMethodName() );
+
+        assertEquals( "Nothing left to fold", 0, CoverageShards.fold( dataFile ) );
+    }
+
+    private static void writeShard( File shard, int line, int hits )
+    {
+        ProjectData projectData = new ProjectData();
+        projectData.getOrCreateClassData( "org.example.Shape" ).touch( line, hits );
+        CoverageDataFileHandler.saveCoverageData( projectData, shard );
+    }
+}
@@ -0,0 +1,102 @@
+package org.codehaus.mojo.cobertura.data;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.codehaus.mojo.cobertura.runtime.BooleanTouchCollector;
+import org.codehaus.plexus.PlexusTestCase;
+
+public class TestCoverageMapsTest
+    extends TestCase
+{
+    public void testCompact()
+        throws Exception
+    {
+        File file = new File( PlexusTestCase.getBasedir(), "target/test-harness/maps/cobertura.ser.tests" );
+        file.getParentFile().mkdirs();
+        file.delete();
+
+        // a first run, hitting lines 1 and 2 of A and line 1 of B
+        DataOutputStream out = new DataOutputStream( new FileOutputStream( file ) );
+        writeDictionary( out, new String[] { "A", "B" }, new int[][] { { 1, 2 }, { 1 } } );
+        out.writeInt( 2 );
+        writeTest( out, "T#a", new byte[] { 0, 1 } );
+        writeTest( out, "T#b", new byte[] { 2, 0 } );
+
+        // a second run of T#a, now hitting lines 1 and 5 of B, and a new test
+        writeDictionary( out, new String[] { "B" }, new int[][] { { 1, 5 } } );
+        out.writeInt( 2 );
+        writeTest( out, "T#a", new byte[] { 0, 1 } );
+        writeTest( out, "T#c", new byte[] { 1, 0 } );
+        out.close();
+
+        long length = file.length();
+
+        assertTrue( "Compacted", TestCoverageMaps.compact( file ) );
+
+        assertTrue( "Replaced maps dropped", file.length() < length );
+
+        assertFalse( "Already compact", TestCoverageMaps.compact( file ) );
+
+        TestCoverageMaps maps = TestCoverageMaps.load( file );
+
+        assertEquals( 3, maps.size() );
+
+        assertFalse( "Latest map of T#a kept", maps.covers( "T#a", "A" ) );
+        assertTrue( maps.covers( "T#a", "B", 1 ) );
+        assertTrue( maps.covers( "T#a", "B", 5 ) );
+
+        assertTrue( maps.covers( "T#b", "B", 1 ) );
+        assertFalse( maps.covers( "T#b", "B", 5 ) );
+
+        assertFalse( maps.covers( "T#c", "B", 1 ) );
+        assertTrue( maps.covers( "T#c", "B", 5 ) );
+
+        assertTrue( "No test hits A any more", maps.getTestsCovering( "A" ).isEmpty() );
+    }
+
+    private static void writeDictionary( DataOutputStream out, String[] classes, int[][] lines )
+        throws IOException
+    {
+        out.writeInt( BooleanTouchCollector.TEST_MAPS_MAGIC );
+        out.writeInt( classes.length );
+        for ( int c = 0; c < classes.length; c++ )
+        {
+            out.writeUTF( classes[c] );
+            out.writeInt( lines[c].length );
+            for ( int k = 0; k < lines[c].length; k++ )
+            {
+                // the probe of a line
+                out.writeLong( (long) lines[c][k] << 32 );
+            }
+        }
+    }
+
+    private static void writeTest( DataOutputStream out, String test, byte[] runs )
+        throws IOException
+    {
+        out.writeUTF( test );
+        out.writeInt( runs.length );
+        out.write( runs );
+    }
+}
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
 import java.util.Set;
 
 import org.apache.maven.artifact.Artifact;
@@ -37,12 +38,16 @@ public class InstrumentMavenProjectStub
 {
     private Build build;
 
+    private Properties properties = new Properties();
+
     public InstrumentMavenProjectStub()
         throws IOException
     {
         File classesDir = new File( PlexusTestCase.getBasedir() + "/src/test/classes" );
 
         FileUtils.copyDirectory( classesDir, new File( getBuild().getOutputDirectory() ), "Circle.class", null );
+        FileUtils.copyDirectory( classesDir, new File( getBuild().getTestOutputDirectory() ), "CircleTest.class",
+                                 null );
     }
 
     public MavenProject getExecutionProject()
@@ -63,6 +68,8 @@ public class InstrumentMavenProjectStub
 
             build.setDirectory( PlexusTestCase.getBasedir() + "/target/test-harness/instrument" );
             build.setOutputDirectory( PlexusTestCase.getBasedir() + "/target/test-harness/instrument/classes" );
+            build.setTestOutputDirectory( PlexusTestCase.getBasedir()
+                + "/target/test-harness/instrument/test-classes" );
         }
 
         return build;
@@ -73,6 +80,11 @@ public class InstrumentMavenProjectStub
         return new ArtifactStub();
     }
 
+    public Properties getProperties()
+    {
+        return properties;
+    }
+
     public List getCompileSourceRoots()
     {
         return Collections.singletonList( PlexusTestCase.getBasedir() + "/src/test/sources" );
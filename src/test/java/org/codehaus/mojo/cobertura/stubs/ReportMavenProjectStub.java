@@ -35,6 +35,8 @@ public class ReportMavenProjectStub
 {
     private Build build;
 
+    private MavenProject executionProject = this;
+
     public ReportMavenProjectStub()
         throws IOException
     {
@@ -47,7 +49,12 @@ public class ReportMavenProjectStub
 
     public MavenProject getExecutionProject()
     {
-        return this;
+        return executionProject;
+    }
+
+    public void setExecutionProject( MavenProject executionProject )
+    {
+        this.executionProject = executionProject;
     }
 
     public Build getBuild()
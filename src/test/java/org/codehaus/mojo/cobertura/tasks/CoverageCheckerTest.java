@@ -0,0 +1,121 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.mojo.cobertura.configuration.ConfigCheck;
+import org.codehaus.mojo.cobertura.configuration.Regex;
+
+public class CoverageCheckerTest
+    extends TestCase
+{
+    private ProjectData projectData;
+
+    protected void setUp()
+        throws Exception
+    {
+        projectData = new ProjectData();
+
+        // 1 of 2 lines covered
+        ClassData shape = projectData.getOrCreateClassData( "org.example.Shape" );
+        shape.addLine( 1, "area", "()D" );
+        shape.addLine( 2, "area", "()D" );
+        shape.touch( 1, 1 );
+
+        // fully covered
+        ClassData circle = projectData.getOrCreateClassData( "org.example.shapes.Circle" );
+        circle.addLine( 1, "area", "()D" );
+        circle.touch( 1, 1 );
+    }
+
+    public void testDefaultThresholds()
+        throws Exception
+    {
+        List violations = new CoverageChecker( new ConfigCheck() ).check( projectData );
+
+        assertTrue( violations.isEmpty() );
+    }
+
+    public void testClassAndTotalThresholds()
+        throws Exception
+    {
+        ConfigCheck config = new ConfigCheck();
+        config.setLineRate( "60" );
+        config.setTotalLineRate( "80" );
+
+        List<CoverageChecker.Violation> violations = new CoverageChecker( config ).check( projectData );
+
+        assertEquals( 2, violations.size() );
+        assertEquals( "org.example.Shape failed check. Line coverage rate of 50.0% is below 60.0%",
+                      violations.get( 0 ).getMessage() );
+        assertEquals( CoverageChecker.Violation.SCOPE_PROJECT, violations.get( 1 ).getScope() );
+    }
+
+    public void testRegexThresholds()
+        throws Exception
+    {
+        ConfigCheck config = new ConfigCheck();
+        config.setLineRate( "60" );
+        Regex regex = new Regex();
+        regex.setPattern( "org\\.example\\.[A-Z].*" );
+        regex.setLineRate( "40" );
+        regex.setBranchRate( "0" );
+        config.addRegex( regex );
+
+        assertTrue( new CoverageChecker( config ).check( projectData ).isEmpty() );
+    }
+
+    public void testStopAtFirstViolation()
+        throws Exception
+    {
+        ConfigCheck config = new ConfigCheck();
+        config.setLineRate( "100" );
+        config.setTotalLineRate( "100" );
+
+        CoverageChecker checker = new CoverageChecker( config );
+
+        assertEquals( 2, checker.check( projectData ).size() );
+
+        checker.setStopAtFirstViolation( true );
+
+        assertEquals( 1, checker.check( projectData ).size() );
+    }
+
+    public void testInvalidPercentage()
+    {
+        ConfigCheck config = new ConfigCheck();
+        config.setBranchRate( "120" );
+
+        try
+        {
+            new CoverageChecker( config );
+
+            fail( "Percentages above 100 are invalid" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            // expected
+        }
+    }
+}
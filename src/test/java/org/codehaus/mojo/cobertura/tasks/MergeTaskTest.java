@@ -0,0 +1,149 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.mojo.cobertura.data.CompactDataFile;
+import org.codehaus.plexus.PlexusTestCase;
+
+public class MergeTaskTest
+    extends TestCase
+{
+    private File dir;
+
+    protected void setUp()
+        throws Exception
+    {
+        dir = new File( PlexusTestCase.getBasedir(), "target/test-harness/merge" );
+        dir.mkdirs();
+    }
+
+    public void testParallelMerge()
+        throws Exception
+    {
+        assertMerge( MergeTask.MODE_PARALLEL );
+    }
+
+    public void testParallelMergeCompact()
+        throws Exception
+    {
+        assertMergeCompact( MergeTask.MODE_PARALLEL );
+    }
+
+    public void testStreamingMerge()
+        throws Exception
+    {
+        assertMerge( MergeTask.MODE_STREAMING );
+
+        assertFalse( "Spill files removed", new File( dir, "cobertura.ser.spill" ).exists() );
+    }
+
+    public void testStreamingMergeCompact()
+        throws Exception
+    {
+        assertMergeCompact( MergeTask.MODE_STREAMING );
+
+        assertFalse( "Scratch file removed", new File( dir, "cobertura.cdat.classes" ).exists() );
+    }
+
+    private void assertMergeCompact( String mergeMode )
+        throws Exception
+    {
+        List<File> sourceDataFiles = new ArrayList<File>();
+        sourceDataFiles.add( createDataFile( "a.ser", "a.Foo", 1 ) );
+        sourceDataFiles.add( toCompact( createDataFile( "b.cdat", "a.Foo", 2 ) ) );
+        sourceDataFiles.add( toCompact( createDataFile( "c.cdat", "b.Bar", 1 ) ) );
+
+        File dataFile = toCompact( createDataFile( "cobertura.cdat", "c.Baz", 1 ) );
+
+        MergeTask task = new MergeTask();
+        task.setLog( new SystemStreamLog() );
+        task.setMergeMode( mergeMode );
+        task.setSourceDataFiles( sourceDataFiles );
+        task.setDataFile( dataFile );
+        task.execute();
+
+        assertTrue( "Written in the format of the destination", CompactDataFile.isCompact( dataFile ) );
+
+        ProjectData projectData = CompactDataFile.load( dataFile );
+
+        assertEquals( 3, projectData.getNumberOfClasses() );
+
+        assertEquals( "Hits are added up", 3, projectData.getClassData( "a.Foo" ).getLineCoverage( 1 ).getHits() );
+
+        assertEquals( "run", projectData.getClassData( "a.Foo" ).getLineCoverage( 1 ).getMethodName() );
+
+        assertNotNull( "Existing data is kept", projectData.getClassData( "c.Baz" ) );
+    }
+
+    private void assertMerge( String mergeMode )
+        throws Exception
+    {
+        List<File> sourceDataFiles = new ArrayList<File>();
+        sourceDataFiles.add( createDataFile( "a.ser", "a.Foo", 1 ) );
+        sourceDataFiles.add( createDataFile( "b.ser", "a.Foo", 2 ) );
+        sourceDataFiles.add( createDataFile( "c.ser", "b.Bar", 1 ) );
+        sourceDataFiles.add( new File( dir, "missing.ser" ) );
+
+        File dataFile = createDataFile( "cobertura.ser", "c.Baz", 1 );
+
+        MergeTask task = new MergeTask();
+        task.setLog( new SystemStreamLog() );
+        task.setMergeMode( mergeMode );
+        task.setThreads( 3 );
+        task.setSourceDataFiles( sourceDataFiles );
+        task.setDataFile( dataFile );
+        task.execute();
+
+        ProjectData projectData = CoverageDataFileHandler.loadCoverageData( dataFile );
+
+        assertEquals( 3, projectData.getNumberOfClasses() );
+
+        assertEquals( "Hits are added up", 3, projectData.getClassData( "a.Foo" ).getLineCoverage( 1 ).getHits() );
+
+        assertNotNull( "Existing data is kept", projectData.getClassData( "c.Baz" ) );
+    }
+
+    private static File toCompact( File file )
+        throws Exception
+    {
+        CompactDataFile.save( CoverageDataFileHandler.loadCoverageData( file ), file );
+        return file;
+    }
+
+    private File createDataFile( String name, String className, int hits )
+    {
+        ProjectData projectData = new ProjectData();
+        ClassData classData = projectData.getOrCreateClassData( className );
+        classData.addLine( 1, "run", "()V" );
+        classData.touch( 1, hits );
+
+        File file = new File( dir, name );
+        CoverageDataFileHandler.saveCoverageData( projectData, file );
+        return file;
+    }
+}
@@ -0,0 +1,79 @@
+package org.codehaus.mojo.cobertura.tasks;
+
+/*
+ * Copyright 2001-2006 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class RuleMatcherTest
+    extends TestCase
+{
+    private static final String[] PATTERNS = {
+        "com\\.example\\.billing\\..*",
+        "com\\.example\\.Main",
+        "com\\.example\\.(web|rest)\\..*Controller",
+        "Circle*",
+        "com\\.example\\..*",
+        "(a)\\1.*",
+        ".*Test" };
+
+    private static final String[] NAMES = {
+        "com.example.billing.Invoice",
+        "com.example.Main",
+        "com.example.MainTest",
+        "com.example.web.HomeController",
+        "com.example.web.Home",
+        "Circl",
+        "Circleee",
+        "aa.b",
+        "org.example.FooTest",
+        "org.example.Foo",
+        "" };
+
+    public void testFirstMatchingRule()
+    {
+        RuleMatcher<String> matcher = new RuleMatcher<String>( Arrays.asList( PATTERNS ), Arrays.asList( PATTERNS ) );
+
+        for ( int i = 0; i < NAMES.length; i++ )
+        {
+            assertEquals( NAMES[i], firstMatch( NAMES[i] ), matcher.find( NAMES[i] ) );
+        }
+    }
+
+    public void testRuleOrder()
+    {
+        RuleMatcher<String> matcher =
+            new RuleMatcher<String>( Arrays.asList( new String[] { ".*", "com\\.example\\..*" } ),
+                                     Arrays.asList( new String[] { "all", "example" } ) );
+
+        assertEquals( "all", matcher.find( "com.example.Main" ) );
+    }
+
+    private static String firstMatch( String name )
+    {
+        for ( int i = 0; i < PATTERNS.length; i++ )
+        {
+            if ( Pattern.matches( PATTERNS[i], name ) )
+            {
+                return PATTERNS[i];
+            }
+        }
+        return null;
+    }
+}